@@ -0,0 +1,148 @@
+package com.loopme;
+
+import android.content.Context;
+
+import com.loopme.common.AdParams;
+import com.loopme.common.ExecutorHelper;
+import com.loopme.common.Logging;
+import com.loopme.common.LoopMeError;
+import com.loopme.common.StaticParams;
+import com.loopme.constants.AdFormat;
+import com.loopme.request.AdRequestParametersProvider;
+import com.loopme.request.AdRequestPreparation;
+import com.loopme.request.AdRequestSlot;
+import com.loopme.request.AdRequestUrlBuilder;
+import com.loopme.tasks.AdFetcher;
+import com.loopme.tasks.BatchAdFetcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Loads several ads with one server request.
+ * Every ad keeps its own state, timers and callbacks, only network round trip is shared.
+ */
+class AdBatchLoader {
+
+    private static final String LOG_TAG = AdBatchLoader.class.getSimpleName();
+
+    private AdBatchLoader() {
+    }
+
+    /**
+     * Loads ads. If batch requests are disabled or there is only one ad,
+     * every ad is loaded with its own request.
+     */
+    static void load(final List<? extends BaseAd> ads) {
+        if (ads == null || ads.isEmpty()) {
+            return;
+        }
+        if (!StaticParams.USE_BATCH_REQUESTS || ads.size() == 1) {
+            for (BaseAd ad : ads) {
+                ad.load();
+            }
+            return;
+        }
+        final List<BaseAd> copy = new ArrayList<BaseAd>(ads);
+        try {
+            ExecutorHelper.getCpuExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    internalLoad(copy);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Logging.out(LOG_TAG, "Batch load is rejected: " + e.getMessage());
+            for (BaseAd ad : copy) {
+                ad.onAdLoadFail(new LoopMeError("SDK is busy, try again later"));
+            }
+        }
+    }
+
+    private static void internalLoad(List<BaseAd> ads) {
+        List<BaseAd> batch = new ArrayList<BaseAd>();
+        for (BaseAd ad : ads) {
+            if (ad.prepareLoad(ad.getIntegrationType())) {
+                batch.add(ad);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (batch.size() == 1) {
+            batch.get(0).proceedLoad();
+            return;
+        }
+        Logging.out(LOG_TAG, "Batch request for " + batch.size() + " ads");
+
+        BaseAd first = batch.get(0);
+        Context context = first.getContext();
+        AdRequestPreparation preparation = new AdRequestPreparation(context);
+        boolean isResolved = preparation.resolve();
+        preparation.logTimings(first.getAppKey());
+        if (!isResolved) {
+            for (BaseAd ad : batch) {
+                ad.onAdLoadFail(new LoopMeError("Advertising id is not available"));
+            }
+            return;
+        }
+
+        String requestUrl = new AdRequestUrlBuilder(context).buildBatchRequestUrl(
+                buildSlots(batch), first.getAdTargetingData(), first.getIntegrationType());
+        if (requestUrl == null) {
+            for (BaseAd ad : batch) {
+                ad.onAdLoadFail(new LoopMeError("Error during building ad request url"));
+            }
+            return;
+        }
+
+        int[] formats = new int[batch.size()];
+        List<AdFetcher.Listener> listeners = new ArrayList<AdFetcher.Listener>();
+        for (int i = 0; i < batch.size(); i++) {
+            BaseAd ad = batch.get(i);
+            formats[i] = ad.getAdFormat();
+            listeners.add(ad.startSharedRequest());
+        }
+        final BatchAdFetcher fetcher = new BatchAdFetcher(requestUrl, formats,
+                initBatchListener(batch, listeners), first.getAppKey());
+        final List<BaseAd> requested = batch;
+        ExecutorHelper.getNetworkExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                for (BaseAd ad : requested) {
+                    ad.startRequestTimer();
+                }
+                fetcher.run();
+            }
+        });
+    }
+
+    private static BatchAdFetcher.Listener initBatchListener(final List<BaseAd> batch,
+                                                             final List<AdFetcher.Listener> listeners) {
+        return new BatchAdFetcher.Listener() {
+            @Override
+            public void onComplete(int slot, AdParams params, LoopMeError error) {
+                BaseAd ad = batch.get(slot);
+                AdFetcher.Listener listener = listeners.get(slot);
+                if (ad.isWaitingForResponse(listener)) {
+                    listener.onComplete(params, error);
+                }
+            }
+        };
+    }
+
+    private static List<AdRequestSlot> buildSlots(List<BaseAd> batch) {
+        AdRequestParametersProvider provider = AdRequestParametersProvider.getInstance();
+        provider.setScreenSize();
+
+        List<AdRequestSlot> slots = new ArrayList<AdRequestSlot>();
+        for (BaseAd ad : batch) {
+            int[] adSize = provider.getAdSize(ad);
+            String format = ad.getAdFormat() == AdFormat.BANNER ?
+                    StaticParams.BANNER_TAG : StaticParams.INTERSTITIAL_TAG;
+            slots.add(new AdRequestSlot(ad.getAppKey(), format, adSize[0], adSize[1]));
+        }
+        return slots;
+    }
+}
@@ -33,9 +33,11 @@ import com.loopme.common.Utils;
 import com.loopme.common.VideoLoader;
 import com.loopme.constants.AdFormat;
 import com.loopme.constants.DisplayMode;
+import com.loopme.constants.DownloadPriority;
 import com.loopme.constants.StretchOption;
 import com.loopme.constants.VideoState;
 import com.loopme.constants.WebviewState;
+import com.loopme.debugging.LoopMeMetrics;
 import com.loopme.mraid.MraidView;
 import com.moat.analytics.mobile.loo.MoatAdEvent;
 import com.moat.analytics.mobile.loo.MoatAdEventType;
@@ -81,9 +83,11 @@ public class AdController {
     private boolean mPostponePlay;
 
     private VideoLoader mVideoLoader;
+    private long mHtmlPreloadStart;
 
     private int mPostponePlayPosition;
-    private String mFileRest;
+    private boolean mIsVideoStreamed;
+    private int mVideoPriority = DownloadPriority.NEXT;
 
     private VideoController mVideoController;
     private IViewController mViewController;
@@ -546,6 +550,7 @@ public class AdController {
     }
 
     void preloadHtml(String html, boolean mraid) {
+        mHtmlPreloadStart = System.currentTimeMillis();
         if (mraid) {
             mMraidView = new MraidView(mBaseAd.getContext(), mMraidController);
             mMraidView.loadDataWithBaseURL("file:///android_asset/", html, "text/html", "UTF-8", null);
@@ -558,6 +563,16 @@ public class AdController {
         }
     }
 
+    /**
+     * Called on first command of loaded html, records preload time once per preload.
+     */
+    void onHtmlPreloaded() {
+        if (mHtmlPreloadStart != 0) {
+            LoopMeMetrics.record(LoopMeMetrics.STAGE_HTML_PRELOAD, System.currentTimeMillis() - mHtmlPreloadStart);
+            mHtmlPreloadStart = 0;
+        }
+    }
+
     MraidView getMraidView() {
         return mMraidView;
     }
@@ -657,7 +672,11 @@ public class AdController {
     }
 
     private void handleLoadSuccess() {
-        mBaseAd.startExpirationTimer();
+        onHtmlPreloaded();
+        if (!mBaseAd.startExpirationTimer()) {
+            mBaseAd.onAdLoadFail(new LoopMeError("Ad expired before it was loaded"));
+            return;
+        }
         mBaseAd.onAdLoadSuccess();
     }
 
@@ -669,14 +688,15 @@ public class AdController {
 
     private void handleVideoLoad(String videoUrl) {
         Logging.out(LOG_TAG, "JS command: load video " + videoUrl);
+        onHtmlPreloaded();
         mIsVideoPresented = true;
-        boolean preload = mBaseAd.getAdParams().getPartPreload();
         mVideoController.contain360(mBaseAd.getAdParams().isVideo360());
-        loadVideoFile(videoUrl, mBaseAd.getContext(), preload);
+        loadVideoFile(videoUrl, mBaseAd.getContext(), mBaseAd.getAdParams().getPartPreload());
     }
 
-    private void loadVideoFile(final String videoUrl, Context context, final boolean preload) {
-
+    private void loadVideoFile(String videoUrl, Context context, boolean preload) {
+        // controller can be reused for next ad, its video may come from cache
+        mIsVideoStreamed = false;
         mVideoLoader = new VideoLoader(videoUrl, preload, context, new VideoLoader.Callback() {
 
             @Override
@@ -685,31 +705,38 @@ public class AdController {
             }
 
             @Override
-            public void onPreviewLoaded(String filePath) {
+            public void onPreviewLoaded(String streamUrl) {
                 Logging.out(LOG_TAG, "onPreviewLoaded");
-                mVideoController.initPlayerFromFile(filePath);
+                mIsVideoStreamed = true;
+                mVideoController.initPlayerFromFile(streamUrl);
             }
 
             @Override
             public void onFullVideoLoaded(String filePath) {
                 Logging.out(LOG_TAG, "onFullVideoLoaded: " + filePath);
-                if (preload) {
-                    if (mBaseAd.isShowing()) {
-                        mFileRest = filePath;
-                        mVideoController.setFileRest(mFileRest);
-                        mVideoController.waitForVideo();
-                    } else {
-                        mVideoController.releasePlayer();
-                        mVideoController.initPlayerFromFile(filePath);
-                    }
-                } else {
-                    mVideoController.initPlayerFromFile(filePath);
+                if (mIsVideoStreamed) {
+                    // player keeps reading from streaming proxy, which now serves complete file
+                    return;
                 }
+                mVideoController.initPlayerFromFile(filePath);
             }
         });
+        mVideoLoader.setPriority(mVideoPriority);
         mVideoLoader.start();
     }
 
+    /**
+     * Changes priority of video download, e.g. when ad is scrolled in or out of screen.
+     *
+     * @param priority - one of {@link DownloadPriority}
+     */
+    public void setVideoPriority(int priority) {
+        mVideoPriority = priority;
+        if (mVideoLoader != null) {
+            mVideoLoader.setPriority(priority);
+        }
+    }
+
     private void sendLoadFail(LoopMeError error) {
         if (mBaseAd != null) {
             mBaseAd.onAdLoadFail(error);
@@ -8,29 +8,34 @@ import android.os.Looper;
 import android.text.TextUtils;
 
 import com.loopme.common.AdFetcherTimer;
+import com.loopme.common.AdInventory;
 import com.loopme.common.AdParams;
+import com.loopme.common.CacheWarmer;
 import com.loopme.common.EventManager;
 import com.loopme.common.ExecutorHelper;
 import com.loopme.common.ExpirationTimer;
+import com.loopme.common.HttpConnectionManager;
 import com.loopme.common.Logging;
 import com.loopme.common.LoopMeError;
 import com.loopme.common.StaticParams;
+import com.loopme.common.TelemetryQueue;
 import com.loopme.common.Utils;
 import com.loopme.constants.AdState;
 import com.loopme.debugging.ErrorLog;
 import com.loopme.debugging.ErrorType;
 import com.loopme.request.AdRequestParametersProvider;
-import com.loopme.request.AdRequestUrlBuilder;
+import com.loopme.request.AdRequestPreparation;
 import com.loopme.request.AdTargeting;
 import com.loopme.request.AdTargetingData;
+import com.loopme.request.LatencyEstimator;
 import com.loopme.tasks.AdFetcher;
-import com.loopme.tasks.AdvIdFetcher;
 import com.loopme.tasks.RequestTimer;
 import com.moat.analytics.mobile.loo.MoatAnalytics;
 import com.moat.analytics.mobile.loo.MoatOptions;
 
 import java.util.List;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public abstract class BaseAd extends Settings implements AdTargeting {
 
@@ -42,6 +47,7 @@ public abstract class BaseAd extends Settings implements AdTargeting {
     protected volatile AdController mAdController;
 
     protected Future mFuture;
+    private volatile AdFetcher mAdFetcher;
     protected String mRequestUrl;
 
     protected ExpirationTimer mExpirationTimer;
@@ -68,6 +74,8 @@ public abstract class BaseAd extends Settings implements AdTargeting {
 
     protected Handler mHandler = new Handler(Looper.getMainLooper());
 
+    private AdInventory.Refiller mRefiller;
+
     private boolean mHtmlAd;
     private boolean mNativeAd;
     private int mAdId;
@@ -80,6 +88,8 @@ public abstract class BaseAd extends Settings implements AdTargeting {
         mAppKey = appKey;
         AdRequestParametersProvider.getInstance().init(this);
         Utils.setCacheDirectory(activity);
+        HttpConnectionManager.init();
+        TelemetryQueue.getInstance().init(activity);
         initMoatAnalytics();
         mAdId = IdGenerator.generateId();
     }
@@ -125,12 +135,7 @@ public abstract class BaseAd extends Settings implements AdTargeting {
 
 
     public void load() {
-        ExecutorHelper.getExecutor().submit(new Runnable() {
-            @Override
-            public void run() {
-                internalLoad(mIntegrationType);
-            }
-        });
+        load(mIntegrationType);
     }
 
     /**
@@ -140,19 +145,35 @@ public abstract class BaseAd extends Settings implements AdTargeting {
      * After its execution, the interstitial/banner notifies whether the loading of the ad content failed or succeded.
      */
     public void load(final IntegrationType integrationType) {
-        ExecutorHelper.getExecutor().submit(new Runnable() {
-            @Override
-            public void run() {
-                internalLoad(integrationType);
-            }
-        });
+        try {
+            ExecutorHelper.getCpuExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    internalLoad(integrationType);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Logging.out(LOG_TAG, "Load is rejected: " + e.getMessage());
+            onAdLoadFail(new LoopMeError("SDK is busy, try again later"));
+        }
     }
 
     private void internalLoad(IntegrationType integrationType) {
+        if (prepareLoad(integrationType)) {
+            proceedLoad();
+        }
+    }
+
+    /**
+     * Moves ad to loading state and checks preconditions of ad request.
+     *
+     * @return true if ad should be requested from server
+     */
+    boolean prepareLoad(IntegrationType integrationType) {
         Logging.out(LOG_TAG, "Start loading ad with app key " + mAppKey);
         if (mAdState == AdState.LOADING || mAdState == AdState.SHOWING) {
             Logging.out(LOG_TAG, "Ad already loading or showing");
-            return;
+            return false;
         }
         mIntegrationType = integrationType != null ? integrationType : IntegrationType.NORMAL;
 
@@ -176,18 +197,19 @@ public abstract class BaseAd extends Settings implements AdTargeting {
         });
         if (isReady()) {
             Logging.out(LOG_TAG, "Ad already loaded");
-            return;
+            return false;
         }
 
         if (Build.VERSION.SDK_INT < 19) {
             onAdLoadFail(new LoopMeError("Not supported Android version. Expected Android 4.4+"));
-            return;
+            return false;
         }
 
         if (Utils.isOnline(getContext())) {
-            proceedLoad();
+            return true;
         } else {
             onAdLoadFail(new LoopMeError("No connection"));
+            return false;
         }
     }
 
@@ -208,10 +230,17 @@ public abstract class BaseAd extends Settings implements AdTargeting {
         releaseViewController();
 
         LoopMeAdHolder.removeAd(this);
+        if (mRefiller != null) {
+            AdInventory.getInstance().removeRefiller(mAppKey, getAdFormat(), mRefiller);
+            mRefiller = null;
+        }
 
         if (mFuture != null) {
             mFuture.cancel(true);
         }
+        if (mAdFetcher != null) {
+            mAdFetcher.cancel();
+        }
         if (mHandler != null) {
             mHandler.removeCallbacksAndMessages(null);
         }
@@ -225,6 +254,9 @@ public abstract class BaseAd extends Settings implements AdTargeting {
         if (mFuture != null) {
             mFuture.cancel(true);
         }
+        if (mAdFetcher != null) {
+            mAdFetcher.cancel();
+        }
         if (mHandler != null) {
             mHandler.removeCallbacksAndMessages(null);
         }
@@ -304,6 +336,10 @@ public abstract class BaseAd extends Settings implements AdTargeting {
                                    final LoopMeError error) {
 
                 stopRequestTimer();
+                if (params != null) {
+                    // video download starts while html of creative is loaded
+                    CacheWarmer.getInstance().warm(mContext, params.getVideoUrls());
+                }
                 if (params != null && !params.getPackageIds().isEmpty()) {
                     if (Utils.isPackageInstalled(params.getPackageIds())) {
                         List<String> installedPackages = Utils.getPackageInstalled(params.getPackageIds());
@@ -341,27 +377,93 @@ public abstract class BaseAd extends Settings implements AdTargeting {
         });
     }
 
-    private void proceedLoad() {
-        if (AdRequestParametersProvider.getInstance().getGoogleAdvertisingId() == null) {
-            Logging.out(LOG_TAG, "Start initialization google adv id");
-
-            detectGoogleAdvertisingId();
+    void proceedLoad() {
+        AdParams prefetched = AdInventory.getInstance().poll(mAppKey, getAdFormat());
+        if (prefetched != null) {
+            Logging.out(LOG_TAG, "Use prefetched ad");
+            mAdFetcherListener = initAdFetcherListener();
+            mAdFetcherListener.onComplete(prefetched, null);
+            return;
+        }
+        fetchAd();
+    }
 
-        } else {
-            fetchAd();
+    /**
+     * Keeps up to {@link AdInventory#MAX_DEPTH} ads of this placement prefetched in background,
+     * so next load doesn't wait for server response. 0 disables prefetching.
+     */
+    public void setPrefetchDepth(int depth) {
+        AdInventory inventory = AdInventory.getInstance();
+        inventory.setDepth(mAppKey, getAdFormat(), depth);
+        if (depth > 0) {
+            if (mRefiller == null) {
+                mRefiller = initRefiller();
+            }
+            inventory.setRefiller(mAppKey, getAdFormat(), mRefiller);
+            inventory.refillIfNeeded(mAppKey, getAdFormat());
         }
     }
 
-    private void detectGoogleAdvertisingId() {
-        AdvIdFetcher advTask = new AdvIdFetcher(mContext, new AdvIdFetcher.Listener() {
+    /**
+     * @return hit, miss and expired counters of prefetched ads of this placement
+     */
+    public AdInventory.Stats getPrefetchStats() {
+        return AdInventory.getInstance().getStats(mAppKey, getAdFormat());
+    }
 
+    private AdInventory.Refiller initRefiller() {
+        return new AdInventory.Refiller() {
             @Override
-            public void onComplete(String advId, boolean isLimited) {
-                AdRequestParametersProvider.getInstance().setGoogleAdvertisingId(advId, isLimited);
-                fetchAd();
+            public void refill(int count) {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        ExecutorHelper.getCpuExecutor().submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                prefetchAd();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // inventory is refilled on next poll
+                        Logging.out(LOG_TAG, "Prefetch is rejected: " + e.getMessage());
+                        AdInventory.getInstance().onRefillFailed(mAppKey, getAdFormat());
+                    }
+                }
             }
-        });
-        mFuture = ExecutorHelper.getExecutor().submit(advTask);
+        };
+    }
+
+    private void prefetchAd() {
+        final AdInventory inventory = AdInventory.getInstance();
+        final AdRequestParametersProvider provider = AdRequestParametersProvider.getInstance();
+        if (!Utils.isOnline(getContext())) {
+            inventory.onRefillFailed(mAppKey, getAdFormat());
+            return;
+        }
+        AdRequestPreparation preparation = new AdRequestPreparation(mContext);
+        if (!preparation.resolve()) {
+            inventory.onRefillFailed(mAppKey, getAdFormat());
+            return;
+        }
+        provider.setScreenSize();
+        String requestUrl = preparation.buildRequestUrl(mAppKey, mAdTargetingData, mIntegrationType,
+                provider.getAdSize(this));
+        if (requestUrl == null) {
+            inventory.onRefillFailed(mAppKey, getAdFormat());
+            return;
+        }
+        AdFetcher fetcher = new AdFetcher(requestUrl, new AdFetcher.Listener() {
+            @Override
+            public void onComplete(AdParams params, LoopMeError error) {
+                if (params != null) {
+                    inventory.offer(mAppKey, getAdFormat(), params);
+                    CacheWarmer.getInstance().warm(mContext, params.getVideoUrls());
+                } else {
+                    inventory.onRefillFailed(mAppKey, getAdFormat());
+                }
+            }
+        }, getAdFormat(), mAppKey);
+        ExecutorHelper.getNetworkExecutor().submit(fetcher);
     }
 
     protected void releaseViewController() {
@@ -373,12 +475,21 @@ public abstract class BaseAd extends Settings implements AdTargeting {
         }
     }
 
-    protected void startExpirationTimer() {
+    /**
+     * Timer gets remaining lifetime of ad, prefetched ad spent part of it in inventory.
+     *
+     * @return false if ad is already expired and shouldn't be shown
+     */
+    protected boolean startExpirationTimer() {
+        if (mAdParams != null && mAdParams.isExpired()) {
+            Logging.out(LOG_TAG, "Ad expired before it was loaded");
+            return false;
+        }
         if (mExpirationTimer != null || mAdParams == null ||
                 mAdController == null || !mAdController.isVideoPresented()) {
-            return;
+            return true;
         }
-        int validTime = mAdParams.getExpiredTime();
+        long validTime = mAdParams.getExpiryTimestamp() - System.currentTimeMillis();
         mExpirationListener = new ExpirationTimer.Listener() {
 
             @Override
@@ -388,6 +499,7 @@ public abstract class BaseAd extends Settings implements AdTargeting {
         };
         mExpirationTimer = new ExpirationTimer(validTime, mExpirationListener);
         mExpirationTimer.start();
+        return true;
     }
 
     protected void stopExpirationTimer() {
@@ -427,19 +539,62 @@ public abstract class BaseAd extends Settings implements AdTargeting {
         mFetcherTimerListener = null;
     }
 
+    /**
+     * Prepares ad for receiving response of request which is shared with other ads.
+     *
+     * @return listener which should receive ad params of this ad
+     */
+    AdFetcher.Listener startSharedRequest() {
+        mAdFetcherListener = initAdFetcherListener();
+        return mAdFetcherListener;
+    }
+
+    boolean isWaitingForResponse(AdFetcher.Listener listener) {
+        return listener != null && listener == mAdFetcherListener;
+    }
+
+    IntegrationType getIntegrationType() {
+        return mIntegrationType;
+    }
+
+    /**
+     * Resolves request inputs concurrently and submits request as soon as they are ready.
+     * Must not be called on main thread.
+     */
     protected void fetchAd() {
-        AdRequestParametersProvider.getInstance().setScreenSize();
-        AdRequestParametersProvider.getInstance().setAdSize(this);
-        mRequestUrl = new AdRequestUrlBuilder(mContext).buildRequestUrl(mAppKey, mAdTargetingData, mIntegrationType);
+        AdRequestPreparation preparation = new AdRequestPreparation(mContext);
+        boolean isResolved = preparation.resolve();
+        if (mAdState != AdState.LOADING) {
+            Logging.out(LOG_TAG, "Load was cancelled during request preparation");
+            return;
+        }
+        if (!isResolved) {
+            preparation.logTimings(mAppKey);
+            onAdLoadFail(new LoopMeError("Advertising id is not available"));
+            return;
+        }
+        AdRequestParametersProvider provider = AdRequestParametersProvider.getInstance();
+        provider.setScreenSize();
+        mRequestUrl = preparation.buildRequestUrl(mAppKey, mAdTargetingData, mIntegrationType,
+                provider.getAdSize(this));
+        preparation.logTimings(mAppKey);
         if (mRequestUrl == null) {
             onAdLoadFail(new LoopMeError("Error during building ad request url"));
             return;
         }
 
         mAdFetcherListener = initAdFetcherListener();
-        AdFetcher fetcher = new AdFetcher(mRequestUrl, mAdFetcherListener, getAdFormat(), mAppKey);
-        startRequestTimer();
-        mFuture = ExecutorHelper.getExecutor().submit(fetcher);
+        final AdFetcher fetcher = new AdFetcher(mRequestUrl, mAdFetcherListener, getAdFormat(), mAppKey);
+        mAdFetcher = fetcher;
+        mFuture = ExecutorHelper.getNetworkExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                // time spent in queue of network lane is not counted into request timeout
+                startRequestTimer();
+                fetcher.run();
+            }
+        });
+        Logging.out(LOG_TAG, "Ad request submitted in " + (System.currentTimeMillis() - mAdLoadingTimer) + " ms after load");
     }
 
     @Override
@@ -466,17 +621,37 @@ public abstract class BaseAd extends Settings implements AdTargeting {
         return mAdController;
     }
 
-    private void startRequestTimer() {
+    /**
+     * Must be called when request starts running, timeout is measured from that moment.
+     */
+    void startRequestTimer() {
         mHandler.post(new Runnable() {
             @Override
             public void run() {
+                if (mAdFetcherListener == null) {
+                    // load was cancelled while request was waiting for network lane
+                    return;
+                }
                 mRequestTimerListener = initTimerListener();
-                mRequestTimer = new RequestTimer(StaticParams.REQUEST_TIMEOUT, mRequestTimerListener);
+                mRequestTimer = new RequestTimer(getRequestTimeout(), mRequestTimerListener);
                 mRequestTimer.startTimer();
             }
         });
     }
 
+    /**
+     * Request timeout adapted to latency of current connection type, hedged request is taken into account.
+     */
+    private long getRequestTimeout() {
+        LatencyEstimator estimator = LatencyEstimator.getInstance();
+        int connectionType = LatencyEstimator.getCurrentConnectionType();
+        long timeout = estimator.getRequestTimeout(connectionType);
+        if (StaticParams.USE_HEDGED_REQUESTS) {
+            timeout += estimator.getHedgeDelay(connectionType);
+        }
+        return timeout;
+    }
+
     private void stopRequestTimer() {
         mHandler.post(new Runnable() {
             @Override
@@ -494,10 +669,16 @@ public abstract class BaseAd extends Settings implements AdTargeting {
 
             @Override
             public void onTimeout() {
-                if (mFuture != null && mAdFetcherListener != null) {
+                if (mAdFetcherListener != null) {
                     mAdFetcherListener = null;
-                    mFuture.cancel(true);
-                    mFuture = null;
+                    if (mFuture != null) {
+                        mFuture.cancel(true);
+                        mFuture = null;
+                    }
+                    if (mAdFetcher != null) {
+                        mAdFetcher.cancel();
+                        mAdFetcher = null;
+                    }
                 }
                 onAdLoadFail(new LoopMeError("Request timeout"));
                 ErrorLog.post("Request timeout", ErrorType.CUSTOM);
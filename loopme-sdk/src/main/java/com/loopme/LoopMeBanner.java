@@ -12,6 +12,9 @@ import com.loopme.common.ResponseParser;
 import com.loopme.common.StaticParams;
 import com.loopme.constants.AdFormat;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * The `LoopMeBanner` class provides facilities to display a custom size ads
  * during natural transition points in your application.
@@ -200,14 +203,32 @@ public class LoopMeBanner extends Settings {
     }
 
     public void load() {
+        AdBatchLoader.load(prepareLoad());
+    }
+
+    /**
+     * Prepares banner for loading without starting it,
+     * so ads of several banners can be requested together.
+     *
+     * @return ads which should be loaded
+     */
+    List<BaseAd> prepareLoad() {
+        List<BaseAd> ads = new ArrayList<BaseAd>();
         if (isLoadingPaused()) {
             onAutoLoadPaused();
-            return;
+            return ads;
         }
         stopSleepLoadTimer();
-        load(mFirstBanner);
+        addAd(ads, mFirstBanner);
         if (!ResponseParser.isApi19() && isAutoLoadingEnabled()) {
-            load(mSecondBanner);
+            addAd(ads, mSecondBanner);
+        }
+        return ads;
+    }
+
+    private void addAd(List<BaseAd> ads, BaseAd baseAd) {
+        if (baseAd != null) {
+            ads.add(baseAd);
         }
     }
 
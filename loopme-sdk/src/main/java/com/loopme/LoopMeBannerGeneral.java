@@ -19,6 +19,7 @@ import com.loopme.constants.VideoState;
 import com.loopme.constants.WebviewState;
 import com.loopme.debugging.ErrorLog;
 import com.loopme.debugging.LiveDebug;
+import com.loopme.debugging.LoopMeMetrics;
 
 /**
  * The `LoopMeBanner` class provides facilities to display a custom size ads
@@ -387,6 +388,7 @@ public class LoopMeBannerGeneral extends BaseAd {
         long loadingTime = currentTime - mAdLoadingTimer;
 
         Logging.out(LOG_TAG, "Ad successfully loaded (" + loadingTime + "ms)");
+        LoopMeMetrics.record(LoopMeMetrics.STAGE_TIME_TO_READY, loadingTime);
         mIsReady = true;
         mAdState = AdState.NONE;
         stopFetcherTimer();
@@ -10,6 +10,9 @@ import com.loopme.common.ResponseParser;
 import com.loopme.common.StaticParams;
 import com.loopme.constants.AdFormat;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * The `LoopMeInterstitial` class provides the facilities to display a full-screen ad
  * during natural transition points in your application.
@@ -90,9 +93,21 @@ public class LoopMeInterstitial extends Settings {
             onAutoLoadPaused();
             return;
         }
-        load(mFirstInterstitial);
+        AdBatchLoader.load(getAdsForLoading());
+    }
+
+    private List<BaseAd> getAdsForLoading() {
+        List<BaseAd> ads = new ArrayList<BaseAd>();
+        addAd(ads, mFirstInterstitial);
         if (!ResponseParser.isApi19() && isAutoLoadingEnabled()) {
-            load(mSecondInterstitial);
+            addAd(ads, mSecondInterstitial);
+        }
+        return ads;
+    }
+
+    private void addAd(List<BaseAd> ads, BaseAd baseAd) {
+        if (baseAd != null) {
+            ads.add(baseAd);
         }
     }
 
@@ -11,6 +11,7 @@ import com.loopme.constants.AdFormat;
 import com.loopme.constants.AdState;
 import com.loopme.debugging.ErrorLog;
 import com.loopme.debugging.LiveDebug;
+import com.loopme.debugging.LoopMeMetrics;
 
 /**
  * The `LoopMeInterstitial` class provides the facilities to display a full-screen ad
@@ -182,6 +183,7 @@ public final class LoopMeInterstitialGeneral extends BaseAd {
         long loadingTime = currentTime - mAdLoadingTimer;
 
         Logging.out(LOG_TAG, "Ad successfully loaded (" + loadingTime + "ms)");
+        LoopMeMetrics.record(LoopMeMetrics.STAGE_TIME_TO_READY, loadingTime);
         mIsReady = true;
         mAdState = AdState.NONE;
         stopFetcherTimer();
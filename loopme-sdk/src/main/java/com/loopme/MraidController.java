@@ -86,6 +86,9 @@ public class MraidController implements MraidBridge.OnMraidBridgeListener {
 
     @Override
     public void onLoadSuccess() {
+        if (mBaseAd.getAdController() != null) {
+            mBaseAd.getAdController().onHtmlPreloaded();
+        }
         mBaseAd.onAdLoadSuccess();
     }
 
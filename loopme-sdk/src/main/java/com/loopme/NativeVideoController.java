@@ -18,6 +18,7 @@ import com.loopme.common.Logging;
 import com.loopme.common.LoopMeError;
 import com.loopme.common.MinimizedMode;
 import com.loopme.constants.DisplayMode;
+import com.loopme.constants.DownloadPriority;
 import com.loopme.constants.WebviewState;
 import com.loopme.debugging.ErrorLog;
 
@@ -206,14 +207,16 @@ class NativeVideoController {
         }
 
         LoopMeBanner.Listener bannerListener = initBannerListener();
+        List<BaseAd> ads = new ArrayList<>();
         for (int i = 0; i < mAppKeysMap.size(); i++) {
             String appKey = mAppKeysMap.valueAt(i);
             LoopMeBanner banner = LoopMeBanner.getInstance(appKey, mActivity);
             if (banner != null) {
                 banner.setListener(bannerListener);
-                banner.load();
+                ads.addAll(banner.prepareLoad());
             }
         }
+        AdBatchLoader.load(ads);
     }
 
     private LoopMeBanner.Listener initBannerListener() {
@@ -313,12 +316,14 @@ class NativeVideoController {
                         banner.switchToMinimizedMode();
                     } else {
                         banner.pause();
+                        banner.getAdController().setVideoPriority(DownloadPriority.PREFETCH);
                     }
 
                 } else {
                     int childIndex = adIndex - first;
                     View view = listview.getChildAt(childIndex);
                     banner.switchToNormalMode();
+                    banner.getAdController().setVideoPriority(DownloadPriority.VISIBLE);
                     checkFiftyPersentVisibility(view, banner);
                 }
             }
@@ -387,12 +392,14 @@ class NativeVideoController {
                         banner.switchToMinimizedMode();
                     } else {
                         banner.pause();
+                        banner.getAdController().setVideoPriority(DownloadPriority.PREFETCH);
                     }
 
                 } else {
                     int childIndex = adIndex - first;
                     View view = recyclerView.getLayoutManager().getChildAt(childIndex);
                     banner.switchToNormalMode();
+                    banner.getAdController().setVideoPriority(DownloadPriority.VISIBLE);
                     checkFiftyPersentVisibility(view, banner);
                 }
             }
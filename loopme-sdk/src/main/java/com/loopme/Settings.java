@@ -1,5 +1,6 @@
 package com.loopme;
 
+import com.loopme.common.Logging;
 import com.loopme.common.StaticParams;
 
 public abstract class Settings {
@@ -17,6 +18,16 @@ public abstract class Settings {
         }
     }
 
+    /**
+     * Changes max size of video cache, least recently used videos are deleted when cache is bigger.
+     * Default size is 100 MB.
+     */
+    public void setVideoCacheSize(long bytes) {
+        if (bytes > 0) {
+            StaticParams.VIDEO_CACHE_MAX_SIZE = bytes;
+        }
+    }
+
     /**
      * Defines, should use mobile network for caching video or not.
      * By default, video will not cache on mobile network (only on wi-fi)
@@ -28,6 +39,28 @@ public abstract class Settings {
         StaticParams.USE_MOBILE_NETWORK_FOR_CACHING = b;
     }
 
+    /**
+     * Defines, should ads of one placement (or several native placements) be requested
+     * with one batched server request.
+     * By default, every ad is requested separately.
+     *
+     * @param b - true if need to request ads in batches
+     */
+    public void useBatchRequests(boolean b) {
+        StaticParams.USE_BATCH_REQUESTS = b;
+    }
+
+    /**
+     * Defines, should second ad request be sent when first one is slower than usual (95th percentile)
+     * for current connection type. First arrived response is used.
+     * By default, only one request is sent.
+     *
+     * @param b - true if need to send hedged requests
+     */
+    public void useHedgedRequests(boolean b) {
+        StaticParams.USE_HEDGED_REQUESTS = b;
+    }
+
     /**
      * Use it for figure out any problems during integration process.
      * We recommend to set it "false" after full integration and testing.
@@ -39,6 +72,16 @@ public abstract class Settings {
         StaticParams.DEBUG_MODE = mode;
     }
 
+    /**
+     * Skips log messages below given level, e.g. frequent progress messages.
+     * By default messages of all levels are written.
+     *
+     * @param level - one of {@link com.loopme.constants.LogLevel} values
+     */
+    public void setLogLevel(int level) {
+        Logging.setMinLevel(level);
+    }
+
     public boolean isAutoLoadingEnabled() {
         return sUserAutoLoadingValue && sBackendAutoLoadingValue;
     }
@@ -1,20 +1,21 @@
 package com.loopme;
 
-import android.content.Context;
+import android.annotation.TargetApi;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
-import android.net.Uri;
+import android.os.Build;
 import android.os.CountDownTimer;
 import android.os.Handler;
 import android.os.Looper;
-import android.text.TextUtils;
 import android.view.Surface;
 
 import com.loopme.adview.AdView;
 import com.loopme.common.Logging;
+import com.loopme.common.MappedVideoDataSource;
 import com.loopme.common.LoopMeError;
 import com.loopme.common.Utils;
 import com.loopme.constants.AdFormat;
+import com.loopme.constants.LogLevel;
 import com.loopme.constants.VideoState;
 import com.loopme.constants.WebviewState;
 import com.loopme.debugging.ErrorLog;
@@ -28,28 +29,22 @@ import static com.loopme.common.EventManager.EVENT_VIDEO_50;
 import static com.loopme.common.EventManager.EVENT_VIDEO_75;
 
 class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener,
-        MediaPlayer.OnCompletionListener {
+        MediaPlayer.OnCompletionListener, MediaPlayer.OnInfoListener {
 
-    private static final String LOG_TAG = VideoController.class.getSimpleName();
+    private static final Logging.Tag LOG_TAG = Logging.tag(VideoController.class);
     private static final int BUFFERING_MILLIS_IN_FUTURE = 2000;
     private static final int BUFFERING_COUNTDOWN_INTERVAL = 1000;
     private final long DELAY_TIME = 200;
     private volatile MediaPlayer mMediaPlayer;
     private int mVideoDuration;
-    private int mVideoPositionWhenError;
     private boolean mMuteState = false;
     private boolean mWasError;
     private boolean mIsSurfaceTextureAvailable;
-    private boolean mWaitForVideo;
 
     private Handler mHandler;
     private Runnable mRunnable;
 
     private AdView mAdView;
-    private Context mContext;
-
-    private String mFileRest;
-
     private Callback mCallback;
     private Surface mSurface;
 
@@ -91,7 +86,6 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
     public VideoController(AdView adView, Callback callback, String appKey, int format, OnMoatEventListener onMoatEventListener) {
         mAdView = adView;
         mCallback = callback;
-        mContext = adView.getContext();
         mAppKey = appKey;
         mFormat = format;
         mHandler = new Handler(Looper.getMainLooper());
@@ -126,6 +120,7 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
                     return;
                 }
                 mCurrentPosition = getCurrentPosition();
+                Logging.log(LogLevel.DEBUG, LOG_TAG, "Progress {} of {} ms", mCurrentPosition, mVideoDuration);
                 mAdView.setVideoCurrentTime(mCurrentPosition);
                 updateCurrentVolume();
                 if (mCurrentPosition < mVideoDuration) {
@@ -157,22 +152,6 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
         }
     }
 
-    public void waitForVideo() {
-        if (mWaitForVideo) {
-            releasePlayer();
-            initPlayer(mFileRest);
-            setSurface(mSurface);
-
-            if (mAdView.getCurrentWebViewState() == WebviewState.VISIBLE) {
-                startMediaPlayer();
-            }
-            seekTo(mVideoPositionWhenError);
-            mHandler.postDelayed(mRunnable, DELAY_TIME);
-
-            setVideoState(VideoState.PLAYING);
-        }
-    }
-
     public void seekTo(int position) {
         if (mMediaPlayer != null) {
             mMediaPlayer.seekTo(position);
@@ -185,7 +164,9 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
         mMediaPlayer.setOnPreparedListener(this);
 
         try {
-            mMediaPlayer.setDataSource(filePath);
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M || !setMappedDataSource(filePath)) {
+                mMediaPlayer.setDataSource(filePath);
+            }
             mMediaPlayer.prepareAsync();
 
         } catch (IllegalStateException | IOException e) {
@@ -194,9 +175,19 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
         }
     }
 
-    private void initPlayer(String filePath) {
-        mMediaPlayer = MediaPlayer.create(mContext, Uri.parse(filePath));
-        initPlayerListeners();
+    /**
+     * Player closes data source when it is reset or released.
+     *
+     * @return false if file can't be mapped
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private boolean setMappedDataSource(String filePath) {
+        MappedVideoDataSource dataSource = MappedVideoDataSource.create(filePath);
+        if (dataSource == null) {
+            return false;
+        }
+        mMediaPlayer.setDataSource(dataSource);
+        return true;
     }
 
     private void initPlayerListeners() {
@@ -204,6 +195,7 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
             mMediaPlayer.setLooping(false);
             mMediaPlayer.setOnErrorListener(this);
             mMediaPlayer.setOnCompletionListener(this);
+            mMediaPlayer.setOnInfoListener(this);
             mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
         }
     }
@@ -224,7 +216,7 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
 
     private void applyMuteSettings() {
         if (mMediaPlayer != null) {
-            Logging.out(LOG_TAG, "applyMuteSettings " + mMuteState);
+            Logging.log(LogLevel.INFO, LOG_TAG, "applyMuteSettings {}", mMuteState);
             muteVideo(mMuteState);
         }
     }
@@ -262,7 +254,7 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
                 if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
                     return;
                 }
-                Logging.out(LOG_TAG, "Play video " + time);
+                Logging.log(LogLevel.INFO, LOG_TAG, "Play video {}", time);
                 applyMuteSettings();
                 if (time == 10) {
                     mMediaPlayer.seekTo(0);
@@ -296,10 +288,6 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
         }
     }
 
-    public void setFileRest(String filePath) {
-        mFileRest = filePath;
-    }
-
     @Override
     public void onCompletion(MediaPlayer mp) {
         if (mAdView.getCurrentVideoState() != VideoState.COMPLETE) {
@@ -320,29 +308,10 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
-        Logging.out(LOG_TAG, "onError: " + extra);
+        Logging.log(LogLevel.ERROR, LOG_TAG, "onError: {}", extra);
 
         mHandler.removeCallbacks(mRunnable);
         destroyListeners();
-        if (extra == MediaPlayer.MEDIA_ERROR_IO) {
-            Logging.out(LOG_TAG, "end of preview file");
-            if (!TextUtils.isEmpty(mFileRest)) {
-                mVideoPositionWhenError = mp.getCurrentPosition();
-                releasePlayer();
-                initPlayer(mFileRest);
-                setSurface(mSurface);
-                startMediaPlayer();
-                mMediaPlayer.seekTo(mVideoPositionWhenError);
-                mHandler.postDelayed(mRunnable, DELAY_TIME);
-
-            } else {
-                mWaitForVideo = true;
-                mVideoPositionWhenError = mp.getCurrentPosition();
-                setVideoState(VideoState.BUFFERING);
-                startBuffering();
-            }
-            return true;
-        }
         if (mAdView.getCurrentVideoState() == VideoState.BROKEN ||
                 mAdView.getCurrentVideoState() == VideoState.IDLE) {
             onFail();
@@ -356,6 +325,27 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
         return true;
     }
 
+    /**
+     * Video which is streamed while it is downloaded can wait for data.
+     */
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+            Logging.out(LOG_TAG, "buffering");
+            setVideoState(VideoState.BUFFERING);
+            startBuffering();
+            return true;
+        }
+        if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+            stopBuffering();
+            if (mp.isPlaying()) {
+                setVideoState(VideoState.PLAYING);
+            }
+            return true;
+        }
+        return false;
+    }
+
     private void startMediaPlayer() {
         if (mMediaPlayer != null) {
             mMediaPlayer.start();
@@ -369,6 +359,7 @@ class VideoController implements MediaPlayer.OnPreparedListener, MediaPlayer.OnE
         if (mMediaPlayer != null) {
             mMediaPlayer.setOnErrorListener(null);
             mMediaPlayer.setOnCompletionListener(null);
+            mMediaPlayer.setOnInfoListener(null);
         }
     }
 
@@ -0,0 +1,225 @@
+package com.loopme.common;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Prefetched ad responses, which are ready to be used without server request.
+ * Every placement (app key and format) has bounded queue, ads which expire sooner are used first.
+ * Expired ads are removed lazily on poll.
+ * Prefetching is disabled until depth of placement is set.
+ */
+public class AdInventory {
+
+    private static final String LOG_TAG = AdInventory.class.getSimpleName();
+
+    public static final int MAX_DEPTH = 5;
+
+    private static AdInventory sInventory;
+
+    private final Map<String, Placement> mPlacements = new HashMap<>();
+
+    public interface Refiller {
+        /**
+         * Requests new ads for placement, every result should be passed to {@link #offer}
+         * or {@link #onRefillFailed}
+         */
+        void refill(int count);
+    }
+
+    AdInventory() {
+    }
+
+    public static synchronized AdInventory getInstance() {
+        if (sInventory == null) {
+            sInventory = new AdInventory();
+        }
+        return sInventory;
+    }
+
+    /**
+     * Sets amount of ads which should be kept ready for placement.
+     *
+     * @param depth - from 0 (prefetching disabled) to {@link #MAX_DEPTH}
+     */
+    public synchronized void setDepth(String appKey, int format, int depth) {
+        getPlacement(appKey, format).mDepth = Math.max(0, Math.min(depth, MAX_DEPTH));
+    }
+
+    public synchronized boolean isEnabled(String appKey, int format) {
+        Placement placement = mPlacements.get(buildKey(appKey, format));
+        return placement != null && placement.mDepth > 0;
+    }
+
+    public synchronized void setRefiller(String appKey, int format, Refiller refiller) {
+        getPlacement(appKey, format).mRefiller = refiller;
+    }
+
+    /**
+     * Takes ready ad for placement and schedules refill.
+     *
+     * @return ad params or null if there are no valid ads
+     */
+    public AdParams poll(String appKey, int format) {
+        AdParams result = null;
+        synchronized (this) {
+            Placement placement = mPlacements.get(buildKey(appKey, format));
+            if (placement == null || placement.mDepth == 0) {
+                return null;
+            }
+            while (!placement.mQueue.isEmpty() && result == null) {
+                AdParams params = placement.mQueue.poll();
+                if (params.isExpired()) {
+                    placement.mExpiredCount++;
+                } else {
+                    result = params;
+                }
+            }
+            if (result != null) {
+                placement.mHitCount++;
+            } else {
+                placement.mMissCount++;
+            }
+            Logging.out(LOG_TAG, (result != null ? "Hit " : "Miss ") + buildKey(appKey, format));
+        }
+        refillIfNeeded(appKey, format);
+        return result;
+    }
+
+    public synchronized void offer(String appKey, int format, AdParams params) {
+        Placement placement = getPlacement(appKey, format);
+        placement.mPendingCount = Math.max(0, placement.mPendingCount - 1);
+        if (params == null || params.isExpired() || placement.mDepth == 0) {
+            return;
+        }
+        placement.mQueue.offer(params);
+        while (placement.mQueue.size() > placement.mDepth) {
+            removeLatestExpiring(placement.mQueue);
+        }
+    }
+
+    /**
+     * Removes refiller if it is still registered for placement, ready ads are kept.
+     */
+    public synchronized void removeRefiller(String appKey, int format, Refiller refiller) {
+        Placement placement = mPlacements.get(buildKey(appKey, format));
+        if (placement != null && placement.mRefiller == refiller) {
+            placement.mRefiller = null;
+        }
+    }
+
+    public synchronized void onRefillFailed(String appKey, int format) {
+        Placement placement = getPlacement(appKey, format);
+        placement.mPendingCount = Math.max(0, placement.mPendingCount - 1);
+    }
+
+    /**
+     * Requests missing ads of placement in background.
+     */
+    public void refillIfNeeded(String appKey, int format) {
+        Refiller refiller;
+        int count;
+        synchronized (this) {
+            Placement placement = mPlacements.get(buildKey(appKey, format));
+            if (placement == null || placement.mRefiller == null) {
+                return;
+            }
+            count = placement.mDepth - placement.mQueue.size() - placement.mPendingCount;
+            if (count <= 0) {
+                return;
+            }
+            placement.mPendingCount += count;
+            refiller = placement.mRefiller;
+        }
+        Logging.out(LOG_TAG, "Refill " + count + " ad(s) for " + buildKey(appKey, format));
+        refiller.refill(count);
+    }
+
+    public synchronized Stats getStats(String appKey, int format) {
+        Placement placement = getPlacement(appKey, format);
+        return new Stats(placement.mHitCount, placement.mMissCount, placement.mExpiredCount,
+                placement.mQueue.size());
+    }
+
+    public synchronized void clear() {
+        mPlacements.clear();
+    }
+
+    private void removeLatestExpiring(PriorityQueue<AdParams> queue) {
+        AdParams latest = null;
+        for (AdParams params : queue) {
+            if (latest == null || params.getExpiryTimestamp() > latest.getExpiryTimestamp()) {
+                latest = params;
+            }
+        }
+        queue.remove(latest);
+    }
+
+    private Placement getPlacement(String appKey, int format) {
+        String key = buildKey(appKey, format);
+        Placement placement = mPlacements.get(key);
+        if (placement == null) {
+            placement = new Placement();
+            mPlacements.put(key, placement);
+        }
+        return placement;
+    }
+
+    private static String buildKey(String appKey, int format) {
+        return appKey + ":" + format;
+    }
+
+    /**
+     * Counters of placement, can be used to tune depth of placement
+     */
+    public static class Stats {
+
+        private final long mHitCount;
+        private final long mMissCount;
+        private final long mExpiredCount;
+        private final int mSize;
+
+        private Stats(long hitCount, long missCount, long expiredCount, int size) {
+            mHitCount = hitCount;
+            mMissCount = missCount;
+            mExpiredCount = expiredCount;
+            mSize = size;
+        }
+
+        public long getHitCount() {
+            return mHitCount;
+        }
+
+        public long getMissCount() {
+            return mMissCount;
+        }
+
+        public long getExpiredCount() {
+            return mExpiredCount;
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+    }
+
+    private static class Placement {
+
+        private final PriorityQueue<AdParams> mQueue = new PriorityQueue<>(MAX_DEPTH, new Comparator<AdParams>() {
+            @Override
+            public int compare(AdParams lhs, AdParams rhs) {
+                long lhsTime = lhs.getExpiryTimestamp();
+                long rhsTime = rhs.getExpiryTimestamp();
+                return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+            }
+        });
+        private int mDepth;
+        private int mPendingCount;
+        private Refiller mRefiller;
+        private long mHitCount;
+        private long mMissCount;
+        private long mExpiredCount;
+    }
+}
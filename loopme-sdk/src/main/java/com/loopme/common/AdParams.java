@@ -19,9 +19,11 @@ public class AdParams {
     private final String mFormat;
     private final String mOrientation;
     private final int mExpiredDate;
+    private final long mReceivedTime;
 
     private List<String> mPackageIds = new ArrayList<String>();
     private List<String> mTrackers = new ArrayList<>();
+    private List<String> mVideoUrls = new ArrayList<>();
     private String mToken;
 
     private boolean mPartPreload;
@@ -38,9 +40,11 @@ public class AdParams {
         mExpiredDate = builder.mBuilderExpiredDate == 0 ?
                 StaticParams.DEFAULT_EXPIRED_TIME :
                 builder.mBuilderExpiredDate;
+        mReceivedTime = System.currentTimeMillis();
 
         mPackageIds = builder.mPackageIds;
         mTrackers = builder.mTrackers;
+        mVideoUrls = builder.mVideoUrls;
         mToken = builder.mToken;
 
         mPartPreload = builder.mPartPreload;
@@ -82,6 +86,17 @@ public class AdParams {
         return mExpiredDate;
     }
 
+    /**
+     * @return time in millis when ad expires, counted from receiving of response
+     */
+    public long getExpiryTimestamp() {
+        return mReceivedTime + mExpiredDate;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= getExpiryTimestamp();
+    }
+
     public List<String> getPackageIds() {
         return mPackageIds;
     }
@@ -89,6 +104,14 @@ public class AdParams {
     public List<String> getTrackers(){
         return mTrackers;
     }
+
+    /**
+     * @return video urls found in ad script, they can be cached before creative requests them
+     */
+    public List<String> getVideoUrls() {
+        return mVideoUrls;
+    }
+
     public String getToken() {
         return mToken;
     }
@@ -120,6 +143,7 @@ public class AdParams {
         private boolean mMraid;
         private boolean mAutoloading;
         private List<String> mTrackers = new ArrayList<>();
+        private List<String> mVideoUrls = new ArrayList<>();
 
         public AdParamsBuilder(String format) {
             mBuilderFormat = format;
@@ -135,6 +159,11 @@ public class AdParams {
             return this;
         }
 
+        public AdParamsBuilder videoUrls(List<String> videoUrls) {
+            mVideoUrls = videoUrls;
+            return this;
+        }
+
         public AdParamsBuilder partPreload(boolean preload) {
             mPartPreload = preload;
             return this;
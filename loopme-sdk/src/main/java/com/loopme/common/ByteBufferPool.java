@@ -0,0 +1,55 @@
+package com.loopme.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers for download writes. Buffers are allocated outside of java heap once
+ * and reused by next downloads, so copying of video data doesn't produce garbage.
+ */
+class ByteBufferPool {
+
+    static final int BUFFER_SIZE = 1024 * 64;
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final ArrayDeque<ByteBuffer> sBuffers = new ArrayDeque<>();
+    private static int sAllocatedCount;
+
+    private ByteBufferPool() {
+    }
+
+    static ByteBuffer acquire() {
+        synchronized (sBuffers) {
+            ByteBuffer buffer = sBuffers.pollFirst();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+            sAllocatedCount++;
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Buffer must not be used after release. Buffers above pool capacity are left to GC.
+     */
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != BUFFER_SIZE) {
+            return;
+        }
+        synchronized (sBuffers) {
+            if (sBuffers.size() < MAX_POOLED_BUFFERS) {
+                sBuffers.offerFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return count of buffers which were allocated since start, for debugging of pool usage
+     */
+    static int getAllocatedCount() {
+        synchronized (sBuffers) {
+            return sAllocatedCount;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.loopme.common;
+
+import android.content.Context;
+
+import com.loopme.constants.ConnectionType;
+import com.loopme.constants.DownloadPriority;
+import com.loopme.request.AdRequestParametersProvider;
+import com.loopme.request.BatteryInfoCache;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Downloads videos of received ads before creative requests them, so video load is usually
+ * answered from cache. Videos are loaded one by one and only on Wi-Fi (or mobile network if
+ * it is allowed for caching), while device is charging or battery is not low.
+ */
+public class CacheWarmer {
+
+    private static final String LOG_TAG = CacheWarmer.class.getSimpleName();
+
+    private static final int MAX_QUEUE_SIZE = 8;
+    private static final float MIN_BATTERY_LEVEL = 0.2f;
+
+    private static CacheWarmer sWarmer;
+
+    private final ArrayDeque<String> mQueue = new ArrayDeque<>();
+    private Context mContext;
+    private String mCurrentUrl;
+
+    private CacheWarmer() {
+    }
+
+    public static synchronized CacheWarmer getInstance() {
+        if (sWarmer == null) {
+            sWarmer = new CacheWarmer();
+        }
+        return sWarmer;
+    }
+
+    public void warm(Context context, List<String> videoUrls) {
+        if (context == null || videoUrls == null || videoUrls.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            mContext = context.getApplicationContext();
+            for (String url : videoUrls) {
+                if (mQueue.size() < MAX_QUEUE_SIZE && !url.equals(mCurrentUrl) && !mQueue.contains(url)) {
+                    mQueue.add(url);
+                }
+            }
+        }
+        startNext();
+    }
+
+    private void startNext() {
+        final String url;
+        final Context context;
+        synchronized (this) {
+            if (mCurrentUrl != null || mQueue.isEmpty()) {
+                return;
+            }
+            if (!canWarm(mContext)) {
+                Logging.out(LOG_TAG, "Constraints are not met, " + mQueue.size() + " video(s) skipped");
+                mQueue.clear();
+                return;
+            }
+            url = mQueue.poll();
+            context = mContext;
+            mCurrentUrl = url;
+        }
+        try {
+            ExecutorHelper.getNetworkExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    load(context, url);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // warming is optional, queued videos are warmed by next ad
+            Logging.out(LOG_TAG, "Warming is rejected: " + e.getMessage());
+            synchronized (this) {
+                mCurrentUrl = null;
+                mQueue.clear();
+            }
+        }
+    }
+
+    private void load(Context context, final String url) {
+        VideoCache cache = VideoCache.getInstance(context);
+        if (cache == null || cache.get(url) != null) {
+            onWarmFinished();
+            return;
+        }
+        Logging.out(LOG_TAG, "Warm " + url);
+        VideoDownloadManager.Listener listener = new VideoDownloadManager.Listener() {
+            @Override
+            public void onPreviewReady(String streamUrl) {
+            }
+
+            @Override
+            public void onComplete(File file) {
+                VideoDownloadManager.getInstance().unsubscribe(url, this);
+                onWarmFinished();
+            }
+
+            @Override
+            public void onError(String message) {
+                Logging.out(LOG_TAG, "Can't warm " + url + ": " + message);
+                VideoDownloadManager.getInstance().unsubscribe(url, this);
+                onWarmFinished();
+            }
+        };
+        VideoDownloadManager.getInstance().subscribe(cache, url, false, DownloadPriority.PREFETCH, listener);
+    }
+
+    private void onWarmFinished() {
+        synchronized (this) {
+            mCurrentUrl = null;
+        }
+        startNext();
+    }
+
+    private boolean canWarm(Context context) {
+        int connectionType = AdRequestParametersProvider.getInstance().getConnectionType(context);
+        if (connectionType != ConnectionType.WIFI && !StaticParams.USE_MOBILE_NETWORK_FOR_CACHING) {
+            return false;
+        }
+        BatteryInfoCache battery = BatteryInfoCache.getInstance();
+        return battery.isCharging() || getBatteryLevel(battery) >= MIN_BATTERY_LEVEL;
+    }
+
+    /**
+     * @return charge level from 0 to 1, or 1 if it is unknown
+     */
+    private float getBatteryLevel(BatteryInfoCache battery) {
+        try {
+            float level = Float.parseFloat(battery.getBatteryInfo()[0]);
+            return level < 0 ? 1 : level;
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.loopme.common;
+
+import com.loopme.constants.DownloadPriority;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Decides which video downloads run, so downloads don't fight for bandwidth.
+ * Download with higher {@link DownloadPriority} runs first, count of running downloads
+ * is capped globally and per host. When download waits for slot which is taken by download
+ * with lower priority, the latter is paused until slot is free again.
+ * Scheduler is called from main thread, network and download lanes. Decisions are queued in order
+ * they are made and applied by one thread at a time, so task isn't left paused by stale resume.
+ */
+class DownloadScheduler {
+
+    private static final String LOG_TAG = DownloadScheduler.class.getSimpleName();
+
+    private static final int MAX_RUNNING = 3;
+    private static final int MAX_RUNNING_PER_HOST = 2;
+
+    private static DownloadScheduler sScheduler;
+
+    private final List<Entry> mEntries = new ArrayList<>();
+    /**
+     * Decisions which are not applied yet, in order they were made
+     */
+    private final Queue<Action> mActions = new ArrayDeque<>();
+    private long mOrder;
+    private boolean mIsDispatching;
+
+    interface Task {
+        /**
+         * Called once, when task gets slot first time
+         */
+        void start();
+
+        void pause();
+
+        void resume();
+    }
+
+    DownloadScheduler() {
+    }
+
+    static synchronized DownloadScheduler getInstance() {
+        if (sScheduler == null) {
+            sScheduler = new DownloadScheduler();
+        }
+        return sScheduler;
+    }
+
+    void add(Task task, String url, int priority) {
+        synchronized (this) {
+            mEntries.add(new Entry(task, getHost(url), priority, mOrder++));
+        }
+        reschedule();
+    }
+
+    void setPriority(Task task, int priority) {
+        synchronized (this) {
+            Entry entry = find(task);
+            if (entry == null || entry.mPriority == priority) {
+                return;
+            }
+            Logging.out(LOG_TAG, "Priority " + DownloadPriority.toString(entry.mPriority)
+                    + " -> " + DownloadPriority.toString(priority));
+            entry.mPriority = priority;
+        }
+        reschedule();
+    }
+
+    /**
+     * Frees slot of finished or cancelled task.
+     */
+    void remove(Task task) {
+        synchronized (this) {
+            Entry entry = find(task);
+            if (entry == null) {
+                return;
+            }
+            mEntries.remove(entry);
+        }
+        reschedule();
+    }
+
+    /**
+     * Tasks are started, paused and resumed outside of lock, so they can call scheduler.
+     * Actions of such call are queued behind the ones which are applied.
+     */
+    private void reschedule() {
+        List<Entry> paused = new ArrayList<>();
+        List<Entry> started = new ArrayList<>();
+        List<Entry> resumed = new ArrayList<>();
+        synchronized (this) {
+            List<Entry> waiting = new ArrayList<>();
+            for (Entry entry : mEntries) {
+                if (!entry.mIsRunning) {
+                    waiting.add(entry);
+                }
+            }
+            Collections.sort(waiting, new EntryComparator());
+            for (Entry entry : waiting) {
+                if (!hasSlot(entry.mHost)) {
+                    Entry victim = findVictim(entry);
+                    if (victim == null) {
+                        continue;
+                    }
+                    victim.mIsRunning = false;
+                    paused.add(victim);
+                }
+                entry.mIsRunning = true;
+                (entry.mIsStarted ? resumed : started).add(entry);
+                entry.mIsStarted = true;
+            }
+            // paused tasks free their connections before other ones take slots
+            for (Entry entry : paused) {
+                mActions.add(new Action(entry.mTask, Action.PAUSE));
+            }
+            for (Entry entry : resumed) {
+                mActions.add(new Action(entry.mTask, Action.RESUME));
+            }
+            for (Entry entry : started) {
+                mActions.add(new Action(entry.mTask, Action.START));
+            }
+            if (mIsDispatching || mActions.isEmpty()) {
+                // thread which dispatches applies these actions too
+                return;
+            }
+            mIsDispatching = true;
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (true) {
+            Action action;
+            synchronized (this) {
+                action = mActions.poll();
+                if (action == null) {
+                    mIsDispatching = false;
+                    return;
+                }
+            }
+            action.apply();
+        }
+    }
+
+    private boolean hasSlot(String host) {
+        int running = 0;
+        int runningOnHost = 0;
+        for (Entry entry : mEntries) {
+            if (entry.mIsRunning) {
+                running++;
+                if (entry.mHost.equals(host)) {
+                    runningOnHost++;
+                }
+            }
+        }
+        return running < MAX_RUNNING && runningOnHost < MAX_RUNNING_PER_HOST;
+    }
+
+    /**
+     * @return running entry with lower priority, which frees slot for entry, or null
+     */
+    private Entry findVictim(Entry entry) {
+        int runningOnHost = 0;
+        for (Entry running : mEntries) {
+            if (running.mIsRunning && running.mHost.equals(entry.mHost)) {
+                runningOnHost++;
+            }
+        }
+        boolean isHostFull = runningOnHost >= MAX_RUNNING_PER_HOST;
+        Entry victim = null;
+        for (Entry running : mEntries) {
+            if (!running.mIsRunning || running.mPriority <= entry.mPriority
+                    || (isHostFull && !running.mHost.equals(entry.mHost))) {
+                continue;
+            }
+            // the least important and the latest one is paused
+            if (victim == null || running.mPriority > victim.mPriority
+                    || (running.mPriority == victim.mPriority && running.mOrder > victim.mOrder)) {
+                victim = running;
+            }
+        }
+        return victim;
+    }
+
+    private Entry find(Task task) {
+        for (Entry entry : mEntries) {
+            if (entry.mTask == task) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    private static class Entry {
+
+        private final Task mTask;
+        private final String mHost;
+        private final long mOrder;
+        private int mPriority;
+        private boolean mIsRunning;
+        private boolean mIsStarted;
+
+        private Entry(Task task, String host, int priority, long order) {
+            mTask = task;
+            mHost = host;
+            mPriority = priority;
+            mOrder = order;
+        }
+    }
+
+    private static class Action {
+
+        private static final int PAUSE = 0;
+        private static final int RESUME = 1;
+        private static final int START = 2;
+
+        private final Task mTask;
+        private final int mType;
+
+        private Action(Task task, int type) {
+            mTask = task;
+            mType = type;
+        }
+
+        private void apply() {
+            switch (mType) {
+                case PAUSE:
+                    mTask.pause();
+                    break;
+
+                case RESUME:
+                    mTask.resume();
+                    break;
+
+                default:
+                    mTask.start();
+                    break;
+            }
+        }
+    }
+
+    private static class EntryComparator implements Comparator<Entry> {
+
+        @Override
+        public int compare(Entry first, Entry second) {
+            if (first.mPriority != second.mPriority) {
+                return first.mPriority < second.mPriority ? -1 : 1;
+            }
+            return first.mOrder < second.mOrder ? -1 : (first.mOrder == second.mOrder ? 0 : 1);
+        }
+    }
+}
@@ -2,13 +2,8 @@ package com.loopme.common;
 
 import android.net.Uri;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class EventManager {
 
@@ -53,27 +48,9 @@ public class EventManager {
      * in AdResponse we have the list of package ids of this app.
      * We check if this package already installed, we send this event to server,
      * and it will not send us this ads any more.
+     * Event is kept in {@link TelemetryQueue} until it is delivered.
      */
     public void trackSdkEvent(String token) {
-        ExecutorService executor = Executors.newCachedThreadPool();
-        final String eventUrl = build(token);
-        executor.submit(new Runnable() {
-
-            @Override
-            public void run() {
-                HttpURLConnection urlConnection = null;
-                try {
-                    URL url = new URL(eventUrl);
-                    urlConnection = (HttpURLConnection) url.openConnection();
-                    urlConnection.getInputStream();
-                } catch (IOException e) {
-                    Logging.out(LOG_TAG, String.valueOf(e));
-                } finally {
-                    if (urlConnection != null) {
-                        urlConnection.disconnect();
-                    }
-                }
-            }
-        });
+        TelemetryQueue.getInstance().enqueueGet(build(token));
     }
 }
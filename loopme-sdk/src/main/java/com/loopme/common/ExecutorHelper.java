@@ -1,26 +1,287 @@
 package com.loopme.common;
 
+import android.os.Looper;
+import android.os.Process;
+
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * SDK scheduler. All background work goes to one of bounded lanes:
+ * network - short http requests: ad requests, advertising id, events,
+ * download - workers of video downloads, they hold connection for long time,
+ * so they can't delay ad requests,
+ * disk - file and database operations, one thread executes tasks in order of submission,
+ * cpu - parsing and load orchestration,
+ * telemetry - low priority reports, oldest report is dropped when lane is overloaded,
+ * streaming - local proxy which feeds video player, its tasks block while data is downloaded,
+ * so they are kept apart from network lane,
+ * accept - single thread which accepts connections of local proxy, so it doesn't take streaming thread.
+ * <p>
+ * When queue of network, download or cpu lane is full, task is executed by calling thread (back-pressure).
+ * Disk tasks must not run concurrently or out of order, so background thread which submits to full
+ * disk lane waits for room in queue instead; task submitted from disk lane itself is rejected,
+ * its thread can't wait for itself.
+ * Main thread is never blocked: task submitted from main thread to full lane is rejected with
+ * {@link RejectedExecutionException}, so caller can fail its operation.
+ * Shutdown hook stops lanes on normal JVM exit only, e.g. in unit tests. Android kills app process
+ * without running it, so disk writes must not rely on it.
+ */
 public class ExecutorHelper {
 
-    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
-    private static final ExecutorService sSingleExecutor =
-            Executors.newSingleThreadExecutor();
+    private static final String LOG_TAG = ExecutorHelper.class.getSimpleName();
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 2;
+
+    private static final int NETWORK_THREADS = 4;
+    private static final int NETWORK_QUEUE_SIZE = 128;
+    /**
+     * Running downloads times connections per download
+     */
+    private static final int DOWNLOAD_THREADS = 9;
+    private static final int DOWNLOAD_QUEUE_SIZE = 32;
+    private static final int DISK_QUEUE_SIZE = 256;
+    private static final int CPU_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int CPU_QUEUE_SIZE = 128;
+    private static final int TELEMETRY_QUEUE_SIZE = 64;
+    private static final int STREAMING_THREADS = 4;
+    private static final int STREAMING_QUEUE_SIZE = 4;
+    private static final int ACCEPT_QUEUE_SIZE = 1;
+
+    private static ThreadPoolExecutor sNetworkExecutor;
+    private static ThreadPoolExecutor sDownloadExecutor;
+    private static ThreadPoolExecutor sDiskExecutor;
+    private static ThreadPoolExecutor sCpuExecutor;
+    private static ThreadPoolExecutor sTelemetryExecutor;
+    private static ThreadPoolExecutor sStreamingExecutor;
+    private static ThreadPoolExecutor sAcceptExecutor;
+
+    /**
+     * Name of lane which owns current thread, null for other threads
+     */
+    private static final ThreadLocal<String> sLaneName = new ThreadLocal<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        }, "LoopMe-shutdown"));
+    }
 
     private ExecutorHelper() {
     }
 
+    public static synchronized ExecutorService getNetworkExecutor() {
+        if (isTerminated(sNetworkExecutor)) {
+            sNetworkExecutor = createLane("network", NETWORK_THREADS, NETWORK_QUEUE_SIZE,
+                    Process.THREAD_PRIORITY_BACKGROUND, new BackPressurePolicy());
+        }
+        return sNetworkExecutor;
+    }
+
+    public static synchronized ExecutorService getDownloadExecutor() {
+        if (isTerminated(sDownloadExecutor)) {
+            sDownloadExecutor = createLane("download", DOWNLOAD_THREADS, DOWNLOAD_QUEUE_SIZE,
+                    Process.THREAD_PRIORITY_BACKGROUND, new BackPressurePolicy());
+        }
+        return sDownloadExecutor;
+    }
+
+    public static synchronized ExecutorService getDiskExecutor() {
+        if (isTerminated(sDiskExecutor)) {
+            sDiskExecutor = createLane("disk", 1, DISK_QUEUE_SIZE,
+                    Process.THREAD_PRIORITY_BACKGROUND, new WaitPolicy("disk"));
+        }
+        return sDiskExecutor;
+    }
+
+    public static synchronized ExecutorService getCpuExecutor() {
+        if (isTerminated(sCpuExecutor)) {
+            sCpuExecutor = createLane("cpu", CPU_THREADS, CPU_QUEUE_SIZE,
+                    Process.THREAD_PRIORITY_BACKGROUND, new BackPressurePolicy());
+        }
+        return sCpuExecutor;
+    }
+
+    public static synchronized ExecutorService getTelemetryExecutor() {
+        if (isTerminated(sTelemetryExecutor)) {
+            sTelemetryExecutor = createLane("telemetry", 1, TELEMETRY_QUEUE_SIZE,
+                    Process.THREAD_PRIORITY_LOWEST, new ThreadPoolExecutor.DiscardOldestPolicy());
+        }
+        return sTelemetryExecutor;
+    }
+
+    /**
+     * Rejected task throws {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    public static synchronized ExecutorService getStreamingExecutor() {
+        if (isTerminated(sStreamingExecutor)) {
+            sStreamingExecutor = createLane("streaming", STREAMING_THREADS, STREAMING_QUEUE_SIZE,
+                    Process.THREAD_PRIORITY_DEFAULT, new ThreadPoolExecutor.AbortPolicy());
+        }
+        return sStreamingExecutor;
+    }
+
+    /**
+     * Lane for accept loop of local proxy, rejected task throws
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    static synchronized ExecutorService getAcceptExecutor() {
+        if (isTerminated(sAcceptExecutor)) {
+            sAcceptExecutor = createLane("accept", 1, ACCEPT_QUEUE_SIZE,
+                    Process.THREAD_PRIORITY_DEFAULT, new ThreadPoolExecutor.AbortPolicy());
+        }
+        return sAcceptExecutor;
+    }
+
+    /**
+     * @deprecated use lane which matches type of work, this one is network lane
+     */
+    @Deprecated
     public static ExecutorService getExecutor() {
-        return sExecutor;
+        return getNetworkExecutor();
     }
 
+    /**
+     * @deprecated use {@link #getDiskExecutor()}
+     */
+    @Deprecated
     public static ExecutorService getSingleExecutor() {
-        return sSingleExecutor;
+        return getDiskExecutor();
     }
 
+    /**
+     * Stops all lanes. Queued tasks are given short time to finish, then interrupted.
+     * Lanes are recreated on next use.
+     */
     public static void shutdown() {
-        sExecutor.shutdown();
+        ThreadPoolExecutor[] lanes;
+        synchronized (ExecutorHelper.class) {
+            lanes = new ThreadPoolExecutor[]{sNetworkExecutor, sDownloadExecutor, sDiskExecutor, sCpuExecutor,
+                    sTelemetryExecutor, sStreamingExecutor, sAcceptExecutor};
+            sNetworkExecutor = null;
+            sDownloadExecutor = null;
+            sDiskExecutor = null;
+            sCpuExecutor = null;
+            sTelemetryExecutor = null;
+            sStreamingExecutor = null;
+            sAcceptExecutor = null;
+        }
+        for (ThreadPoolExecutor lane : lanes) {
+            if (lane != null) {
+                lane.shutdown();
+            }
+        }
+        for (ThreadPoolExecutor lane : lanes) {
+            if (lane == null) {
+                continue;
+            }
+            try {
+                if (!lane.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    lane.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                lane.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        Logging.out(LOG_TAG, "Executors are stopped");
+    }
+
+    private static boolean isTerminated(ExecutorService executor) {
+        return executor == null || executor.isShutdown();
+    }
+
+    private static ThreadPoolExecutor createLane(String name, int threads, int queueSize, int priority,
+                                                 RejectedExecutionHandler policy) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize),
+                new LaneThreadFactory(name, priority),
+                policy);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCounter = new AtomicInteger();
+        private final String mName;
+        private final int mPriority;
+
+        private LaneThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(mPriority);
+                    sLaneName.set(mName);
+                    runnable.run();
+                }
+            }, "LoopMe-" + mName + "-" + mCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static class BackPressurePolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Lane is stopped");
+            } else if (Looper.myLooper() == Looper.getMainLooper()) {
+                Logging.out(LOG_TAG, "Lane is overloaded, task is rejected");
+                throw new RejectedExecutionException("Lane is overloaded");
+            } else {
+                runnable.run();
+            }
+        }
+    }
+
+    /**
+     * Keeps order of tasks: background caller waits for room in queue.
+     */
+    private static class WaitPolicy implements RejectedExecutionHandler {
+
+        private final String mLaneName;
+
+        private WaitPolicy(String laneName) {
+            mLaneName = laneName;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Lane is stopped");
+            } else if (Looper.myLooper() == Looper.getMainLooper() || mLaneName.equals(sLaneName.get())) {
+                Logging.out(LOG_TAG, "Lane is overloaded, task is rejected");
+                throw new RejectedExecutionException("Lane is overloaded");
+            }
+            try {
+                executor.getQueue().put(runnable);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for lane");
+            }
+            // lane could be stopped while caller waited, its queue isn't executed then
+            if (executor.isShutdown() && executor.remove(runnable)) {
+                throw new RejectedExecutionException("Lane is stopped");
+            }
+        }
     }
 }
@@ -0,0 +1,118 @@
+package com.loopme.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Shared HTTP transport for all SDK requests.
+ * Connections are kept alive and returned to the platform connection pool, which keeps
+ * a few idle connections and evicts them after keep-alive duration. Pool doesn't limit
+ * connections in use, their count is bounded by threads of lanes which run requests, see {@link ExecutorHelper}.
+ * To return connection to the pool response body should be fully read and closed
+ * with {@link #release(InputStream)}, {@link HttpURLConnection#disconnect()} closes the socket.
+ */
+public class HttpConnectionManager {
+
+    private static final String LOG_TAG = HttpConnectionManager.class.getSimpleName();
+
+    private static final String PROPERTY_KEEP_ALIVE = "http.keepAlive";
+    private static final String PROPERTY_MAX_CONNECTIONS = "http.maxConnections";
+    private static final String PROPERTY_KEEP_ALIVE_DURATION = "http.keepAliveDuration";
+
+    private static final String HEADER_CONNECTION = "Connection";
+    private static final String KEEP_ALIVE = "keep-alive";
+
+    /**
+     * Idle connections kept by pool, per host on JVM and in total on Android
+     */
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_DURATION = 1000 * 60 * 5;//5 minutes
+
+    /**
+     * Rest of body bigger than this value is cheaper to drop with socket than to read
+     */
+    private static final int MAX_DRAIN_BYTES = 1024 * 64;
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+
+    private static volatile boolean sIsInitialized;
+
+    private HttpConnectionManager() {
+    }
+
+    /**
+     * Configures platform connection pool.
+     * Should be called before first http request in process, pool reads this settings once.
+     */
+    public static void init() {
+        if (sIsInitialized) {
+            return;
+        }
+        synchronized (HttpConnectionManager.class) {
+            if (!sIsInitialized) {
+                setPropertyIfAbsent(PROPERTY_KEEP_ALIVE, "true");
+                setPropertyIfAbsent(PROPERTY_MAX_CONNECTIONS, String.valueOf(MAX_IDLE_CONNECTIONS));
+                setPropertyIfAbsent(PROPERTY_KEEP_ALIVE_DURATION, String.valueOf(KEEP_ALIVE_DURATION));
+                sIsInitialized = true;
+            }
+        }
+    }
+
+    private static void setPropertyIfAbsent(String key, String value) {
+        try {
+            if (System.getProperty(key) == null) {
+                System.setProperty(key, value);
+            }
+        } catch (SecurityException e) {
+            Logging.out(LOG_TAG, "Can't set " + key + ": " + e.getMessage());
+        }
+    }
+
+    public static HttpURLConnection openConnection(String url, int timeout) throws IOException {
+        init();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setRequestProperty(HEADER_CONNECTION, KEEP_ALIVE);
+        return connection;
+    }
+
+    /**
+     * Reads rest of response body and closes stream, so connection can be reused.
+     */
+    public static void release(InputStream stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            int drained = 0;
+            int length;
+            while (drained < MAX_DRAIN_BYTES && (length = stream.read(buffer)) != -1) {
+                drained += length;
+            }
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, String.valueOf(e));
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Releases connection which was finished with not successful response code.
+     */
+    public static void releaseError(HttpURLConnection connection) {
+        if (connection != null) {
+            release(connection.getErrorStream());
+        }
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, String.valueOf(e));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.loopme.common;
+
+import android.util.Log;
+
+import com.loopme.constants.LogLevel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes log messages to logcat on cpu lane, so logging caller doesn't wait for logcat.
+ * Messages are written in batches, one batch per task, so logging doesn't hold lane thread.
+ * Only one batch is written at a time, so messages keep their order on multi-thread lane.
+ * When queue is full new messages are dropped and counted.
+ */
+class LogSink {
+
+    private static final String LOG_TAG = "LoopMe-log";
+    private static final int QUEUE_SIZE = 512;
+    private static final int BATCH_SIZE = 64;
+
+    private static LogSink sSink;
+
+    private final BlockingQueue<Message> mQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+    private final AtomicBoolean mIsWriteScheduled = new AtomicBoolean();
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeBatch();
+        }
+    };
+
+    private LogSink() {
+    }
+
+    static synchronized LogSink getInstance() {
+        if (sSink == null) {
+            sSink = new LogSink();
+        }
+        return sSink;
+    }
+
+    void write(int level, String tag, String text) {
+        if (!mQueue.offer(new Message(level, tag, text))) {
+            mDroppedCount.incrementAndGet();
+        }
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (!mIsWriteScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ExecutorHelper.getCpuExecutor().execute(mWriteRunnable);
+        } catch (RejectedExecutionException e) {
+            // not logged, it would be written here again; messages wait for next write
+            mIsWriteScheduled.set(false);
+        }
+    }
+
+    private void writeBatch() {
+        List<Message> batch = new ArrayList<>(BATCH_SIZE);
+        mQueue.drainTo(batch, BATCH_SIZE);
+        int droppedCount = mDroppedCount.getAndSet(0);
+        if (droppedCount > 0) {
+            Log.w(LOG_TAG, droppedCount + " log message(s) dropped");
+        }
+        for (Message message : batch) {
+            Log.println(toPriority(message.mLevel), message.mTag, message.mText);
+        }
+        // message which is queued after this point schedules its own write
+        mIsWriteScheduled.set(false);
+        if (!mQueue.isEmpty()) {
+            scheduleWrite();
+        }
+    }
+
+    private static int toPriority(int level) {
+        switch (level) {
+            case LogLevel.DEBUG:
+                return Log.DEBUG;
+
+            case LogLevel.WARNING:
+                return Log.WARN;
+
+            case LogLevel.ERROR:
+                return Log.ERROR;
+
+            default:
+                return Log.INFO;
+        }
+    }
+
+    private static class Message {
+
+        private final int mLevel;
+        private final String mTag;
+        private final String mText;
+
+        private Message(int level, String tag, String text) {
+            mLevel = level;
+            mTag = tag;
+            mText = text;
+        }
+    }
+}
@@ -1,26 +1,146 @@
 package com.loopme.common;
 
 import android.text.TextUtils;
-import android.util.Log;
 
+import com.loopme.constants.LogLevel;
 import com.loopme.debugging.LiveDebug;
 
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SDK log. Messages go to logcat in debug mode and to {@link LiveDebug}.
+ * Frequent messages should use {@link #log(int, Tag, String, long)} with level and template:
+ * template is formatted only if level is enabled, so disabled call doesn't allocate.
+ */
 public class Logging {
 
     private static final String PREFIX = "Debug.LoopMe.";
+    private static final String PLACEHOLDER = "{}";
+
+    private static final ConcurrentHashMap<String, String> sPrefixedTags = new ConcurrentHashMap<>();
+
+    private static volatile int sMinLevel = LogLevel.DEBUG;
+
+    /**
+     * Tag with prefix, should be created once per class.
+     */
+    public static final class Tag {
+
+        private final String mName;
+
+        private Tag(String name) {
+            mName = name;
+        }
+    }
 
     private Logging() {}
 
+    public static Tag tag(Class<?> owner) {
+        return new Tag(PREFIX + owner.getSimpleName());
+    }
+
+    /**
+     * Messages below given level are skipped, by default messages of all levels are written.
+     *
+     * @param level - one of {@link LogLevel} values
+     */
+    public static void setMinLevel(int level) {
+        sMinLevel = level;
+    }
+
+    /**
+     * Messages from min level are written in debug mode or during live debug session, otherwise none.
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sMinLevel && (StaticParams.DEBUG_MODE || LiveDebug.isDebugOn());
+    }
+
     public static void out(String tag, final String text) {
-        if (TextUtils.isEmpty(text)) {
+        if (TextUtils.isEmpty(text) || !isLoggable(LogLevel.INFO)) {
             return;
         }
-        final String logTag = new StringBuilder(PREFIX).append(tag).toString();
+        write(LogLevel.INFO, getPrefixedTag(tag), text);
+    }
 
-        if (StaticParams.DEBUG_MODE) {
-            Log.i(logTag, text);
+    public static void out(Tag tag, String text) {
+        if (!TextUtils.isEmpty(text) && isLoggable(LogLevel.INFO)) {
+            write(LogLevel.INFO, tag.mName, text);
+        }
+    }
+
+    public static void log(int level, Tag tag, String template) {
+        if (isLoggable(level)) {
+            write(level, tag.mName, template);
         }
-        LiveDebug.handle(logTag, text);
     }
 
+    /**
+     * @param template - message, placeholder {} is replaced with argument,
+     *                 argument without placeholder is appended, extra placeholders are kept
+     */
+    public static void log(int level, Tag tag, String template, long arg) {
+        if (isLoggable(level)) {
+            StringBuilder builder = new StringBuilder(template.length() + 16);
+            int next = appendUntilPlaceholder(builder, template, 0);
+            builder.append(arg);
+            builder.append(template, next, template.length());
+            write(level, tag.mName, builder.toString());
+        }
+    }
+
+    public static void log(int level, Tag tag, String template, long arg1, long arg2) {
+        if (isLoggable(level)) {
+            StringBuilder builder = new StringBuilder(template.length() + 32);
+            int next = appendUntilPlaceholder(builder, template, 0);
+            builder.append(arg1);
+            next = appendUntilPlaceholder(builder, template, next);
+            builder.append(arg2);
+            builder.append(template, next, template.length());
+            write(level, tag.mName, builder.toString());
+        }
+    }
+
+    public static void log(int level, Tag tag, String template, boolean arg) {
+        if (isLoggable(level)) {
+            StringBuilder builder = new StringBuilder(template.length() + 8);
+            int next = appendUntilPlaceholder(builder, template, 0);
+            builder.append(arg);
+            builder.append(template, next, template.length());
+            write(level, tag.mName, builder.toString());
+        }
+    }
+
+    /**
+     * Appends template from given index to next placeholder, or to the end.
+     *
+     * @return index after placeholder, or template length
+     */
+    private static int appendUntilPlaceholder(StringBuilder builder, String template, int from) {
+        if (from >= template.length()) {
+            return from;
+        }
+        int placeholder = template.indexOf(PLACEHOLDER, from);
+        if (placeholder < 0) {
+            builder.append(template, from, template.length());
+            return template.length();
+        }
+        builder.append(template, from, placeholder);
+        return placeholder + PLACEHOLDER.length();
+    }
+
+    private static String getPrefixedTag(String tag) {
+        String prefixedTag = sPrefixedTags.get(tag);
+        if (prefixedTag == null) {
+            prefixedTag = PREFIX + tag;
+            sPrefixedTags.putIfAbsent(tag, prefixedTag);
+        }
+        return prefixedTag;
+    }
+
+    private static void write(int level, String tag, String text) {
+        if (StaticParams.DEBUG_MODE) {
+            LogSink.getInstance().write(level, tag, text);
+        }
+        LiveDebug.handle(tag, text);
+    }
 }
@@ -0,0 +1,172 @@
+package com.loopme.common;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Feeds MediaPlayer from memory-mapped video file, so seeks and re-prepares of player
+ * don't reopen the file. One mapping of cached file is shared by all players which play it.
+ * Video which is still downloaded is read through its {@link StreamingProxy.Source}:
+ * read waits until requested bytes are loaded. Partial file is mapped per player, because
+ * file with the same name can belong to another download later.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class MappedVideoDataSource extends MediaDataSource {
+
+    private static final String LOG_TAG = MappedVideoDataSource.class.getSimpleName();
+
+    /**
+     * How long read waits for missing data, download is retried within this time
+     */
+    private static final long DATA_TIMEOUT = 30000;
+
+    private static final Map<String, Mapping> sMappings = new HashMap<>();
+
+    private final Mapping mMapping;
+    private final StreamingProxy.Source mSource;
+    private boolean mIsClosed;
+
+    private MappedVideoDataSource(Mapping mapping, StreamingProxy.Source source) {
+        mMapping = mapping;
+        mSource = source;
+    }
+
+    /**
+     * Must be called only on {@link Build.VERSION_CODES#M} and newer, class can't be loaded on older versions.
+     *
+     * @param path - path of cached file or url of streaming proxy
+     * @return data source, or null if path can't be mapped and should be passed to player as is
+     */
+    public static MappedVideoDataSource create(String path) {
+        if (path == null) {
+            return null;
+        }
+        StreamingProxy.Source source = StreamingProxy.getInstance().getSourceForUrl(path);
+        try {
+            if (source != null) {
+                File file = openFile(source);
+                return new MappedVideoDataSource(new Mapping(null, map(file, source.getLength())), source);
+            }
+            File file = new File(path);
+            return file.isFile() ? new MappedVideoDataSource(acquireMapping(file, file.length()), null) : null;
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, "Can't map " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Partial file can be renamed between getting its name and mapping, then complete file is used.
+     */
+    private static File openFile(StreamingProxy.Source source) {
+        File file = source.getFile();
+        return file.exists() ? file : source.getFile();
+    }
+
+    private static synchronized Mapping acquireMapping(File file, long length) throws IOException {
+        String key = file.getAbsolutePath();
+        Mapping mapping = sMappings.get(key);
+        if (mapping == null || mapping.mBuffer.capacity() != length) {
+            mapping = new Mapping(key, map(file, length));
+            sMappings.put(key, mapping);
+        }
+        mapping.mReferences++;
+        return mapping;
+    }
+
+    private static synchronized void releaseMapping(Mapping mapping) {
+        mapping.mReferences--;
+        // mapping is unmapped by GC when players don't reference it
+        if (mapping.mReferences <= 0 && sMappings.get(mapping.mKey) == mapping) {
+            sMappings.remove(mapping.mKey);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        if (length <= 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Wrong length " + length);
+        }
+        RandomAccessFile randomAccessFile;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+            throw new IOException(e.getMessage());
+        }
+        try {
+            // mapping stays valid after channel is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        long length = mMapping.mBuffer.capacity();
+        if (position >= length) {
+            return -1;
+        }
+        long available = length - position;
+        if (mSource != null) {
+            try {
+                available = mSource.awaitAvailable(position, DATA_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+            if (available <= 0) {
+                throw new IOException("Data at " + position + " is not available");
+            }
+        }
+        int count = (int) Math.min(size, available);
+        ByteBuffer view = mMapping.mBuffer.duplicate();
+        view.position((int) position);
+        view.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long getSize() {
+        return mMapping.mBuffer.capacity();
+    }
+
+    /**
+     * Called by player when it is reset or released.
+     */
+    @Override
+    public synchronized void close() {
+        if (!mIsClosed) {
+            mIsClosed = true;
+            if (mMapping.mKey != null) {
+                releaseMapping(mMapping);
+            }
+        }
+    }
+
+    private static class Mapping {
+
+        /**
+         * Path of shared mapping, null if mapping belongs to one data source
+         */
+        private final String mKey;
+        private final MappedByteBuffer mBuffer;
+        private int mReferences;
+
+        private Mapping(String key, MappedByteBuffer buffer) {
+            mKey = key;
+            mBuffer = buffer;
+        }
+    }
+}
@@ -1,24 +1,37 @@
 package com.loopme.common;
 
 import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
 import com.loopme.constants.AdFormat;
 import com.loopme.debugging.ErrorLog;
 import com.loopme.debugging.ErrorType;
 import com.loopme.debugging.LiveDebug;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Pull parser of ad response.
+ * Reads only known fields, all other values are skipped without materializing.
+ */
 public class ResponseParser {
 
     private static final String LOG_TAG = ResponseParser.class.getSimpleName();
 
+    private static final Pattern VIDEO_URL_PATTERN =
+            Pattern.compile("https?://[^\\s\"'<>()\\\\]+?\\.mp4(?![\\w.])(\\?[^\\s\"'<>()\\\\]*)?", Pattern.CASE_INSENSITIVE);
+    private static final int MAX_VIDEO_URLS = 3;
+
     private static final String JSON_SCRIPT = "script";
     private static final String JSON_FORMAT = "format";
     private static final String JSON_ORIENTATION = "orientation";
@@ -28,13 +41,13 @@ public class ResponseParser {
     private static final String JSON_TOKEN = "token";
     private static final String JSON_DEBUG = "debug";
     private static final String JSON_PART_PRELOAD = "preload25";
+    private static final String JSON_ERROR_SAMPLE_RATE = "error_sample_rate";
 
-//    private static final String JSON_V360 = "v360";
     private static final String JSON_TRACKING = "measure_partners";
-    private static final String JSON_ERROR = "error";
     private static final String JSON_MRAID = "mraid";
     private static final String JSON_V360 = "v360";
     private static final String JSON_AUTOLOADING = "autoloading";
+    private static final String JSON_ADS = "ads";
 
     private Listener mListener;
     private int mAdFormat;
@@ -43,6 +56,10 @@ public class ResponseParser {
         void onParseError(LoopMeError message);
     }
 
+    public interface BatchListener {
+        void onSlotParseError(int slot, LoopMeError message);
+    }
+
     public ResponseParser(Listener listener, int format) {
         if (listener == null) {
             Logging.out(LOG_TAG, "Wrong parameter(s)");
@@ -55,84 +72,257 @@ public class ResponseParser {
         if (result == null) {
             return null;
         } else if (result.isEmpty()) {
-            handleParseError("No content");
-            ErrorLog.post("Broken response", ErrorType.SERVER);
+            handleEmptyResponse();
             return null;
         }
+        return parse(new JsonReader(new StringReader(result)));
+    }
 
-        String format;
-        JSONObject object;
-        JSONObject settings;
+    /**
+     * Parses response straight from stream.
+     * Stream is not closed, it is responsibility of caller.
+     */
+    public AdParams getAdParams(InputStream stream) {
+        if (stream == null) {
+            return null;
+        }
+        try {
+            return parse(new JsonReader(new InputStreamReader(stream, StaticParams.UTF_8)));
+        } catch (UnsupportedEncodingException e) {
+            handleBrokenResponse();
+            return null;
+        }
+    }
 
+    /**
+     * Parses response of batched request: {"ads": [ad, ad, ...]}, ads are in order of requested slots.
+     * Response with single ad (without "ads" array) is treated as answer for first slot.
+     *
+     * @param formats - requested format of each slot
+     * @return list with ad params for each slot, null for slots without valid ad.
+     * Errors of whole response are reported to {@link Listener},
+     * errors of particular slot to {@link BatchListener}
+     */
+    public List<AdParams> getAdParamsList(InputStream stream, int[] formats, BatchListener batchListener) {
+        List<AdParams> result = new ArrayList<AdParams>();
+        if (stream == null || formats == null) {
+            return result;
+        }
+        List<Response> responses = new ArrayList<Response>();
         try {
-            object = (JSONObject) new JSONTokener(result).nextValue();
+            JsonReader reader = new JsonReader(new InputStreamReader(stream, StaticParams.UTF_8));
+            reader.setLenient(true);
+            readBatchResponse(reader, responses);
+
+        } catch (EOFException e) {
+            if (responses.isEmpty()) {
+                handleEmptyResponse();
+            } else {
+                handleBrokenResponse();
+            }
+            return result;
 
-            settings = object.getJSONObject(JSON_SETTINGS);
+        } catch (IOException | IllegalStateException e) {
+            Logging.out(LOG_TAG, String.valueOf(e));
+            handleBrokenResponse();
+            return result;
+        }
 
-            format = settings.getString(JSON_FORMAT);
-            if (!isValidFormat(format)) {
-                ErrorLog.post("Broken response [wrong format parameter: " + format + "]", ErrorType.SERVER);
+        for (int i = 0; i < formats.length; i++) {
+            Listener slotListener = initSlotListener(i, batchListener);
+            if (i < responses.size()) {
+                result.add(buildAdParams(responses.get(i), formats[i], slotListener));
+            } else {
+                handleParseError(slotListener, "No ad in batch response");
+                result.add(null);
             }
-            String requestedFormat;
-            switch (mAdFormat) {
-                case AdFormat.BANNER:
-                    requestedFormat = StaticParams.BANNER_TAG;
-                    break;
-                case AdFormat.INTERSTITIAL:
-                    requestedFormat = StaticParams.INTERSTITIAL_TAG;
-                    break;
-                default:
-                    requestedFormat = "";
-                    break;
+        }
+        return result;
+    }
+
+    private Listener initSlotListener(final int slot, final BatchListener batchListener) {
+        return new Listener() {
+            @Override
+            public void onParseError(LoopMeError message) {
+                if (batchListener != null) {
+                    batchListener.onSlotParseError(slot, message);
+                }
             }
-            if (!format.equalsIgnoreCase(requestedFormat)) {
-                handleParseError("Wrong Ad format: " + format);
-                return null;
+        };
+    }
+
+    private void readBatchResponse(JsonReader reader, List<Response> responses) throws IOException {
+        Response single = new Response();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_ADS.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Response response = new Response();
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        readResponse(reader, response);
+                    } else {
+                        reader.skipValue();
+                    }
+                    responses.add(response);
+                }
+                reader.endArray();
+            } else {
+                readField(reader, name, single);
             }
+        }
+        reader.endObject();
+        if (responses.isEmpty() && single.mHasSettings) {
+            responses.add(single);
+        }
+    }
 
-        } catch (JSONException e) {
-            handleParseError("Exception during json parse");
-            ErrorLog.post("Broken response", ErrorType.SERVER);
+    private AdParams parse(JsonReader reader) {
+        reader.setLenient(true);
+        Response response = new Response();
+        try {
+            readResponse(reader, response);
+
+        } catch (EOFException e) {
+            if (response.mIsStarted) {
+                handleBrokenResponse();
+            } else {
+                handleEmptyResponse();
+            }
             return null;
 
-        } catch (ClassCastException ex) {
-            ex.printStackTrace();
-            handleParseError("Exception during json parse");
+        } catch (IOException | IllegalStateException e) {
+            Logging.out(LOG_TAG, String.valueOf(e));
+            handleBrokenResponse();
+            return null;
+        }
+        return buildAdParams(response, mAdFormat, mListener);
+    }
+
+    private AdParams buildAdParams(Response response, int adFormat, Listener listener) {
+        if (!response.mHasSettings || response.mFormat == null) {
+            handleParseError(listener, "Exception during json parse");
             ErrorLog.post("Broken response", ErrorType.SERVER);
             return null;
         }
+        String format = response.mFormat;
+        if (!isValidFormat(format)) {
+            ErrorLog.post("Broken response [wrong format parameter: " + format + "]", ErrorType.SERVER);
+        }
+        if (!format.equalsIgnoreCase(getRequestedFormat(adFormat))) {
+            handleParseError(listener, "Wrong Ad format: " + format);
+            return null;
+        }
 
-        int debugValue = parseInt(settings, JSON_DEBUG);
-        boolean debug = debugValue == 1;
-        LiveDebug.setLiveDebug(debug);
+        LiveDebug.setLiveDebug(response.mDebug == 1);
+        ErrorLog.setSampleRate(response.mErrorSampleRate);
 
-        int preloadValue = parseInt(settings, JSON_PART_PRELOAD);
-        boolean preload = preloadValue == 1;
+        boolean preload = response.mPartPreload == 1;
         StaticParams.PART_PRELOAD = preload;//todo remove. only for tester
 
-        int video360Value = parseInt(settings, JSON_V360);
-        boolean video360 = video360Value == 1;
-
-        int mraidValue = parseInt(settings, JSON_MRAID);
-        boolean mraid = mraidValue == 1;
-
-        int autoloadingValue = parseIntWithDefaultTrue(settings, JSON_AUTOLOADING);
-        boolean autoloading = autoloadingValue == 1;
+        int autoloadingValue = isApi19() ? 0 : response.mAutoloading;
 
         return new AdParams.AdParamsBuilder(format)
-                .html(parseString(object, JSON_SCRIPT))
-                .orientation(parseString(settings, JSON_ORIENTATION))
-                .expiredTime(parseInt(settings, JSON_EXPIRED_TIME))
-                .token(parseString(settings, JSON_TOKEN))
-                .packageIds(parseArray(settings, JSON_PACKAGE_IDS))
-                .trackers(parseArray(settings, JSON_TRACKING))
+                .html(response.mHtml)
+                .orientation(response.mOrientation)
+                .expiredTime(response.mExpiredTime)
+                .token(response.mToken)
+                .packageIds(response.mPackageIds)
+                .trackers(response.mTrackers)
+                .videoUrls(extractVideoUrls(response.mHtml))
                 .partPreload(preload)
-                .video360(video360)
-                .mraid(mraid)
-                .autoloading(autoloading)
+                .video360(response.mVideo360 == 1)
+                .mraid(response.mMraid == 1)
+                .autoloading(autoloadingValue == 1)
                 .build();
     }
 
+    /**
+     * Finds mp4 urls in ad script, so video can be cached before script requests it.
+     */
+    static List<String> extractVideoUrls(String html) {
+        List<String> urls = new ArrayList<>();
+        if (html == null) {
+            return urls;
+        }
+        Matcher matcher = VIDEO_URL_PATTERN.matcher(html.replace("\\/", "/"));
+        while (matcher.find() && urls.size() < MAX_VIDEO_URLS) {
+            String url = matcher.group();
+            if (!urls.contains(url)) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    private void readResponse(JsonReader reader, Response response) throws IOException {
+        reader.peek();
+        response.mIsStarted = true;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            readField(reader, reader.nextName(), response);
+        }
+        reader.endObject();
+    }
+
+    private void readField(JsonReader reader, String name, Response response) throws IOException {
+        if (JSON_SCRIPT.equals(name)) {
+            response.mHtml = readString(reader, name);
+        } else if (JSON_SETTINGS.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            readSettings(reader, response);
+            response.mHasSettings = true;
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    private void readSettings(JsonReader reader, Response response) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_FORMAT.equals(name)) {
+                response.mFormat = readString(reader, name);
+            } else if (JSON_ORIENTATION.equals(name)) {
+                response.mOrientation = readString(reader, name);
+            } else if (JSON_EXPIRED_TIME.equals(name)) {
+                response.mExpiredTime = readInt(reader, name, 0);
+            } else if (JSON_TOKEN.equals(name)) {
+                response.mToken = readString(reader, name);
+            } else if (JSON_PACKAGE_IDS.equals(name)) {
+                response.mPackageIds = readArray(reader, name);
+            } else if (JSON_TRACKING.equals(name)) {
+                response.mTrackers = readArray(reader, name);
+            } else if (JSON_DEBUG.equals(name)) {
+                response.mDebug = readInt(reader, name, 0);
+            } else if (JSON_PART_PRELOAD.equals(name)) {
+                response.mPartPreload = readInt(reader, name, 0);
+            } else if (JSON_V360.equals(name)) {
+                response.mVideo360 = readInt(reader, name, 0);
+            } else if (JSON_MRAID.equals(name)) {
+                response.mMraid = readInt(reader, name, 0);
+            } else if (JSON_AUTOLOADING.equals(name)) {
+                response.mAutoloading = readInt(reader, name, 1);
+            } else if (JSON_ERROR_SAMPLE_RATE.equals(name)) {
+                response.mErrorSampleRate = readFloat(reader, name, 1);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private String getRequestedFormat(int adFormat) {
+        switch (adFormat) {
+            case AdFormat.BANNER:
+                return StaticParams.BANNER_TAG;
+            case AdFormat.INTERSTITIAL:
+                return StaticParams.INTERSTITIAL_TAG;
+            default:
+                return "";
+        }
+    }
+
     private boolean isValidFormat(String format) {
         if (format == null) {
             return false;
@@ -141,80 +331,110 @@ public class ResponseParser {
                 format.equalsIgnoreCase(StaticParams.INTERSTITIAL_TAG);
     }
 
+    private void handleEmptyResponse() {
+        handleParseError("No content");
+        ErrorLog.post("Broken response", ErrorType.SERVER);
+    }
+
+    private void handleBrokenResponse() {
+        handleParseError("Exception during json parse");
+        ErrorLog.post("Broken response", ErrorType.SERVER);
+    }
+
     private void handleParseError(String mess) {
-        if (mListener != null) {
-            mListener.onParseError(new LoopMeError(mess));
-        }
+        handleParseError(mListener, mess);
     }
 
-    private List<String> parseArray(JSONObject object, String jsonParam) {
-        List<String> packagIds = new ArrayList<String>();
-        try {
-            JSONArray array = object.getJSONArray(jsonParam);
-            for (int i = 0; i < array.length(); i++) {
-                String item = (String) array.get(i);
-                packagIds.add(item);
-            }
-        } catch (JSONException e) {
-            Logging.out(LOG_TAG, jsonParam + " absent");
+    private void handleParseError(Listener listener, String mess) {
+        if (listener != null) {
+            listener.onParseError(new LoopMeError(mess));
         }
-        return packagIds;
     }
 
-    private String parseString(JSONObject object, String jsonParam) {
-        String value = null;
-        try {
-            value = object.getString(jsonParam);
-        } catch (JSONException e) {
+    private List<String> readArray(JsonReader reader, String jsonParam) throws IOException {
+        List<String> items = new ArrayList<String>();
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
             Logging.out(LOG_TAG, jsonParam + " absent");
+            reader.skipValue();
+            return items;
         }
-        return value;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.STRING) {
+                items.add(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return items;
     }
 
-    private JSONObject parseJsonObject(JSONObject object, String jsonParam) {
-        JSONObject value = null;
-        try {
-            value = object.getJSONObject(jsonParam);
-        } catch (JSONException e) {
-            Logging.out(LOG_TAG, jsonParam + " absent");
+    private String readString(JsonReader reader, String jsonParam) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
         }
-        return value;
+        Logging.out(LOG_TAG, jsonParam + " absent");
+        reader.skipValue();
+        return null;
     }
 
-    private int parseInt(JSONObject object, String jsonParam) {
-        int value = 0;
-        try {
-            value = object.getInt(jsonParam);
-        } catch (JSONException e) {
-            Logging.out(LOG_TAG, jsonParam + " absent");
+    private float readFloat(JsonReader reader, String jsonParam, float defaultValue) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            try {
+                return (float) reader.nextDouble();
+            } catch (NumberFormatException e) {
+                Logging.out(LOG_TAG, jsonParam + " wrong value");
+                reader.skipValue();
+                return defaultValue;
+            }
         }
-        return value;
+        Logging.out(LOG_TAG, jsonParam + " absent");
+        reader.skipValue();
+        return defaultValue;
     }
 
-
-    private int parseIntWithDefaultTrue(JSONObject object, String jsonParam) {
-        int value = isApi19() ? 0 : 1;
-        try {
-            value = object.getInt(jsonParam);
-        } catch (JSONException e) {
-            Logging.out(LOG_TAG, jsonParam + " absent");
+    private int readInt(JsonReader reader, String jsonParam, int defaultValue) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            try {
+                return reader.nextInt();
+            } catch (NumberFormatException e) {
+                Logging.out(LOG_TAG, jsonParam + " wrong value");
+                reader.skipValue();
+                return defaultValue;
+            }
         }
-        return isApi19() ? 0 : value;
+        Logging.out(LOG_TAG, jsonParam + " absent");
+        reader.skipValue();
+        return defaultValue;
     }
 
     public static boolean isApi19() {
         return  Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT;
     }
 
-    private String extractTrackingUrl(JSONObject tracking) {
-        String value = null;
-        try {
-            if (tracking != null) {
-                value = tracking.getJSONArray(JSON_ERROR).getString(0);
-            }
-        } catch (JSONException e) {
-            Logging.out(LOG_TAG, JSON_ERROR + " absent");
-        }
-        return value;
+    /**
+     * Values collected from response before building of {@link AdParams},
+     * fields order in response is not defined.
+     */
+    private static class Response {
+        private boolean mIsStarted;
+        private boolean mHasSettings;
+        private String mHtml;
+        private String mFormat;
+        private String mOrientation;
+        private String mToken;
+        private int mExpiredTime;
+        private int mDebug;
+        private int mPartPreload;
+        private int mVideo360;
+        private int mMraid;
+        private int mAutoloading = 1;
+        private float mErrorSampleRate = 1;
+        private List<String> mPackageIds = new ArrayList<String>();
+        private List<String> mTrackers = new ArrayList<String>();
     }
 }
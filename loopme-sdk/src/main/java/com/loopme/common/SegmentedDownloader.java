@@ -0,0 +1,869 @@
+package com.loopme.common;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Base64;
+
+import com.loopme.request.LatencyEstimator;
+import com.loopme.request.ThroughputEstimator;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads file with several parallel range requests.
+ * File is split into chunks, every connection takes next missing chunk and writes it at its offset
+ * into preallocated "*.part" file. Completed chunks are persisted in "*.chunks" file,
+ * so interrupted download is resumed if server returns the same ETag.
+ * Every chunk is retried with backoff limited number of times, failed chunk is taken by new connection
+ * after backoff, so lane thread doesn't wait. File info request is retried the same way.
+ * Completed chunks are saved every few chunks and when connections stop, state file is written
+ * outside of downloader lock, so readers aren't blocked by disk.
+ * File is synced before each checkpoint, so state never claims data which is lost on power failure.
+ * When all chunks are loaded, "*.part" file is checked against length and Content-MD5 from server,
+ * synced and renamed to target file, so file with target name is always complete, even after crash.
+ * Loaded part of file can be read while download is in progress, see {@link #awaitAvailable}.
+ * Download can be paused and resumed at chunk boundary, see {@link DownloadScheduler}.
+ */
+class SegmentedDownloader implements StreamingProxy.Source {
+
+    private static final String LOG_TAG = SegmentedDownloader.class.getSimpleName();
+
+    static final String PART_EXTENSION = ".part";
+    static final String CHUNKS_EXTENSION = ".chunks";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final int CONNECTIONS = 3;
+    private static final int CHUNK_SIZE = 1024 * 256;
+    private static final int MAX_ATTEMPTS = 4;
+    /**
+     * Count of completed chunks after which state is saved
+     */
+    private static final int CHECKPOINT_CHUNKS = 8;
+    private static final long BACKOFF_BASE = 500;
+    private static final int TIMEOUT = 20000;
+    private static final int STATE_VERSION = 1;
+
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+
+    private final String mUrl;
+    private final File mTargetFile;
+    private final File mPartFile;
+    private final File mChunksFile;
+    private final Listener mListener;
+    private final int mConnectionType;
+    private final AtomicLong mLoadedBytes = new AtomicLong();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Object mStateLock = new Object();
+
+    private final AtomicBoolean mIsFinished = new AtomicBoolean();
+    private final Set<HttpURLConnection> mConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<HttpURLConnection, Boolean>());
+
+    private volatile boolean mIsCancelled;
+    private volatile boolean mIsSucceeded;
+    private volatile boolean mIsPaused;
+    private boolean mIsPreviewNeeded;
+    private boolean mIsPreviewReported;
+    private long mPreviewLength;
+    private long mStartTime;
+
+    private String mETag;
+    private String mContentMd5;
+    private long mLength;
+    private int mChunksCount;
+    private BitSet mCompletedChunks;
+    private BitSet mTakenChunks;
+    private int mCompletedCount;
+    private int mPriorityChunk = -1;
+    private int mWorkers;
+    private int[] mAttempts;
+    private int mUnsavedCount;
+    private int mInfoAttempts;
+    /**
+     * Count of chunks in state file, guarded by state lock
+     */
+    private int mSavedCount;
+    private boolean mIsStateDeleted;
+    private FileChannel mChannel;
+    private RandomAccessFile mRandomAccessFile;
+
+    interface Listener {
+        /**
+         * Called once, when preview part of file is loaded.
+         * Its length is chosen by {@link ThroughputEstimator}, so preview covers download of the rest.
+         */
+        void onPreviewReady();
+
+        void onComplete(File file);
+
+        /**
+         * @param isBadAsset - true if server returned wrong response for asset url
+         */
+        void onError(String message, boolean isBadAsset);
+    }
+
+    /**
+     * @param isPreviewNeeded - true if loaded file prefix should be reported before whole file
+     */
+    SegmentedDownloader(String url, File targetFile, boolean isPreviewNeeded, Listener listener) {
+        mUrl = url;
+        mTargetFile = targetFile;
+        mPartFile = new File(targetFile.getParentFile(), getBaseName(targetFile) + PART_EXTENSION);
+        mChunksFile = new File(targetFile.getParentFile(), getBaseName(targetFile) + CHUNKS_EXTENSION);
+        mIsPreviewNeeded = isPreviewNeeded;
+        mConnectionType = LatencyEstimator.getCurrentConnectionType();
+        mListener = listener;
+    }
+
+    /**
+     * @return ETag of downloaded file, null if server didn't send it or download wasn't started
+     */
+    String getETag() {
+        return mETag;
+    }
+
+    /**
+     * Requests file info and starts download. Calling thread is used as one of connections,
+     * other connections are executed on download lane. Result is reported to listener from worker thread.
+     */
+    void start() {
+        mStartTime = System.currentTimeMillis();
+        prepare();
+    }
+
+    private void prepare() {
+        if (mIsFinished.get()) {
+            return;
+        }
+        try {
+            if (!requestFileInfo()) {
+                return;
+            }
+        } catch (IOException e) {
+            if (mIsCancelled || ++mInfoAttempts >= MAX_ATTEMPTS) {
+                Logging.out(LOG_TAG, "Can't request file info: " + e.getMessage());
+                finishWithError("Error during video loading", false);
+                return;
+            }
+            Logging.out(LOG_TAG, "File info attempt " + mInfoAttempts + " failed: " + e.getMessage());
+            scheduleInfoRetry(BACKOFF_BASE << (mInfoAttempts - 1));
+            return;
+        }
+        try {
+            prepareFile();
+            if (mIsCancelled) {
+                closeFile();
+                return;
+            }
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, "Can't prepare download: " + e.getMessage());
+            finishWithError("Error during video loading", false);
+            return;
+        }
+        Logging.out(LOG_TAG, "Download " + mLength + " bytes in " + mChunksCount + " chunk(s), "
+                + mCompletedCount + " already loaded");
+        if (mCompletedCount == mChunksCount) {
+            finishSuccessfully();
+            return;
+        }
+        int workers = addWorkers();
+        for (int i = 1; i < workers; i++) {
+            submitWorker(-1);
+        }
+        if (workers > 0) {
+            downloadChunks(-1);
+        }
+    }
+
+    private void scheduleInfoRetry(long delay) {
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ExecutorHelper.getDownloadExecutor().submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            prepare();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Logging.out(LOG_TAG, "File info retry is rejected: " + e.getMessage());
+                    finishWithError("Error during video loading", false);
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * Connections stop taking chunks, loading chunks are completed. Loaded data is still served.
+     */
+    void pause() {
+        Logging.out(LOG_TAG, "Pause " + mUrl);
+        mIsPaused = true;
+    }
+
+    void resume() {
+        int workers;
+        synchronized (this) {
+            if (!mIsPaused) {
+                return;
+            }
+            mIsPaused = false;
+            // not prepared download starts its connections itself
+            workers = mTakenChunks == null ? 0 : addWorkers();
+        }
+        Logging.out(LOG_TAG, "Resume " + mUrl + " with " + workers + " connection(s)");
+        for (int i = 0; i < workers; i++) {
+            submitWorker(-1);
+        }
+    }
+
+    /**
+     * @return count of connections which should be added to running ones
+     */
+    private synchronized int addWorkers() {
+        if (mIsPaused || mIsFinished.get()) {
+            return 0;
+        }
+        int free = mChunksCount - mTakenChunks.cardinality();
+        int workers = Math.max(Math.min(CONNECTIONS, free) - mWorkers, 0);
+        mWorkers += workers;
+        return workers;
+    }
+
+    /**
+     * @param retryChunk - failed chunk which connection starts with, -1 for new connection
+     */
+    private void submitWorker(final int retryChunk) {
+        try {
+            ExecutorHelper.getDownloadExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    downloadChunks(retryChunk);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Logging.out(LOG_TAG, "Connection is rejected: " + e.getMessage());
+            boolean hasWorkers;
+            synchronized (this) {
+                if (retryChunk >= 0) {
+                    mTakenChunks.clear(retryChunk);
+                }
+                mWorkers--;
+                hasWorkers = mWorkers > 0;
+            }
+            if (!hasWorkers) {
+                finishWithError("Error during video loading", false);
+            }
+        }
+    }
+
+    /**
+     * Stops download, partial file and completed chunks are kept for resume.
+     */
+    void cancel() {
+        mIsCancelled = true;
+        for (HttpURLConnection connection : mConnections) {
+            connection.disconnect();
+        }
+        if (mIsFinished.compareAndSet(false, true)) {
+            saveState();
+            closeFile();
+            addThroughputSample();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private boolean requestFileInfo() throws IOException {
+        HttpURLConnection connection = HttpConnectionManager.openConnection(mUrl, TIMEOUT);
+        connection.setRequestMethod("HEAD");
+        int responseCode;
+        try {
+            responseCode = connection.getResponseCode();
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+        if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            HttpConnectionManager.releaseError(connection);
+            throw new IOException("Response code " + responseCode);
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            HttpConnectionManager.releaseError(connection);
+            finishWithError("Bad asset[responseCode == " + responseCode + "]:" + mUrl, true);
+            return false;
+        }
+        mETag = connection.getHeaderField("ETag");
+        mContentMd5 = connection.getHeaderField("Content-MD5");
+        mLength = connection.getContentLength();
+        boolean acceptRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+        HttpConnectionManager.release(connection.getInputStream());
+
+        if (mLength <= 0) {
+            finishWithError("Bad asset[unknown length]: " + mUrl, true);
+            return false;
+        }
+        mChunksCount = acceptRanges ? (int) ((mLength + CHUNK_SIZE - 1) / CHUNK_SIZE) : 1;
+        synchronized (this) {
+            if (mIsPreviewNeeded) {
+                calculatePreviewLength();
+            }
+        }
+        return true;
+    }
+
+    private void calculatePreviewLength() {
+        mPreviewLength = ThroughputEstimator.getInstance().getPreviewLength(mConnectionType, mLength);
+        Logging.out(LOG_TAG, "Preview length " + mPreviewLength);
+    }
+
+    /**
+     * Turns on preview for download which was started without it,
+     * e.g. when ad joins background download of its video.
+     */
+    void requestPreview() {
+        boolean isPreviewReady = false;
+        synchronized (this) {
+            if (mIsPreviewNeeded) {
+                return;
+            }
+            mIsPreviewNeeded = true;
+            if (mLength <= 0) {
+                // preview length is calculated when file info is received
+                return;
+            }
+            calculatePreviewLength();
+            if (mCompletedChunks != null && !mIsFinished.get() && getCompletedPrefix() >= mPreviewLength) {
+                mIsPreviewReported = true;
+                isPreviewReady = true;
+            }
+        }
+        if (isPreviewReady) {
+            mListener.onPreviewReady();
+        }
+    }
+
+    private void prepareFile() throws IOException {
+        mCompletedCount = 0;
+        mCompletedChunks = new BitSet(mChunksCount);
+        if (mPartFile.exists() && mPartFile.length() == mLength) {
+            readState();
+        }
+        mRandomAccessFile = new RandomAccessFile(mPartFile, "rw");
+        mRandomAccessFile.setLength(mLength);
+        mChannel = mRandomAccessFile.getChannel();
+        synchronized (mStateLock) {
+            mSavedCount = mCompletedCount;
+        }
+        synchronized (this) {
+            mAttempts = new int[mChunksCount];
+            mTakenChunks = (BitSet) mCompletedChunks.clone();
+        }
+    }
+
+    /**
+     * @param retryChunk - failed chunk which is loaded first, -1 if none
+     */
+    private void downloadChunks(int retryChunk) {
+        ByteBuffer buffer = ByteBufferPool.acquire();
+        try {
+            int chunk = retryChunk >= 0 ? takeRetryChunk(retryChunk) : takeNextChunk();
+            while (chunk != -1) {
+                if (!downloadChunkWithRetry(chunk, buffer)) {
+                    return;
+                }
+                chunk = takeNextChunk();
+            }
+        } finally {
+            ByteBufferPool.release(buffer);
+            // chunks completed since last checkpoint, e.g. when download is paused
+            saveState();
+        }
+    }
+
+    /**
+     * Chunks are loaded in order, except chunk which is awaited by reader.
+     *
+     * @return -1 if connection should stop
+     */
+    private synchronized int takeNextChunk() {
+        if (mIsPaused || mIsFinished.get()) {
+            mWorkers--;
+            return -1;
+        }
+        int chunk = mPriorityChunk;
+        mPriorityChunk = -1;
+        if (chunk < 0 || mTakenChunks.get(chunk)) {
+            chunk = mTakenChunks.nextClearBit(0);
+        }
+        if (chunk >= mChunksCount) {
+            mWorkers--;
+            return -1;
+        }
+        mTakenChunks.set(chunk);
+        return chunk;
+    }
+
+    /**
+     * Failed chunk stays taken during backoff, it is released if download was stopped meanwhile.
+     *
+     * @return -1 if connection should stop
+     */
+    private synchronized int takeRetryChunk(int chunk) {
+        if (mIsPaused || mIsFinished.get()) {
+            mTakenChunks.clear(chunk);
+            mWorkers--;
+            return -1;
+        }
+        return chunk;
+    }
+
+    /**
+     * Failed chunk is retried by new connection after backoff, this connection stops.
+     *
+     * @return false if connection should stop
+     */
+    private boolean downloadChunkWithRetry(int chunk, ByteBuffer buffer) {
+        if (mIsCancelled) {
+            return false;
+        }
+        try {
+            downloadChunk(chunk, buffer);
+            onChunkCompleted(chunk);
+            return true;
+
+        } catch (ContentChangedException e) {
+            Logging.out(LOG_TAG, "File was changed on server, download should be restarted");
+            deleteState();
+            finishWithError("Error during video loading", false);
+            return false;
+
+        } catch (IOException e) {
+            if (mIsCancelled) {
+                return false;
+            }
+            int attempt;
+            synchronized (this) {
+                attempt = ++mAttempts[chunk];
+            }
+            Logging.out(LOG_TAG, "Chunk " + chunk + " attempt " + attempt + " failed: " + e.getMessage());
+            if (attempt >= MAX_ATTEMPTS) {
+                finishWithError("Error during video loading", false);
+            } else {
+                scheduleChunkRetry(chunk, BACKOFF_BASE << (attempt - 1));
+            }
+            return false;
+        }
+    }
+
+    private void scheduleChunkRetry(final int chunk, long delay) {
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                submitWorker(chunk);
+            }
+        }, delay);
+    }
+
+    private void downloadChunk(int chunk, ByteBuffer buffer) throws IOException {
+        long start = (long) chunk * CHUNK_SIZE;
+        long end = mChunksCount == 1 ? mLength - 1 : Math.min(start + CHUNK_SIZE, mLength) - 1;
+
+        HttpURLConnection connection = HttpConnectionManager.openConnection(mUrl, TIMEOUT);
+        mConnections.add(connection);
+        InputStream stream = null;
+        try {
+            if (mChunksCount > 1) {
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+                if (mETag != null) {
+                    connection.setRequestProperty("If-Range", mETag);
+                }
+            }
+            int responseCode = connection.getResponseCode();
+            if (mChunksCount > 1 && responseCode == HttpURLConnection.HTTP_OK) {
+                HttpConnectionManager.releaseError(connection);
+                connection.disconnect();
+                throw new ContentChangedException();
+            }
+            if (responseCode != HTTP_PARTIAL_CONTENT && responseCode != HttpURLConnection.HTTP_OK) {
+                HttpConnectionManager.releaseError(connection);
+                throw new IOException("Response code " + responseCode);
+            }
+            String eTag = connection.getHeaderField("ETag");
+            if (mETag != null && eTag != null && !mETag.equals(eTag)) {
+                connection.disconnect();
+                throw new ContentChangedException();
+            }
+            stream = connection.getInputStream();
+            ReadableByteChannel source = Channels.newChannel(stream);
+            long position = start;
+            while (position <= end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position + 1));
+                if (source.read(buffer) == -1) {
+                    break;
+                }
+                if (mIsCancelled) {
+                    throw new IOException("Cancelled");
+                }
+                buffer.flip();
+                int written = writeFully(buffer, position);
+                position += written;
+                mLoadedBytes.addAndGet(written);
+            }
+            if (position <= end) {
+                throw new IOException("Unexpected end of stream at " + position);
+            }
+            HttpConnectionManager.release(stream);
+            stream = null;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        } finally {
+            mConnections.remove(connection);
+        }
+    }
+
+    /**
+     * Positional write, so connections don't share file pointer and don't need locking.
+     *
+     * @return count of written bytes
+     */
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += mChannel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private void onChunkCompleted(int chunk) {
+        boolean isPreviewReady = false;
+        boolean isCompleted;
+        boolean isCheckpoint;
+        synchronized (this) {
+            if (mIsFinished.get()) {
+                return;
+            }
+            mCompletedChunks.set(chunk);
+            mCompletedCount++;
+            isCheckpoint = ++mUnsavedCount >= CHECKPOINT_CHUNKS;
+            if (!mIsPreviewReported && mPreviewLength > 0 &&
+                    getCompletedPrefix() >= Math.min(mPreviewLength, mLength)) {
+                mIsPreviewReported = true;
+                isPreviewReady = true;
+            }
+            isCompleted = mCompletedCount == mChunksCount;
+            notifyAll();
+        }
+        if (isPreviewReady) {
+            mListener.onPreviewReady();
+        }
+        if (isCompleted) {
+            finishSuccessfully();
+        } else if (isCheckpoint) {
+            saveState();
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return mLength;
+    }
+
+    @Override
+    public File getFile() {
+        return mIsSucceeded ? mTargetFile : mPartFile;
+    }
+
+    /**
+     * Blocks until data at position is loaded. Missing chunk is loaded before other chunks.
+     *
+     * @return count of loaded bytes starting from position, 0 at end of file,
+     * -1 if download was stopped or timeout elapsed
+     */
+    @Override
+    public synchronized long awaitAvailable(long position, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            if (mIsSucceeded || (mCompletedChunks != null && position >= mLength)) {
+                return Math.max(mLength - position, 0);
+            }
+            if (mCompletedChunks != null) {
+                int chunk = mChunksCount == 1 ? 0 : (int) (position / CHUNK_SIZE);
+                int end = mCompletedChunks.nextClearBit(chunk);
+                if (end > chunk) {
+                    return Math.min((long) end * CHUNK_SIZE, mLength) - position;
+                }
+                if (!mTakenChunks.get(chunk)) {
+                    mPriorityChunk = chunk;
+                }
+            }
+            long timeLeft = deadline - System.currentTimeMillis();
+            if (mIsFinished.get() || timeLeft <= 0) {
+                return -1;
+            }
+            wait(timeLeft);
+        }
+    }
+
+    private long getCompletedPrefix() {
+        int firstMissing = mCompletedChunks.nextClearBit(0);
+        return Math.min((long) firstMissing * CHUNK_SIZE, mLength);
+    }
+
+    private void finishSuccessfully() {
+        if (!mIsFinished.compareAndSet(false, true)) {
+            return;
+        }
+        String error = verifyFile();
+        closeFile();
+        addThroughputSample();
+        if (error != null) {
+            Logging.out(LOG_TAG, "Downloaded file is broken: " + error);
+            mPartFile.delete();
+            deleteState();
+        } else if ((mTargetFile.exists() && !mTargetFile.delete()) || !mPartFile.renameTo(mTargetFile)) {
+            error = "can't rename";
+            Logging.out(LOG_TAG, "Can't rename downloaded file");
+        }
+        if (error != null) {
+            synchronized (this) {
+                notifyAll();
+            }
+            mListener.onError("Error during video loading", false);
+            return;
+        }
+        deleteState();
+        synchronized (this) {
+            mIsSucceeded = true;
+            notifyAll();
+        }
+        mListener.onComplete(mTargetFile);
+    }
+
+    /**
+     * @return null if file is complete and synced to disk, otherwise reason of failure
+     */
+    private String verifyFile() {
+        try {
+            long size = mChannel.size();
+            if (size != mLength) {
+                return "length " + size + " instead of " + mLength;
+            }
+            if (mContentMd5 != null && !mContentMd5.equals(calculateMd5())) {
+                return "Content-MD5 mismatch";
+            }
+            mChannel.force(true);
+            return null;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return String.valueOf(e);
+        }
+    }
+
+    private String calculateMd5() throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        ByteBuffer buffer = ByteBufferPool.acquire();
+        try {
+            long position = 0;
+            int read;
+            while ((read = mChannel.read(buffer, position)) > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+                position += read;
+            }
+        } finally {
+            ByteBufferPool.release(buffer);
+        }
+        return Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+    }
+
+    private void finishWithError(String message, boolean isBadAsset) {
+        if (!mIsFinished.compareAndSet(false, true)) {
+            return;
+        }
+        saveState();
+        closeFile();
+        addThroughputSample();
+        for (HttpURLConnection connection : mConnections) {
+            connection.disconnect();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        mListener.onError(message, isBadAsset);
+    }
+
+    /**
+     * Bytes loaded by all connections in this session, resumed part of file is not counted.
+     */
+    private void addThroughputSample() {
+        ThroughputEstimator.getInstance().addSample(mConnectionType, mLoadedBytes.get(),
+                System.currentTimeMillis() - mStartTime);
+    }
+
+    /**
+     * Waits for state which is being written, it syncs file first.
+     */
+    private void closeFile() {
+        synchronized (mStateLock) {
+            if (mRandomAccessFile != null) {
+                try {
+                    mRandomAccessFile.close();
+                } catch (IOException e) {
+                    Logging.out(LOG_TAG, String.valueOf(e));
+                }
+            }
+        }
+    }
+
+    private void readState() {
+        if (mETag == null || !mChunksFile.exists()) {
+            return;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new FileInputStream(mChunksFile));
+            if (input.readInt() != STATE_VERSION || input.readLong() != mLength ||
+                    input.readInt() != CHUNK_SIZE || !mETag.equals(input.readUTF())) {
+                return;
+            }
+            byte[] bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            BitSet chunks = BitSet.valueOf(bytes);
+            if (chunks.length() <= mChunksCount) {
+                mCompletedChunks = chunks;
+                mCompletedCount = chunks.cardinality();
+            }
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, "Can't read download state: " + e.getMessage());
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Saves chunks completed since last checkpoint. Snapshot is taken under downloader lock,
+     * data is synced and state is written outside of it. Snapshot and write are done under state lock,
+     * so snapshot of one connection isn't lost when another one closes file.
+     */
+    private void saveState() {
+        synchronized (mStateLock) {
+            BitSet chunks;
+            synchronized (this) {
+                if (mUnsavedCount == 0) {
+                    return;
+                }
+                mUnsavedCount = 0;
+                chunks = (BitSet) mCompletedChunks.clone();
+            }
+            int count = chunks.cardinality();
+            if (!mIsStateDeleted && count > mSavedCount && syncFile() && writeState(chunks)) {
+                mSavedCount = count;
+            }
+        }
+    }
+
+    private boolean syncFile() {
+        try {
+            mChannel.force(false);
+            return true;
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, "Can't sync download: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * State is written to temporary file and renamed, so crash can't leave it truncated.
+     *
+     * @return true if state is saved
+     */
+    private boolean writeState(BitSet chunks) {
+        if (mETag == null) {
+            return false;
+        }
+        File tempFile = new File(mChunksFile.getPath() + TEMP_EXTENSION);
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new FileOutputStream(tempFile));
+            byte[] bytes = chunks.toByteArray();
+            output.writeInt(STATE_VERSION);
+            output.writeLong(mLength);
+            output.writeInt(CHUNK_SIZE);
+            output.writeUTF(mETag);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+            output.close();
+            output = null;
+            if (!tempFile.renameTo(mChunksFile)) {
+                throw new IOException("can't rename " + tempFile.getName());
+            }
+            return true;
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, "Can't save download state: " + e.getMessage());
+            return false;
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    /**
+     * State isn't written after it was deleted, e.g. by connection which stops after completion.
+     */
+    private void deleteState() {
+        synchronized (mStateLock) {
+            mIsStateDeleted = true;
+            if (mChunksFile.exists()) {
+                mChunksFile.delete();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Logging.out(LOG_TAG, String.valueOf(e));
+            }
+        }
+    }
+
+    private static String getBaseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Server ignored If-Range and returned whole file, so ETag of file was changed.
+     */
+    private static class ContentChangedException extends IOException {
+    }
+}
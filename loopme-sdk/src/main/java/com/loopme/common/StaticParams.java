@@ -32,6 +32,7 @@ public class StaticParams {
     public static final String CLICK_INTENT = "com.loopme.CLICK_INTENT";
 
     public static long CACHED_VIDEO_LIFE_TIME = 1000 * 60 * 60 * 32;//32 hours
+    public static long VIDEO_CACHE_MAX_SIZE = 1024 * 1024 * 100;//100 MB
 
     public static final long FETCH_TIMEOUT = 1000 * 60 * 3;//3 minutes
     public static final int REQUEST_TIMEOUT = 1000 * 20; //20 second
@@ -40,6 +41,10 @@ public class StaticParams {
 
     public static boolean USE_MOBILE_NETWORK_FOR_CACHING = false;
 
+    public static boolean USE_BATCH_REQUESTS = false;
+
+    public static boolean USE_HEDGED_REQUESTS = false;
+
     public static final String BANNER_TAG = "banner";
     public static final String INTERSTITIAL_TAG = "interstitial";
 
@@ -0,0 +1,298 @@
+package com.loopme.common;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loopback http server, which lets MediaPlayer play video file while it is downloaded.
+ * Reads are blocked only when requested bytes are not loaded yet, so player just buffers
+ * instead of failing at the end of loaded part.
+ */
+class StreamingProxy {
+
+    private static final String LOG_TAG = StreamingProxy.class.getSimpleName();
+
+    private static final String CONTENT_TYPE = "video/mp4";
+    private static final int SOCKET_TIMEOUT = 10000;
+    /**
+     * How long reader waits for missing data, download is retried within this time
+     */
+    private static final long DATA_TIMEOUT = 30000;
+    private static final int BUFFER_SIZE = 1024 * 32;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private static StreamingProxy sProxy;
+
+    private final Map<String, Source> mSources = new HashMap<>();
+    private ServerSocket mServerSocket;
+
+    /**
+     * File which is written while it is served.
+     */
+    interface Source {
+        long getLength();
+
+        /**
+         * @return file which contains loaded data, it can be renamed when download is finished
+         */
+        File getFile();
+
+        /**
+         * @return count of loaded bytes from position, 0 at end of file, -1 if data will not be loaded
+         */
+        long awaitAvailable(long position, long timeoutMillis) throws InterruptedException;
+    }
+
+    private StreamingProxy() {
+    }
+
+    static synchronized StreamingProxy getInstance() {
+        if (sProxy == null) {
+            sProxy = new StreamingProxy();
+        }
+        return sProxy;
+    }
+
+    /**
+     * @return url of source for player, or null if server can't be started
+     */
+    synchronized String register(String key, Source source) {
+        if (!ensureStarted()) {
+            return null;
+        }
+        mSources.put(key, source);
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + key;
+    }
+
+    /**
+     * Source is removed only if it is still served by this key, newer download of the same video
+     * can register its own source.
+     */
+    synchronized void unregister(String key, Source source) {
+        if (mSources.get(key) == source) {
+            mSources.remove(key);
+        }
+    }
+
+    private synchronized Source getSource(String key) {
+        return mSources.get(key);
+    }
+
+    /**
+     * @return source which is served by this url, null if url doesn't belong to proxy
+     */
+    synchronized Source getSourceForUrl(String url) {
+        if (mServerSocket == null || mServerSocket.isClosed()) {
+            return null;
+        }
+        String prefix = "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+        return url.startsWith(prefix) ? mSources.get(url.substring(prefix.length())) : null;
+    }
+
+    private boolean ensureStarted() {
+        if (mServerSocket != null && !mServerSocket.isClosed()) {
+            return true;
+        }
+        try {
+            final ServerSocket serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+            ExecutorHelper.getAcceptExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    acceptConnections(serverSocket);
+                }
+            });
+            mServerSocket = serverSocket;
+            Logging.out(LOG_TAG, "Started on port " + serverSocket.getLocalPort());
+            return true;
+        } catch (IOException | RejectedExecutionException e) {
+            Logging.out(LOG_TAG, "Can't start: " + e);
+            return false;
+        }
+    }
+
+    private void acceptConnections(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                try {
+                    ExecutorHelper.getStreamingExecutor().submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            handleConnection(socket);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Logging.out(LOG_TAG, "Too many connections");
+                    closeQuietly(socket);
+                }
+            } catch (IOException e) {
+                Logging.out(LOG_TAG, "Stopped: " + e.getMessage());
+                closeQuietly(serverSocket);
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String requestLine = reader.readLine();
+            String range = null;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                if (line.toLowerCase(Locale.US).startsWith("range:")) {
+                    range = line.substring("range:".length()).trim();
+                }
+            }
+            String[] request = requestLine == null ? new String[0] : requestLine.split(" ");
+            Source source = request.length < 2 ? null : getSource(request[1].substring(1));
+            OutputStream output = socket.getOutputStream();
+            if (source == null) {
+                writeHeaders(output, "404 Not Found", 0, null);
+                return;
+            }
+            serve(source, "HEAD".equals(request[0]), range, output);
+
+        } catch (SocketTimeoutException e) {
+            Logging.out(LOG_TAG, "Player didn't send request");
+        } catch (IOException e) {
+            // player closes connection when it seeks or is released
+            Logging.out(LOG_TAG, "Connection closed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private void serve(Source source, boolean isHead, String range, OutputStream output)
+            throws IOException, InterruptedException {
+        long length = source.getLength();
+        long start = 0;
+        long end = length - 1;
+        Matcher matcher = range == null ? null : RANGE_PATTERN.matcher(range);
+        boolean isPartial = matcher != null && matcher.matches();
+        if (isPartial) {
+            long[] bounds = parseRange(matcher.group(1), matcher.group(2), length);
+            if (bounds == null) {
+                writeHeaders(output, "416 Range Not Satisfiable", 0, "bytes */" + length);
+                return;
+            }
+            start = bounds[0];
+            end = bounds[1];
+        }
+        String contentRange = isPartial ? "bytes " + start + "-" + end + "/" + length : null;
+        writeHeaders(output, isPartial ? "206 Partial Content" : "200 OK", end - start + 1, contentRange);
+        if (!isHead) {
+            writeBody(source, start, end, output);
+        }
+    }
+
+    /**
+     * @param first - first byte position, empty for suffix range
+     * @param last - last byte position or suffix length, can be empty
+     * @return first and last byte of requested part, null if range is invalid or can't be satisfied
+     */
+    static long[] parseRange(String first, String last, long length) {
+        try {
+            long start;
+            long end = length - 1;
+            if (first.isEmpty()) {
+                // "bytes=-" has neither position nor suffix length
+                if (last.isEmpty() || Long.parseLong(last) == 0) {
+                    return null;
+                }
+                start = Math.max(length - Long.parseLong(last), 0);
+            } else {
+                start = Long.parseLong(first);
+                if (!last.isEmpty()) {
+                    long lastPosition = Long.parseLong(last);
+                    if (lastPosition < start) {
+                        return null;
+                    }
+                    end = Math.min(lastPosition, length - 1);
+                }
+            }
+            return start <= end ? new long[]{start, end} : null;
+        } catch (NumberFormatException e) {
+            // position doesn't fit in long
+            return null;
+        }
+    }
+
+    private void writeBody(Source source, long start, long end, OutputStream output)
+            throws IOException, InterruptedException {
+        RandomAccessFile file = openFile(source);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            while (position <= end) {
+                long available = source.awaitAvailable(position, DATA_TIMEOUT);
+                if (available <= 0) {
+                    Logging.out(LOG_TAG, "Data at " + position + " is not available");
+                    return;
+                }
+                int count = (int) Math.min(Math.min(available, buffer.length), end - position + 1);
+                file.seek(position);
+                file.readFully(buffer, 0, count);
+                output.write(buffer, 0, count);
+                position += count;
+            }
+            output.flush();
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Partial file can be renamed between getting its name and opening, then complete file is used.
+     */
+    private RandomAccessFile openFile(Source source) throws FileNotFoundException {
+        try {
+            return new RandomAccessFile(source.getFile(), "r");
+        } catch (FileNotFoundException e) {
+            return new RandomAccessFile(source.getFile(), "r");
+        }
+    }
+
+    private void writeHeaders(OutputStream output, String status, long contentLength, String contentRange)
+            throws IOException {
+        StringBuilder headers = new StringBuilder()
+                .append("HTTP/1.1 ").append(status).append("\r\n")
+                .append("Content-Type: ").append(CONTENT_TYPE).append("\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append("Content-Length: ").append(contentLength).append("\r\n");
+        if (contentRange != null) {
+            headers.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        output.write(headers.toString().getBytes("US-ASCII"));
+        output.flush();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Logging.out(LOG_TAG, String.valueOf(e));
+            }
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package com.loopme.common;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of outbound telemetry requests, pending requests survive process death.
+ * Requests are appended to segment files on disk lane, appends which arrive together are synced
+ * with one fsync. Delivered request is marked by ack record, segment is deleted when all its
+ * requests are delivered. Pending requests are replayed when queue is initialized on next start,
+ * every request carries idempotency key, so server can ignore replayed duplicates.
+ * Records are never appended after torn tail: segment is rolled when its write fails.
+ * When queue takes too much space, the oldest segment is dropped.
+ */
+public class TelemetryQueue {
+
+    private static final String LOG_TAG = TelemetryQueue.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "LoopMeTelemetry";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_EXTENSION = ".log";
+    private static final long SEGMENT_SIZE = 1024 * 64;
+    private static final long MAX_SIZE = 1024 * 512;
+    private static final int MAX_RECORD_SIZE = 1024 * 256;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_ACK = 2;
+
+    private static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+    private static final int REQUEST_TIMEOUT = 10000;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final long RETRY_DELAY = 30 * 1000;
+    private static final long MAX_RETRY_DELAY = 10 * 60 * 1000;
+    /**
+     * Telemetry lane drops the oldest task when it is overloaded, delivery task which didn't start
+     * within this time is considered dropped and is submitted again
+     */
+    private static final long DELIVERY_TIMEOUT = 60 * 1000;
+
+    private static TelemetryQueue sQueue;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TelemetryQueue.this) {
+                mIsRetryScheduled = false;
+            }
+            deliver();
+        }
+    };
+
+    // guarded by this
+    private final LinkedHashMap<String, Request> mPending = new LinkedHashMap<>();
+    private final List<Request> mUnwrittenRequests = new ArrayList<>();
+    private final List<String> mUnwrittenAcks = new ArrayList<>();
+    private File mDirectory;
+    private boolean mIsCommitScheduled;
+    private boolean mIsDeliveryScheduled;
+    private boolean mIsDelivering;
+    private boolean mIsRetryScheduled;
+    private long mScheduleTime;
+    private int mFailedAttempts;
+
+    // disk lane only
+    private final LinkedList<Segment> mSegments = new LinkedList<>();
+    private final Map<String, Segment> mSegmentsById = new HashMap<>();
+    private FileOutputStream mOutput;
+
+    TelemetryQueue() {
+    }
+
+    public static synchronized TelemetryQueue getInstance() {
+        if (sQueue == null) {
+            sQueue = new TelemetryQueue();
+        }
+        return sQueue;
+    }
+
+    /**
+     * Replays requests which were not delivered before process died. Requests which are queued
+     * before initialization are kept in memory until then.
+     */
+    public void init(Context context) {
+        final File directory = new File(context.getFilesDir(), DIRECTORY_NAME);
+        synchronized (this) {
+            if (mDirectory != null) {
+                return;
+            }
+            mDirectory = directory;
+        }
+        try {
+            ExecutorHelper.getDiskExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    load(directory);
+                    commit();
+                    deliver();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // requests are kept in memory, initialization is retried by next ad
+            Logging.out(LOG_TAG, "Initialization is rejected: " + e.getMessage());
+            synchronized (this) {
+                mDirectory = null;
+            }
+        }
+    }
+
+    public void enqueueGet(String url) {
+        enqueue(new Request(UUID.randomUUID().toString(), "GET", url, "", false, new byte[0]));
+    }
+
+    /**
+     * @param isGzipped - true if body is gzip-compressed, it is sent with Content-Encoding header
+     */
+    public void enqueuePost(String url, String contentType, byte[] body, boolean isGzipped) {
+        enqueue(new Request(UUID.randomUUID().toString(), "POST", url, contentType, isGzipped, body));
+    }
+
+    private void enqueue(Request request) {
+        synchronized (this) {
+            mPending.put(request.mId, request);
+            mUnwrittenRequests.add(request);
+            scheduleCommit();
+        }
+        deliver();
+    }
+
+    private void ack(String id) {
+        synchronized (this) {
+            mPending.remove(id);
+            mUnwrittenAcks.add(id);
+            scheduleCommit();
+        }
+    }
+
+    /**
+     * Must be called with lock held. Records which arrive while commit is waiting
+     * for disk lane are written by the same commit.
+     */
+    private void scheduleCommit() {
+        if (!mIsCommitScheduled && mDirectory != null) {
+            mIsCommitScheduled = true;
+            try {
+                ExecutorHelper.getDiskExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        commit();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // records stay unwritten till next commit
+                Logging.out(LOG_TAG, "Commit is rejected: " + e.getMessage());
+                mIsCommitScheduled = false;
+            }
+        }
+    }
+
+    // region disk lane
+
+    private void load(File directory) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Logging.out(LOG_TAG, "Can't create " + directory + ", requests are kept in memory");
+            synchronized (this) {
+                // next ad tries again
+                mDirectory = null;
+                mUnwrittenRequests.clear();
+                mUnwrittenAcks.clear();
+            }
+            return;
+        }
+        File[] files = directory.listFiles();
+        List<Segment> segments = new ArrayList<>();
+        for (File file : files == null ? new File[0] : files) {
+            long index = getSegmentIndex(file);
+            if (index >= 0) {
+                segments.add(new Segment(file, index));
+            }
+        }
+        sortByIndex(segments);
+        LinkedHashMap<String, Request> replayed = new LinkedHashMap<>();
+        for (Segment segment : segments) {
+            readSegment(segment, replayed);
+            mSegments.add(segment);
+        }
+        long nextIndex = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).mIndex + 1;
+        // records are never appended after possibly torn tail of previous run
+        mSegments.add(new Segment(new File(directory, SEGMENT_PREFIX + nextIndex + SEGMENT_EXTENSION), nextIndex));
+        deleteDeliveredSegments();
+        Logging.out(LOG_TAG, "Replay " + replayed.size() + " request(s)");
+        synchronized (this) {
+            replayed.putAll(mPending);
+            mPending.clear();
+            mPending.putAll(replayed);
+        }
+    }
+
+    private void readSegment(Segment segment, Map<String, Request> replayed) {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.mFile)));
+            byte[] record;
+            while ((record = readRecord(input)) != null) {
+                DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(record));
+                byte op = recordInput.readByte();
+                if (op == OP_PUT) {
+                    Request request = readRequest(recordInput);
+                    replayed.put(request.mId, request);
+                    segment.mPendingIds.add(request.mId);
+                    mSegmentsById.put(request.mId, segment);
+                } else if (op == OP_ACK) {
+                    String id = recordInput.readUTF();
+                    replayed.remove(id);
+                    removeFromSegment(id);
+                }
+            }
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, "Can't read " + segment.mFile.getName() + ": " + e.getMessage());
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * @return record, or null at end of segment or at first broken record
+     */
+    private static byte[] readRecord(DataInputStream input) throws IOException {
+        try {
+            int length = input.readInt();
+            long checksum = input.readInt() & 0xffffffffL;
+            if (length <= 0 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+            byte[] record = new byte[length];
+            input.readFully(record);
+            return getChecksum(record) == checksum ? record : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void commit() {
+        List<Request> requests;
+        List<String> acks;
+        synchronized (this) {
+            mIsCommitScheduled = false;
+            if (mDirectory == null || mSegments.isEmpty()) {
+                // not loaded yet, load commits queued records
+                return;
+            }
+            requests = new ArrayList<>(mUnwrittenRequests);
+            acks = new ArrayList<>(mUnwrittenAcks);
+            mUnwrittenRequests.clear();
+            mUnwrittenAcks.clear();
+        }
+        if (requests.isEmpty() && acks.isEmpty()) {
+            return;
+        }
+        Segment segment = mSegments.getLast();
+        boolean isFailed = false;
+        try {
+            if (mOutput == null) {
+                mOutput = new FileOutputStream(segment.mFile, true);
+            }
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            for (Request request : requests) {
+                writeRecord(records, encodeRequest(request));
+                segment.mPendingIds.add(request.mId);
+                mSegmentsById.put(request.mId, segment);
+            }
+            for (String id : acks) {
+                writeRecord(records, encodeAck(id));
+                removeFromSegment(id);
+            }
+            mOutput.write(records.toByteArray());
+            mOutput.getFD().sync();
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, "Can't write queue: " + e.getMessage());
+            closeOutput();
+            isFailed = true;
+            for (Request request : requests) {
+                removeFromSegment(request.mId);
+            }
+            synchronized (this) {
+                // records are written to next segment by next commit
+                mUnwrittenRequests.addAll(0, requests);
+                mUnwrittenAcks.addAll(0, acks);
+            }
+        }
+        // failed write could leave part of record, which would hide records appended after it
+        if (isFailed || segment.mFile.length() >= SEGMENT_SIZE) {
+            closeOutput();
+            mSegments.add(new Segment(new File(mDirectory, SEGMENT_PREFIX + (segment.mIndex + 1) + SEGMENT_EXTENSION),
+                    segment.mIndex + 1));
+        }
+        deleteDeliveredSegments();
+        dropOldestSegments();
+    }
+
+    private void removeFromSegment(String id) {
+        Segment segment = mSegmentsById.remove(id);
+        if (segment != null) {
+            segment.mPendingIds.remove(id);
+        }
+    }
+
+    /**
+     * Deletes old segments which don't have pending requests, current segment is kept.
+     */
+    private void deleteDeliveredSegments() {
+        Segment current = mSegments.getLast();
+        for (Segment segment : new ArrayList<>(mSegments)) {
+            if (segment != current && segment.mPendingIds.isEmpty()) {
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    private void dropOldestSegments() {
+        while (mSegments.size() > 1 && getSize() > MAX_SIZE) {
+            Segment oldest = mSegments.getFirst();
+            Logging.out(LOG_TAG, "Queue is full, drop " + oldest.mPendingIds.size() + " request(s)");
+            synchronized (this) {
+                for (String id : oldest.mPendingIds) {
+                    mPending.remove(id);
+                }
+            }
+            for (String id : oldest.mPendingIds) {
+                mSegmentsById.remove(id);
+            }
+            deleteSegment(oldest);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        mSegments.remove(segment);
+        if (segment.mFile.exists() && !segment.mFile.delete()) {
+            Logging.out(LOG_TAG, "Can't delete " + segment.mFile.getName());
+        }
+    }
+
+    private long getSize() {
+        long size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.mFile.length();
+        }
+        return size;
+    }
+
+    private void closeOutput() {
+        closeQuietly(mOutput);
+        mOutput = null;
+    }
+
+    // endregion
+
+    // region delivery
+
+    /**
+     * Sends pending requests one by one on telemetry lane. Failed request is retried
+     * with exponential backoff, requests behind it wait.
+     * Only one delivery is in flight, task which starts while another one runs exits.
+     */
+    private void deliver() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (mPending.isEmpty() || mIsRetryScheduled || mIsDelivering
+                    || (mIsDeliveryScheduled && now - mScheduleTime < DELIVERY_TIMEOUT)) {
+                return;
+            }
+            mIsDeliveryScheduled = true;
+            mScheduleTime = now;
+        }
+        ExecutorHelper.getTelemetryExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                deliverPending();
+            }
+        });
+    }
+
+    private void deliverPending() {
+        synchronized (this) {
+            mIsDeliveryScheduled = false;
+            if (mIsDelivering) {
+                return;
+            }
+            mIsDelivering = true;
+        }
+        while (true) {
+            Request request;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    mIsDelivering = false;
+                    return;
+                }
+                request = mPending.values().iterator().next();
+            }
+            if (!send(request)) {
+                long delay;
+                synchronized (this) {
+                    mIsDelivering = false;
+                    mIsRetryScheduled = true;
+                    mFailedAttempts++;
+                    delay = Math.min(RETRY_DELAY << Math.min(mFailedAttempts - 1, 10), MAX_RETRY_DELAY);
+                }
+                Logging.out(LOG_TAG, "Retry in " + delay + " ms");
+                mHandler.postDelayed(mRetryRunnable, delay);
+                return;
+            }
+            synchronized (this) {
+                mFailedAttempts = 0;
+            }
+            ack(request.mId);
+        }
+    }
+
+    /**
+     * @return false if request should be retried
+     */
+    private boolean send(Request request) {
+        HttpURLConnection connection = null;
+        try {
+            connection = HttpConnectionManager.openConnection(request.mUrl, REQUEST_TIMEOUT);
+            connection.setRequestMethod(request.mMethod);
+            connection.setRequestProperty(HEADER_IDEMPOTENCY_KEY, request.mId);
+            if ("POST".equals(request.mMethod)) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(request.mBody.length);
+                connection.setRequestProperty("Content-Type", request.mContentType);
+                if (request.mIsGzipped) {
+                    connection.setRequestProperty("Content-Encoding", "gzip");
+                }
+                OutputStream output = connection.getOutputStream();
+                output.write(request.mBody);
+                output.close();
+            }
+            int code = connection.getResponseCode();
+            Logging.out(LOG_TAG, request.mMethod + " " + request.mUrl + ": " + code);
+            if (code >= HttpURLConnection.HTTP_OK && code < HttpURLConnection.HTTP_MULT_CHOICE) {
+                HttpConnectionManager.release(connection.getInputStream());
+                return true;
+            }
+            HttpConnectionManager.releaseError(connection);
+            // request which server can't accept is dropped, except timeout and throttling
+            return code >= HttpURLConnection.HTTP_BAD_REQUEST && code < HttpURLConnection.HTTP_INTERNAL_ERROR
+                    && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT && code != HTTP_TOO_MANY_REQUESTS;
+
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, String.valueOf(e));
+            HttpConnectionManager.releaseError(connection);
+            return false;
+        }
+    }
+
+    // endregion
+
+    // region records
+
+    private static void writeRecord(OutputStream output, byte[] record) throws IOException {
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        dataOutput.writeInt(record.length);
+        dataOutput.writeInt((int) getChecksum(record));
+        dataOutput.write(record);
+    }
+
+    private static byte[] encodeRequest(Request request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(OP_PUT);
+        output.writeUTF(request.mId);
+        output.writeUTF(request.mMethod);
+        output.writeUTF(request.mUrl);
+        output.writeUTF(request.mContentType);
+        output.writeBoolean(request.mIsGzipped);
+        output.writeInt(request.mBody.length);
+        output.write(request.mBody);
+        return bytes.toByteArray();
+    }
+
+    private static Request readRequest(DataInputStream input) throws IOException {
+        String id = input.readUTF();
+        String method = input.readUTF();
+        String url = input.readUTF();
+        String contentType = input.readUTF();
+        boolean isGzipped = input.readBoolean();
+        byte[] body = new byte[input.readInt()];
+        input.readFully(body);
+        return new Request(id, method, url, contentType, isGzipped, body);
+    }
+
+    private static byte[] encodeAck(String id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(OP_ACK);
+        output.writeUTF(id);
+        return bytes.toByteArray();
+    }
+
+    private static long getChecksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    // endregion
+
+    private static long getSegmentIndex(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_EXTENSION)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void sortByIndex(List<Segment> segments) {
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment first, Segment second) {
+                return first.mIndex < second.mIndex ? -1 : (first.mIndex == second.mIndex ? 0 : 1);
+            }
+        });
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Logging.out(LOG_TAG, String.valueOf(e));
+            }
+        }
+    }
+
+    private static class Request {
+
+        private final String mId;
+        private final String mMethod;
+        private final String mUrl;
+        private final String mContentType;
+        private final boolean mIsGzipped;
+        private final byte[] mBody;
+
+        private Request(String id, String method, String url, String contentType, boolean isGzipped, byte[] body) {
+            mId = id;
+            mMethod = method;
+            mUrl = url;
+            mContentType = contentType;
+            mIsGzipped = isGzipped;
+            mBody = body;
+        }
+    }
+
+    private static class Segment {
+
+        private final File mFile;
+        private final long mIndex;
+        private final Set<String> mPendingIds = new HashSet<>();
+
+        private Segment(File file, long index) {
+            mFile = file;
+            mIndex = index;
+        }
+    }
+}
@@ -35,6 +35,8 @@ import com.loopme.constants.StretchOption;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
@@ -98,15 +100,16 @@ public class Utils {
     }
 
     public static String getStringFromStream(InputStream inputStream) {
-        int numberBytesRead = 0;
+        int numberCharsRead;
         StringBuilder out = new StringBuilder();
-        byte[] bytes = new byte[4096];
+        char[] chars = new char[4096];
 
         try {
-            while ((numberBytesRead = inputStream.read(bytes)) != -1) {
-                out.append(new String(bytes, 0, numberBytesRead));
+            Reader reader = new InputStreamReader(inputStream, StaticParams.UTF_8);
+            while ((numberCharsRead = reader.read(chars)) != -1) {
+                out.append(chars, 0, numberCharsRead);
             }
-            inputStream.close();
+            reader.close();
 
         } catch (IOException e) {
             e.printStackTrace();
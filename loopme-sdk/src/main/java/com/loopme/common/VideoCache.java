@@ -0,0 +1,541 @@
+package com.loopme.common;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Index of cached video files, entries are kept in access order for LRU eviction.
+ * Index is persisted in append-only journal, which is replayed once per process.
+ * Cache directory is scanned only on startup, to remove orphan files and to recover downloads
+ * interrupted by crash. Entries expire {@link StaticParams#CACHED_VIDEO_LIFE_TIME} after download,
+ * least recently used ones are evicted when cache size exceeds {@link StaticParams#VIDEO_CACHE_MAX_SIZE}.
+ * Entries which are played or streamed are pinned and never evicted, see {@link #pin}.
+ */
+class VideoCache {
+
+    private static final String LOG_TAG = VideoCache.class.getSimpleName();
+
+    private static final String JOURNAL_FILE_NAME = "cache.journal";
+    private static final String JOURNAL_TEMP_FILE_NAME = "cache.journal.tmp";
+    private static final String JOURNAL_HEADER = "loopme-video-cache 2";
+
+    private static final String RECORD_PUT = "P";
+    private static final String RECORD_ACCESS = "A";
+    private static final String RECORD_REMOVE = "R";
+    private static final String NO_ETAG = "-";
+    private static final String SEPARATOR = " ";
+
+    private static final int COMPACT_MIN_RECORDS = 200;
+    /**
+     * Leaves room for digest and longest extension within 127 chars of file name
+     */
+    private static final int MAX_NAME_LENGTH = 64;
+
+    private static VideoCache sCache;
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Count of users of every pinned entry
+     */
+    private final HashMap<String, Integer> mPins = new HashMap<>();
+    private long mSize;
+    private int mJournalRecords;
+
+    /**
+     * Guards records which are not written yet, journal file itself is written under write lock,
+     * so appends and rewrite keep their order whatever thread runs them.
+     */
+    private final Object mJournalLock = new Object();
+    private final Object mJournalWriteLock = new Object();
+    private final List<String> mUnwrittenRecords = new ArrayList<>();
+    private List<String> mRewriteRecords;
+    private boolean mIsJournalWriteScheduled;
+
+    VideoCache(File directory) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * @return cache or null if external storage is not available
+     */
+    static synchronized VideoCache getInstance(Context context) {
+        if (sCache == null || !sCache.mDirectory.exists()) {
+            File directory = VideoUtils.getParentDir(context);
+            if (directory == null) {
+                return null;
+            }
+            sCache = new VideoCache(directory);
+            sCache.init();
+        }
+        return sCache;
+    }
+
+    /**
+     * Key is readable file name (if url has one) with SHA-1 of url, so different urls don't collide.
+     */
+    static String getKey(String url) {
+        url = VideoUtils.normalizeUrl(url);
+        String name = VideoUtils.detectFileName(url);
+        String digest = getDigest(url);
+        // url without file name gets its short hash as name
+        if (TextUtils.isEmpty(name) || name.equals(Long.toString(url.hashCode() & 0xFFFFFFFFL))) {
+            return digest;
+        }
+        if (name.length() > MAX_NAME_LENGTH) {
+            name = name.substring(0, MAX_NAME_LENGTH);
+        }
+        return name.replaceAll("[^A-Za-z0-9._-]", "_") + "_" + digest;
+    }
+
+    private static String getDigest(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // SHA-1 and UTF-8 are supported on every platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return fully downloaded and not expired video file, or null if it should be downloaded
+     */
+    synchronized File get(String url) {
+        String key = getKey(url);
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.mIsComplete) {
+            return null;
+        }
+        File file = getFileForKey(key);
+        if (file.length() != entry.mSize) {
+            removeEntry(key);
+            return null;
+        }
+        if (isExpired(entry)) {
+            // pinned file is still played, it is removed by trim after it is released
+            if (!mPins.containsKey(key)) {
+                removeEntry(key);
+            }
+            return null;
+        }
+        entry.mLastAccess = System.currentTimeMillis();
+        appendRecord(RECORD_ACCESS + SEPARATOR + key + SEPARATOR + entry.mLastAccess);
+        return file;
+    }
+
+    /**
+     * @return path where video should be downloaded to
+     */
+    File getFile(String url) {
+        return getFileForKey(getKey(url));
+    }
+
+    /**
+     * Registers started download, so it can be resumed or cleaned up after crash.
+     */
+    synchronized void putPartial(String url) {
+        String key = getKey(url);
+        Entry entry = mEntries.get(key);
+        if (entry != null && !entry.mIsComplete) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        put(key, new Entry(0, null, now, now, false));
+    }
+
+    synchronized void putComplete(String url, long size, String eTag) {
+        long now = System.currentTimeMillis();
+        put(getKey(url), new Entry(size, eTag, now, now, true));
+        trim();
+    }
+
+    /**
+     * Deletes video and its partial download.
+     */
+    synchronized void remove(String url) {
+        removeEntry(getKey(url));
+    }
+
+    /**
+     * Protects video from eviction while it is played or streamed, until {@link #unpin} is called.
+     * Video can be pinned before it is downloaded.
+     */
+    synchronized void pin(String url) {
+        String key = getKey(url);
+        Integer count = mPins.get(key);
+        mPins.put(key, count == null ? 1 : count + 1);
+    }
+
+    synchronized void unpin(String url) {
+        String key = getKey(url);
+        Integer count = mPins.get(key);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            mPins.put(key, count - 1);
+        } else {
+            // released entry is evicted by next trim, so main thread doesn't delete files
+            mPins.remove(key);
+        }
+    }
+
+    synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Deletes all videos, except pinned ones.
+     */
+    synchronized void clear() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> item = iterator.next();
+            if (!mPins.containsKey(item.getKey())) {
+                deleteFiles(item.getKey());
+                mSize -= item.getValue().mSize;
+                iterator.remove();
+            }
+        }
+        rewriteJournal();
+        Logging.out(LOG_TAG, "Cache is cleared, " + mEntries.size() + " pinned file(s) kept");
+    }
+
+    void init() {
+        long start = System.currentTimeMillis();
+        readJournal();
+        recover();
+        trim();
+        rewriteJournal();
+        Logging.out(LOG_TAG, "In cache " + mEntries.size() + " file(s), " + mSize + " bytes, loaded in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void put(String key, Entry entry) {
+        Entry previous = mEntries.put(key, entry);
+        if (previous != null) {
+            mSize -= previous.mSize;
+        }
+        mSize += entry.mSize;
+        appendRecord(RECORD_PUT + SEPARATOR + key + SEPARATOR + entry);
+    }
+
+    private void removeEntry(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSize -= entry.mSize;
+            deleteFiles(key);
+            appendRecord(RECORD_REMOVE + SEPARATOR + key);
+            Logging.out(LOG_TAG, "Deleted cached file: " + key);
+        }
+    }
+
+    /**
+     * Removes expired entries, then least recently used ones until cache fits its budget.
+     * Downloads in progress have no size yet, they are removed only when expired.
+     * Pinned entries are skipped, so cache can exceed its budget while they are used.
+     */
+    private void trim() {
+        List<String> evicted = new ArrayList<>();
+        long size = mSize;
+        for (Map.Entry<String, Entry> item : mEntries.entrySet()) {
+            Entry entry = item.getValue();
+            if (isExpired(entry) && !mPins.containsKey(item.getKey())) {
+                evicted.add(item.getKey());
+                size -= entry.mSize;
+            }
+        }
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (size > StaticParams.VIDEO_CACHE_MAX_SIZE && iterator.hasNext()) {
+            Map.Entry<String, Entry> item = iterator.next();
+            if (item.getValue().mIsComplete && !evicted.contains(item.getKey())
+                    && !mPins.containsKey(item.getKey())) {
+                evicted.add(item.getKey());
+                size -= item.getValue().mSize;
+            }
+        }
+        for (String key : evicted) {
+            removeEntry(key);
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return entry.mCreated + StaticParams.CACHED_VIDEO_LIFE_TIME < System.currentTimeMillis();
+    }
+
+    /**
+     * Makes index consistent with files: completes downloads which were renamed but not recorded,
+     * drops entries without files and deletes files without entries.
+     */
+    private void recover() {
+        for (String key : new ArrayList<>(mEntries.keySet())) {
+            Entry entry = mEntries.get(key);
+            File file = getFileForKey(key);
+            if (entry.mIsComplete) {
+                if (file.length() != entry.mSize) {
+                    removeEntry(key);
+                }
+            } else if (file.length() > 0) {
+                Logging.out(LOG_TAG, "Recovered downloaded file: " + key);
+                put(key, new Entry(file.length(), entry.mETag, entry.mCreated, entry.mLastAccess, true));
+            } else if (!new File(mDirectory, key + SegmentedDownloader.PART_EXTENSION).exists()) {
+                removeEntry(key);
+            }
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<String> names = new HashSet<>();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            String key = entry.getKey();
+            names.add(key + VideoUtils.MP4_FORMAT);
+            // leftovers of published file and temporary files of interrupted writes are reclaimed
+            if (!entry.getValue().mIsComplete) {
+                names.add(key + SegmentedDownloader.PART_EXTENSION);
+                names.add(key + SegmentedDownloader.CHUNKS_EXTENSION);
+            }
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isDirectory() && !names.contains(name) && !name.startsWith(JOURNAL_FILE_NAME)) {
+                file.delete();
+                Logging.out(LOG_TAG, "Deleted orphan file: " + name);
+            }
+        }
+    }
+
+    private File getFileForKey(String key) {
+        return new File(mDirectory, key + VideoUtils.MP4_FORMAT);
+    }
+
+    private void deleteFiles(String key) {
+        new File(mDirectory, key + VideoUtils.MP4_FORMAT).delete();
+        new File(mDirectory, key + SegmentedDownloader.PART_EXTENSION).delete();
+        new File(mDirectory, key + SegmentedDownloader.CHUNKS_EXTENSION).delete();
+    }
+
+    private void readJournal() {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mJournalFile));
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                Logging.out(LOG_TAG, "Unknown journal format");
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readRecord(line);
+            }
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, "Can't read journal: " + e.getMessage());
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private void readRecord(String line) {
+        String[] parts = line.split(SEPARATOR);
+        try {
+            if (RECORD_PUT.equals(parts[0]) && parts.length == 7) {
+                String eTag = NO_ETAG.equals(parts[6]) ? null : parts[6];
+                Entry entry = new Entry(Long.parseLong(parts[2]), eTag, Long.parseLong(parts[3]),
+                        Long.parseLong(parts[4]), "1".equals(parts[5]));
+                Entry previous = mEntries.put(parts[1], entry);
+                mSize += entry.mSize - (previous == null ? 0 : previous.mSize);
+            } else if (RECORD_ACCESS.equals(parts[0]) && parts.length == 3) {
+                Entry entry = mEntries.get(parts[1]);
+                if (entry != null) {
+                    entry.mLastAccess = Long.parseLong(parts[2]);
+                }
+            } else if (RECORD_REMOVE.equals(parts[0]) && parts.length == 2) {
+                Entry entry = mEntries.remove(parts[1]);
+                if (entry != null) {
+                    mSize -= entry.mSize;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // record was not fully written before crash
+            Logging.out(LOG_TAG, "Skipped broken record");
+        }
+    }
+
+    /**
+     * Journal is written on disk lane, so callers don't wait for io.
+     * Journal is compacted when it contains many records of removed or updated entries.
+     */
+    private void appendRecord(String record) {
+        mJournalRecords++;
+        if (mJournalRecords > COMPACT_MIN_RECORDS && mJournalRecords > mEntries.size() * 2) {
+            rewriteJournal();
+            return;
+        }
+        synchronized (mJournalLock) {
+            mUnwrittenRecords.add(record);
+        }
+        scheduleJournalWrite();
+    }
+
+    /**
+     * Rewrite contains all entries, so records which are not written yet are replaced by it.
+     */
+    private void rewriteJournal() {
+        List<String> records = new ArrayList<>();
+        for (Map.Entry<String, Entry> item : mEntries.entrySet()) {
+            records.add(RECORD_PUT + SEPARATOR + item.getKey() + SEPARATOR + item.getValue());
+        }
+        mJournalRecords = records.size();
+        synchronized (mJournalLock) {
+            mRewriteRecords = records;
+            mUnwrittenRecords.clear();
+        }
+        scheduleJournalWrite();
+    }
+
+    private void scheduleJournalWrite() {
+        synchronized (mJournalLock) {
+            if (mIsJournalWriteScheduled) {
+                return;
+            }
+            mIsJournalWriteScheduled = true;
+        }
+        try {
+            ExecutorHelper.getDiskExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    writeJournal();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // records are kept and written with next ones
+            Logging.out(LOG_TAG, "Journal write is rejected: " + e.getMessage());
+            synchronized (mJournalLock) {
+                mIsJournalWriteScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Records are taken under write lock, so concurrent writes can't reorder them.
+     */
+    private void writeJournal() {
+        synchronized (mJournalWriteLock) {
+            List<String> rewriteRecords;
+            List<String> records;
+            synchronized (mJournalLock) {
+                mIsJournalWriteScheduled = false;
+                rewriteRecords = mRewriteRecords;
+                mRewriteRecords = null;
+                records = new ArrayList<>(mUnwrittenRecords);
+                mUnwrittenRecords.clear();
+            }
+            if (rewriteRecords != null) {
+                replaceJournal(rewriteRecords);
+            }
+            if (!records.isEmpty()) {
+                appendJournal(records);
+            }
+        }
+    }
+
+    private void appendJournal(List<String> records) {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(mJournalFile, true));
+            for (String record : records) {
+                writer.write(record + "\n");
+            }
+        } catch (IOException e) {
+            // lost records are restored by next compaction
+            Logging.out(LOG_TAG, "Can't write journal: " + e.getMessage());
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private void replaceJournal(List<String> records) {
+        File tempFile = new File(mDirectory, JOURNAL_TEMP_FILE_NAME);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tempFile));
+            writer.write(JOURNAL_HEADER + "\n");
+            for (String record : records) {
+                writer.write(record + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(mJournalFile)) {
+                Logging.out(LOG_TAG, "Can't replace journal");
+            }
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, "Can't write journal: " + e.getMessage());
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Logging.out(LOG_TAG, String.valueOf(e));
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final long mSize;
+        private final String mETag;
+        private final long mCreated;
+        private long mLastAccess;
+        private final boolean mIsComplete;
+
+        private Entry(long size, String eTag, long created, long lastAccess, boolean isComplete) {
+            mSize = size;
+            mETag = eTag;
+            mCreated = created;
+            mLastAccess = lastAccess;
+            mIsComplete = isComplete;
+        }
+
+        @Override
+        public String toString() {
+            String eTag = TextUtils.isEmpty(mETag) ? NO_ETAG : mETag.replace(SEPARATOR, "");
+            return mSize + SEPARATOR + mCreated + SEPARATOR + mLastAccess + SEPARATOR
+                    + (mIsComplete ? "1" : "0") + SEPARATOR + eTag;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.loopme.common;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.loopme.constants.DownloadPriority;
+import com.loopme.debugging.ErrorLog;
+import com.loopme.debugging.ErrorType;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Shares one download of video between all ads which use the same video url.
+ * Every waiter gets preview and result of shared download. Download is cancelled
+ * and its partial file is deleted only when last waiter is unsubscribed.
+ * Downloads are run by {@link DownloadScheduler} with the highest priority of their waiters.
+ * Download of the same video which is requested while previous one is cancelled waits for cancel,
+ * so they don't write the same partial file at once.
+ */
+class VideoDownloadManager {
+
+    private static final String LOG_TAG = VideoDownloadManager.class.getSimpleName();
+
+    private static final long CANCEL_RETRY_DELAY = 1000;
+
+    private static VideoDownloadManager sManager;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Download> mDownloads = new HashMap<>();
+    /**
+     * Downloads which are cancelled, key is kept till their connections and files are closed
+     */
+    private final Map<String, Download> mCancelling = new HashMap<>();
+
+    interface Listener {
+        /**
+         * @param streamUrl - url of local proxy, which serves video while it is downloaded
+         */
+        void onPreviewReady(String streamUrl);
+
+        void onComplete(File file);
+
+        void onError(String message);
+    }
+
+    private VideoDownloadManager() {
+    }
+
+    static synchronized VideoDownloadManager getInstance() {
+        if (sManager == null) {
+            sManager = new VideoDownloadManager();
+        }
+        return sManager;
+    }
+
+    /**
+     * Joins download of video or schedules new one.
+     * Listener is called from background thread, preview is reported only if it was requested
+     * by some waiter. Waiter which needs preview turns it on for download started without it.
+     *
+     * @param priority - one of {@link DownloadPriority}
+     */
+    void subscribe(VideoCache cache, String url, boolean preview, int priority, Listener listener) {
+        String key = VideoCache.getKey(url);
+        Download download;
+        boolean isNew = false;
+        String streamUrl;
+        File file;
+        int downloadPriority;
+        synchronized (this) {
+            download = mDownloads.get(key);
+            // completed download is kept while its waiters play it, but its file can be evicted
+            if (download == null || (download.mFile != null && !download.mFile.exists())) {
+                download = new Download(cache, url, key, preview);
+                mDownloads.put(key, download);
+                // previous download of this video still owns its files, new one is started after cancel
+                download.mIsWaitingForCancel = mCancelling.containsKey(key);
+                isNew = !download.mIsWaitingForCancel;
+            }
+            download.mWaiters.put(listener, priority);
+            streamUrl = download.mStreamUrl;
+            file = download.mFile;
+            downloadPriority = download.getPriority();
+        }
+        if (isNew) {
+            schedule(download, priority);
+            return;
+        }
+        if (download.mIsWaitingForCancel) {
+            Logging.out(LOG_TAG, "Wait for cancel of previous download " + key);
+            return;
+        }
+        Logging.out(LOG_TAG, "Join download " + key);
+        DownloadScheduler.getInstance().setPriority(download, downloadPriority);
+        if (preview && file == null) {
+            download.mDownloader.requestPreview();
+        }
+        // progress which was made before listener joined
+        if (file != null) {
+            listener.onComplete(file);
+        } else if (streamUrl != null) {
+            listener.onPreviewReady(streamUrl);
+        }
+    }
+
+    private void schedule(Download download, int priority) {
+        Logging.out(LOG_TAG, "Schedule download " + download.mKey + ", priority " + DownloadPriority.toString(priority));
+        download.mCache.putPartial(download.mUrl);
+        DownloadScheduler.getInstance().add(download, download.mUrl, priority);
+    }
+
+    /**
+     * Changes priority of listener's interest in video, e.g. when ad is scrolled away.
+     */
+    void setPriority(String url, Listener listener, int priority) {
+        Download download;
+        int downloadPriority;
+        synchronized (this) {
+            download = mDownloads.get(VideoCache.getKey(url));
+            if (download == null || !download.mWaiters.containsKey(listener)) {
+                return;
+            }
+            download.mWaiters.put(listener, priority);
+            downloadPriority = download.getPriority();
+            if (download.mIsWaitingForCancel) {
+                // priority is taken when download is scheduled
+                return;
+            }
+        }
+        DownloadScheduler.getInstance().setPriority(download, downloadPriority);
+    }
+
+    synchronized boolean isLoading(String url) {
+        Download download = mDownloads.get(VideoCache.getKey(url));
+        return download != null && download.mFile == null;
+    }
+
+    /**
+     * Stops delivering of results to listener. If it was last waiter, download is cancelled,
+     * partial file is deleted and video is not served by streaming proxy anymore.
+     */
+    void unsubscribe(String url, Listener listener) {
+        final String key = VideoCache.getKey(url);
+        final Download download;
+        boolean isComplete;
+        boolean isLastWaiter;
+        int downloadPriority;
+        synchronized (this) {
+            download = mDownloads.get(key);
+            if (download == null || download.mWaiters.remove(listener) == null) {
+                return;
+            }
+            downloadPriority = download.getPriority();
+            isLastWaiter = download.mWaiters.isEmpty();
+            if (isLastWaiter) {
+                mDownloads.remove(key);
+                if (download.mIsWaitingForCancel) {
+                    // download wasn't started, previous cancel cleans up files
+                    return;
+                }
+            } else if (download.mIsWaitingForCancel) {
+                return;
+            }
+            isComplete = download.mFile != null;
+            if (isLastWaiter && !isComplete) {
+                mCancelling.put(key, download);
+            }
+        }
+        if (!isLastWaiter) {
+            DownloadScheduler.getInstance().setPriority(download, downloadPriority);
+            return;
+        }
+        DownloadScheduler.getInstance().remove(download);
+        StreamingProxy.getInstance().unregister(key, download.mDownloader);
+        if (isComplete) {
+            return;
+        }
+        Logging.out(LOG_TAG, "Cancel download " + key);
+        submitCancel(download);
+    }
+
+    private void submitCancel(final Download download) {
+        try {
+            ExecutorHelper.getDownloadExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    download.mDownloader.cancel();
+                    onCancelled(download);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // cancel is tried again, so next download of this video doesn't wait forever
+            Logging.out(LOG_TAG, "Cancel is rejected: " + e.getMessage());
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    submitCancel(download);
+                }
+            }, CANCEL_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Partial file is removed from cache only if no new download of this video took it over,
+     * otherwise new download is started and resumes from it.
+     */
+    private void onCancelled(Download download) {
+        Download next;
+        int priority = DownloadPriority.PREFETCH;
+        synchronized (this) {
+            if (mCancelling.get(download.mKey) == download) {
+                mCancelling.remove(download.mKey);
+            }
+            next = mDownloads.get(download.mKey);
+            if (next == null) {
+                download.mCache.remove(download.mUrl);
+                return;
+            }
+            if (!next.mIsWaitingForCancel) {
+                return;
+            }
+            next.mIsWaitingForCancel = false;
+            priority = next.getPriority();
+        }
+        schedule(next, priority);
+    }
+
+    /**
+     * Failed download is forgotten, so next ad can try again.
+     *
+     * @return waiters of failed download
+     */
+    private synchronized List<Listener> removeFailed(Download download) {
+        if (mDownloads.get(download.mKey) == download) {
+            mDownloads.remove(download.mKey);
+        }
+        return new ArrayList<>(download.mWaiters.keySet());
+    }
+
+    private class Download implements SegmentedDownloader.Listener, DownloadScheduler.Task {
+
+        private final VideoCache mCache;
+        private final String mUrl;
+        private final String mKey;
+        private final SegmentedDownloader mDownloader;
+        /**
+         * Priority of every waiter
+         */
+        private final Map<Listener, Integer> mWaiters = new LinkedHashMap<>();
+
+        // state is guarded by manager, so joining waiter gets every event once
+        private String mStreamUrl;
+        private File mFile;
+        /**
+         * True while previous download of the same video is cancelled, this one isn't scheduled yet
+         */
+        private boolean mIsWaitingForCancel;
+
+        private Download(VideoCache cache, String url, String key, boolean preview) {
+            mCache = cache;
+            mUrl = url;
+            mKey = key;
+            mDownloader = new SegmentedDownloader(url, cache.getFile(url), preview, this);
+        }
+
+        /**
+         * @return the highest priority of waiters
+         */
+        private int getPriority() {
+            int priority = DownloadPriority.PREFETCH;
+            for (int waiterPriority : mWaiters.values()) {
+                priority = Math.min(priority, waiterPriority);
+            }
+            return priority;
+        }
+
+        @Override
+        public void start() {
+            Logging.out(LOG_TAG, "Start download " + mKey);
+            try {
+                ExecutorHelper.getDownloadExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        mDownloader.start();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Logging.out(LOG_TAG, "Download is rejected: " + e.getMessage());
+                onError("Error during video loading", false);
+            }
+        }
+
+        @Override
+        public void pause() {
+            mDownloader.pause();
+        }
+
+        @Override
+        public void resume() {
+            mDownloader.resume();
+        }
+
+        @Override
+        public void onPreviewReady() {
+            String streamUrl = StreamingProxy.getInstance().register(mKey, mDownloader);
+            if (streamUrl == null) {
+                Logging.out(LOG_TAG, "Streaming is not available, wait for full video");
+                return;
+            }
+            List<Listener> waiters;
+            synchronized (VideoDownloadManager.this) {
+                if (mDownloads.get(mKey) != this) {
+                    // all waiters left while proxy was started
+                    StreamingProxy.getInstance().unregister(mKey, mDownloader);
+                    return;
+                }
+                mStreamUrl = streamUrl;
+                waiters = new ArrayList<>(mWaiters.keySet());
+            }
+            for (Listener listener : waiters) {
+                listener.onPreviewReady(streamUrl);
+            }
+        }
+
+        @Override
+        public void onComplete(File file) {
+            DownloadScheduler.getInstance().remove(this);
+            mCache.putComplete(mUrl, file.length(), mDownloader.getETag());
+            List<Listener> waiters;
+            synchronized (VideoDownloadManager.this) {
+                mFile = file;
+                waiters = new ArrayList<>(mWaiters.keySet());
+            }
+            for (Listener listener : waiters) {
+                listener.onComplete(file);
+            }
+        }
+
+        @Override
+        public void onError(String message, boolean isBadAsset) {
+            DownloadScheduler.getInstance().remove(this);
+            List<Listener> waiters = removeFailed(this);
+            StreamingProxy.getInstance().unregister(mKey, mDownloader);
+            if (isBadAsset) {
+                ErrorLog.post(message, ErrorType.BAD_ASSET);
+                message = "Error during loading video";
+            }
+            for (Listener listener : waiters) {
+                listener.onError(message);
+            }
+        }
+    }
+}
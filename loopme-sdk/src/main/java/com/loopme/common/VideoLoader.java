@@ -5,40 +5,33 @@ import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.NonNull;
 
-import com.loopme.debugging.ErrorLog;
-import com.loopme.debugging.ErrorType;
+import com.loopme.debugging.LoopMeMetrics;
 import com.loopme.request.AdRequestParametersProvider;
 import com.loopme.constants.ConnectionType;
+import com.loopme.constants.DownloadPriority;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class VideoLoader {
 
     private static final String LOG_TAG = VideoLoader.class.getSimpleName();
 
-    private static final int TIMEOUT = 20000;
     private Callback mCallback;
     private Context mContext;
     private String mVideoUrl;
     private boolean mPartPreload;
 
-    private File mVideoFile;
-    private String mShortFileName;
+    private VideoCache mCache;
+    private final VideoDownloadManager.Listener mDownloadListener = initDownloadListener();
+    private final AtomicBoolean mIsPinned = new AtomicBoolean();
 
-    private int lenghtOfPreview;
-
-    private volatile HttpURLConnection mConnection;
+    private volatile boolean mIsSubscribed;
     private volatile boolean mIsVideoFullyDownloaded;
     private volatile boolean mStop;
-
-    private FileOutputStream mOutputStream;
+    private volatile int mPriority = DownloadPriority.NEXT;
+    private long mDownloadStart;
 
     public VideoLoader(@NonNull String videoUrl, boolean preload, @NonNull Context context,
                        @NonNull Callback callback) {
@@ -52,31 +45,52 @@ public class VideoLoader {
         Logging.out(LOG_TAG, "start");
         handleEmulator();
         Logging.out(LOG_TAG, "Use mobile network for caching: " + StaticParams.USE_MOBILE_NETWORK_FOR_CACHING);
-        VideoUtils.deleteInvalidVideoFiles(mContext);
-
-        mShortFileName = VideoUtils.detectFileName(mVideoUrl) + VideoUtils.MP4_FORMAT;
-
-        File f = VideoUtils.checkFileNotExists(mShortFileName, mContext);
+        mDownloadStart = System.currentTimeMillis();
+        try {
+            ExecutorHelper.getNetworkExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    loadFromCacheOrNetwork();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Logging.out(LOG_TAG, "Video loading is rejected: " + e.getMessage());
+            handleError("Error during video loading");
+        }
+    }
 
-        if (f != null) {
+    /**
+     * Cache index is loaded from disk on first use, so lookup is done on background thread.
+     */
+    private void loadFromCacheOrNetwork() {
+        if (mStop) {
+            return;
+        }
+        mCache = VideoCache.getInstance(mContext);
+        if (mCache == null) {
+            handleError("Error during video loading");
+            return;
+        }
+        // video is kept in cache while ad plays or streams it
+        mCache.pin(mVideoUrl);
+        mIsPinned.set(true);
+        if (mStop) {
+            unpin();
+            return;
+        }
+        File file = mCache.get(mVideoUrl);
+        LoopMeMetrics.recordWarmLookup(file != null || VideoDownloadManager.getInstance().isLoading(mVideoUrl));
+        if (file != null) {
             Logging.out(LOG_TAG, "Video file already exists");
-            if (mCallback != null) {
-                mCallback.onFullVideoLoaded(VideoUtils.getParentDir(mContext).getAbsolutePath() + "/" + mShortFileName);
-            }
+            postFullVideoLoaded(file);
             return;
         }
 
         int connectiontype = AdRequestParametersProvider.getInstance().getConnectionType(mContext);
-        if (connectiontype == ConnectionType.WIFI) {
+        if (connectiontype == ConnectionType.WIFI || StaticParams.USE_MOBILE_NETWORK_FOR_CACHING) {
             preloadVideo(mPartPreload);
         } else {
-            if (StaticParams.USE_MOBILE_NETWORK_FOR_CACHING) {
-                preloadVideo(mPartPreload);
-            } else {
-                if (mCallback != null) {
-                    mCallback.onError(new LoopMeError("Mobile network. Video will not be cached"));
-                }
-            }
+            handleError("Mobile network. Video will not be cached");
         }
     }
 
@@ -87,217 +101,114 @@ public class VideoLoader {
         }
     }
 
-    private void load(String filename, boolean preview) {
+    private void preloadVideo(boolean preview) {
+        Logging.out(LOG_TAG, "preloadVideo " + preview);
+        mIsSubscribed = true;
+        VideoDownloadManager.getInstance().subscribe(mCache, mVideoUrl, preview, mPriority, mDownloadListener);
         if (mStop) {
-            return;
+            unsubscribe();
         }
-        InputStream stream;
-        int downloaded = 0;
-        String eTag = null;
-        int lengthOfFile = 0;
-        lenghtOfPreview = 0;
-        try {
-            URL url = new URL(mVideoUrl);
-            mConnection = (HttpURLConnection) url.openConnection();
-            mConnection.setRequestMethod("HEAD");
-
-            if (mConnection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                eTag = mConnection.getHeaderField("ETag");
-
-                lengthOfFile = mConnection.getContentLength();
-                mConnection.disconnect();
-
-                if (mStop) {
-                    return;
-                }
-
-                Logging.out(LOG_TAG, "Length of file: " + lengthOfFile);
-                if (preview) {
-                    lenghtOfPreview = lengthOfFile / 4;
-                }
-
-                mConnection = (HttpURLConnection) url.openConnection();
-                mConnection.setRequestMethod("GET");
-                if (preview) {
-                    configGetConnection(eTag, lenghtOfPreview);
-                } else {
-                    configGetConnection(eTag, lengthOfFile);
-                }
-
-                stream = new BufferedInputStream(mConnection.getInputStream());
-
-                if (mStop) {
-                    return;
-                }
-
-                mShortFileName = VideoUtils.getParentDir(mContext).getAbsolutePath() + "/" + filename;
-                mVideoFile = new File(mShortFileName);
-                mOutputStream = new FileOutputStream(mVideoFile);
-
-                byte buffer[] = new byte[4096];
-                int length;
-
-                while ((length = stream.read(buffer)) != -1) {
-                    mOutputStream.write(buffer, 0, length);
-                    downloaded += length;
-                }
-
-                if (preview) {
-                    handleVideoPreviewLoaded(downloaded, eTag, lengthOfFile);
-                } else {
-                    handleVideoFullDownloaded();
-                }
+    }
 
-            } else {
-                if (mCallback != null) {
-                    mCallback.onError(new LoopMeError("Error during loading video"));
-                }
-                ErrorLog.post("Bad asset[responseCode == " + mConnection.getResponseCode() + "]:" + mVideoUrl,
-                        ErrorType.BAD_ASSET);
+    private VideoDownloadManager.Listener initDownloadListener() {
+        return new VideoDownloadManager.Listener() {
+            @Override
+            public void onPreviewReady(String streamUrl) {
+                handleVideoPreviewLoaded(streamUrl);
             }
 
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-            ErrorLog.post("Bad asset[MalformedURLException]: " + mVideoUrl, ErrorType.BAD_ASSET);
-
-        } catch (IOException e) {
-            Logging.out(LOG_TAG, "Exception: " + e.getMessage());
-            e.printStackTrace();
-            int lenght = preview ? lenghtOfPreview : lengthOfFile;
-            reconnect(downloaded, eTag, lenght, preview);
+            @Override
+            public void onComplete(File file) {
+                handleVideoFullDownloaded(file);
+            }
 
-        } finally {
-            if (mOutputStream != null) {
-                try {
-                    mOutputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            @Override
+            public void onError(String message) {
+                handleError(message);
             }
+        };
+    }
+
+    private void handleError(String message) {
+        if (!mStop && mCallback != null) {
+            mCallback.onError(new LoopMeError(message));
         }
     }
 
-    private void handleVideoPreviewLoaded(int downloaded, String eTag, int lengthOfFile) {
-        Logging.out(LOG_TAG, "downloaded preview! file size: " + mVideoFile.length());
+    private void handleVideoPreviewLoaded(final String streamUrl) {
+        Logging.out(LOG_TAG, "downloaded preview! stream: " + streamUrl);
 
         new Handler(Looper.getMainLooper()).post(new Runnable() {
             @Override
             public void run() {
                 if (mCallback != null) {
-                    mCallback.onPreviewLoaded(mShortFileName);
+                    mCallback.onPreviewLoaded(streamUrl);
                 }
             }
         });
-
         Logging.out(LOG_TAG, "load rest of file");
-        reconnect(downloaded, eTag, lengthOfFile, false);
-    }
-
-    private void reconnect(int downloadedBefore, String eTag, int lengthOfFile, boolean preview) {
-        if (mStop) {
-            return;
-        }
-        Logging.out(LOG_TAG, "reconnect " + downloadedBefore + " " + preview);
-        if (downloadedBefore == 0) {
-            ErrorLog.post("Bad asset[loaded 0 bytes]: " + mVideoUrl, ErrorType.BAD_ASSET);
-            if (mCallback != null) {
-                mCallback.onError(new LoopMeError("Error during video loading"));
-            }
-            return;
-        }
-
-        int downloaded = downloadedBefore;
-        try {
-            URL url = new URL(mVideoUrl);
-            mConnection = (HttpURLConnection) url.openConnection();
-            mConnection.setRequestMethod("GET");
-            mConnection.setRequestProperty("Range", "bytes=" + downloadedBefore + "-" + lengthOfFile);
-            mConnection.setRequestProperty("If-Range", eTag);
-
-            InputStream stream = new BufferedInputStream(mConnection.getInputStream());
-
-            FileOutputStream fos = new FileOutputStream(mVideoFile, true);
-            byte buffer[] = new byte[4096];
-            int length = 0;
-
-            while ((length = stream.read(buffer)) != -1) {
-                fos.write(buffer, 0, length);
-                downloaded += length;
-            }
-            stream.close();
-            fos.close();
-
-            if (preview) {
-                handleVideoPreviewLoaded(downloaded, eTag, lengthOfFile);
-            } else {
-                handleVideoFullDownloaded();
-            }
-
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-
-        } catch (IOException e) {
-            Logging.out(LOG_TAG, "Exception: " + e.getMessage());
-            e.printStackTrace();
-            reconnect(downloaded, eTag, lengthOfFile, preview);
-        }
     }
 
-    private void handleVideoFullDownloaded() {
+    private void handleVideoFullDownloaded(final File file) {
         mIsVideoFullyDownloaded = true;
+        LoopMeMetrics.record(LoopMeMetrics.STAGE_VIDEO_DOWNLOAD, System.currentTimeMillis() - mDownloadStart);
+        postFullVideoLoaded(file);
+    }
 
+    private void postFullVideoLoaded(final File file) {
         new Handler(Looper.getMainLooper()).post(new Runnable() {
             @Override
             public void run() {
                 if (mCallback != null) {
-                    mCallback.onFullVideoLoaded(mShortFileName);
+                    mCallback.onFullVideoLoaded(file.getAbsolutePath());
                 }
             }
         });
-
     }
 
-    private void preloadVideo(final boolean partPreload) {
-        Logging.out(LOG_TAG, "preloadVideo " + partPreload);
-        ExecutorHelper.getExecutor().submit(new Runnable() {
-            @Override
-            public void run() {
-                load(mShortFileName, partPreload);
-            }
-        });
+    /**
+     * @param priority - one of {@link DownloadPriority}, download of video is scheduled with it
+     */
+    public void setPriority(int priority) {
+        if (mPriority == priority) {
+            return;
+        }
+        mPriority = priority;
+        if (mIsSubscribed) {
+            VideoDownloadManager.getInstance().setPriority(mVideoUrl, mDownloadListener, priority);
+        }
     }
 
+    /**
+     * Shared download is cancelled only if no other ad waits for the same video.
+     */
     public void stop() {
         Logging.out(LOG_TAG, "stop()");
         mStop = true;
-        if (mConnection != null) {
-            ExecutorHelper.getExecutor().submit(new Runnable() {
-                @Override
-                public void run() {
-                    Logging.out(LOG_TAG, "disconnect()");
-                    mConnection.disconnect();
-                }
-            });
-        }
+        unsubscribe();
+        unpin();
+    }
 
-        //delete file if it not fully downloaded
-        if (!mIsVideoFullyDownloaded && mVideoFile != null && mVideoFile.exists()) {
-            Logging.out(LOG_TAG, "remove bad file");
-            mVideoFile.delete();
+    private void unpin() {
+        if (mIsPinned.compareAndSet(true, false)) {
+            mCache.unpin(mVideoUrl);
         }
     }
 
-    private void configGetConnection(String eTag, int lenght) {
-        mConnection.setReadTimeout(TIMEOUT);
-        mConnection.setConnectTimeout(TIMEOUT);
-        mConnection.setRequestProperty("Range", "bytes=0-" + lenght);
-        mConnection.setRequestProperty("If-Range", eTag);
+    private void unsubscribe() {
+        if (mIsSubscribed) {
+            mIsSubscribed = false;
+            VideoDownloadManager.getInstance().unsubscribe(mVideoUrl, mDownloadListener);
+        }
     }
 
     public interface Callback {
         void onError(LoopMeError error);
 
-        void onPreviewLoaded(String filePath);
+        /**
+         * @param streamUrl - url of local proxy, which serves video while it is downloaded
+         */
+        void onPreviewLoaded(String streamUrl);
 
         void onFullVideoLoaded(String filePath);
     }
@@ -5,6 +5,7 @@ import android.content.Context;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Locale;
 
 class VideoUtils {
 
@@ -17,59 +18,26 @@ class VideoUtils {
      */
     private static final int MAX_FILE_NAME_LENGHT = 127 - 4;
 
-    public static void deleteInvalidVideoFiles(Context context) {
-        File parentDir = getParentDir(context);
-        if (parentDir == null) {
-            return;
-        }
-
-        int amountOfCachedFiles = 0;
-        File[] files = parentDir.listFiles();
-        if(files == null){
-            return;
+    /**
+     * Url without fragment and with lower case scheme and host, so same video has one cache key.
+     */
+    static String normalizeUrl(String url) {
+        String result = url.trim();
+        int fragment = result.indexOf('#');
+        if (fragment >= 0) {
+            result = result.substring(0, fragment);
         }
-        for (File file : files) {
-            if (!file.isDirectory()) {
-                if (file.getName().endsWith(MP4_FORMAT)) {
-
-                    File f = new File(file.getAbsolutePath());
-                    long creationTime = f.lastModified();
-                    long currentTime = System.currentTimeMillis();
-
-                    if ((creationTime + StaticParams.CACHED_VIDEO_LIFE_TIME < currentTime) ||
-                            (f.length() == 0)) {
-                        f.delete();
-                        Logging.out(LOG_TAG, "Deleted cached file: " + file.getAbsolutePath());
-                    } else {
-                        amountOfCachedFiles++;
-                    }
-                }
+        int schemeEnd = result.indexOf("://");
+        if (schemeEnd > 0) {
+            int pathStart = result.indexOf('/', schemeEnd + 3);
+            if (pathStart < 0) {
+                pathStart = result.length();
             }
+            result = result.substring(0, pathStart).toLowerCase(Locale.US) + result.substring(pathStart);
         }
-        Logging.out(LOG_TAG, "In cache " + amountOfCachedFiles + " file(s)");
-        float cacheHours = StaticParams.CACHED_VIDEO_LIFE_TIME / (1000 * 60 * 60);
-        Logging.out(LOG_TAG, "Cache time: " + cacheHours + " hours");
+        return result;
     }
 
-	public static File checkFileNotExists(String filename, Context context) {
-		File parentDir = VideoUtils.getParentDir(context);
-		if (parentDir == null) {
-			return null;
-		}
-		Logging.out(LOG_TAG, "Cache dir: " + parentDir.getAbsolutePath());
-
-		File[] files = parentDir.listFiles();
-		if(files == null){
-			return null;
-		}
-		for (File file : files) {
-			if (!file.isDirectory() && file.getName().startsWith(filename)) {
-				return file;
-			}
-		}
-		return null;
-	}
-
     public static String detectFileName(String videoUrl) {
         String fileName = null;
         try {
@@ -103,23 +71,9 @@ class VideoUtils {
 
     static void clearCache(Context context) {
         Logging.out(LOG_TAG, "Clear cache");
-        File parentDir = context.getExternalFilesDir(VIDEO_FOLDER);
-
-        File[] files = new File[0];
-        if (parentDir == null) {
-            return;
-        }
-        files = parentDir.listFiles();
-        int deletedFilesCounter = 0;
-        for (File file : files) {
-            if (!file.isDirectory()) {
-                if (file.getName().endsWith(MP4_FORMAT)) {
-                    File f = new File(file.getAbsolutePath());
-                    f.delete();
-                    deletedFilesCounter++;
-                }
-            }
+        VideoCache cache = VideoCache.getInstance(context);
+        if (cache != null) {
+            cache.clear();
         }
-        Logging.out(LOG_TAG, "Deleted " + deletedFilesCounter + " file(s)");
     }
 }
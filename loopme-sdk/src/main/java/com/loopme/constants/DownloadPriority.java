@@ -0,0 +1,38 @@
+package com.loopme.constants;
+
+/**
+ * Priority classes of video downloads, lower value is loaded first.
+ */
+public class DownloadPriority {
+
+    /**
+     * Video of ad which is on screen
+     */
+    public static final int VISIBLE = 0;
+    /**
+     * Video of ad which is going to be shown, e.g. loaded interstitial
+     */
+    public static final int NEXT = 1;
+    /**
+     * Speculative download, e.g. video of prefetched ad or ad which was scrolled away
+     */
+    public static final int PREFETCH = 2;
+
+    public static String toString(int priority) {
+        switch (priority) {
+            case VISIBLE:
+                return "VISIBLE";
+
+            case NEXT:
+                return "NEXT";
+
+            case PREFETCH:
+                return "PREFETCH";
+
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    private DownloadPriority() {}
+}
@@ -0,0 +1,37 @@
+package com.loopme.constants;
+
+/**
+ * Severity of SDK log messages. Messages are written in debug mode or during live debug session,
+ * messages below level which is set by {@link com.loopme.Settings#setLogLevel} are skipped.
+ */
+public class LogLevel {
+
+    /**
+     * Frequent messages, e.g. progress of video playback
+     */
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARNING = 2;
+    public static final int ERROR = 3;
+
+    public static String toString(int level) {
+        switch (level) {
+            case DEBUG:
+                return "DEBUG";
+
+            case INFO:
+                return "INFO";
+
+            case WARNING:
+                return "WARNING";
+
+            case ERROR:
+                return "ERROR";
+
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    private LogLevel() {}
+}
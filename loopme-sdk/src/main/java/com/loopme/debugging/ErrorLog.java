@@ -2,13 +2,9 @@ package com.loopme.debugging;
 
 import android.text.TextUtils;
 
-import com.loopme.common.StaticParams;
 import com.loopme.request.AdRequestParametersProvider;
 import com.loopme.common.Logging;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class ErrorLog {
 
     private static final String LOG_TAG = ErrorLog.class.getSimpleName();
@@ -17,38 +13,28 @@ public class ErrorLog {
     }
 
     public static void post(String errorMessage) {
-        Logging.out(LOG_TAG, errorMessage);
-        Map<String, String> params = initPostDataParams(errorMessage, null, null);
-        HttpUtils.postDataToServer(params);
+        post(errorMessage, null, null);
     }
 
     public static void post(String errorMessage, String type) {
-        Logging.out(LOG_TAG, errorMessage);
-        Map<String, String> params = initPostDataParams(errorMessage, type, null);
-        HttpUtils.postDataToServer(params);
+        post(errorMessage, type, null);
     }
 
-    public static void post(String errorMessage, String type, String appKey) {
-        Logging.out(LOG_TAG, errorMessage);
-        Map<String, String> params = initPostDataParams(errorMessage, type, appKey);
-        HttpUtils.postDataToServer(params);
+    /**
+     * @param sampleRate - part of errors which are reported, from 0 to 1, set by server
+     */
+    public static void setSampleRate(float sampleRate) {
+        ErrorUploader.getInstance().setSampleRate(sampleRate);
     }
 
-    private static Map<String, String> initPostDataParams(String errorMessage, String type, String appkey) {
-        Map<String, String> params = new HashMap<>();
-        AdRequestParametersProvider provider = AdRequestParametersProvider.getInstance();
-
-        params.put(Params.DEVICE_OS, "android");
-        params.put(Params.SDK_TYPE, "loopme");
-        params.put(Params.SDK_VERSION, StaticParams.SDK_VERSION);
-        params.put(Params.DEVICE_ID, provider.getViewerToken());
-        params.put(Params.PACKAGE_ID, provider.getPackage());
-        params.put(Params.APP_KEY, TextUtils.isEmpty(appkey) ? provider.getAppKey() : appkey);
-
-        params.put(Params.MSG, "sdk_error");
-        params.put(Params.ERROR_TYPE, TextUtils.isEmpty(type) ? ErrorType.CUSTOM : type);
-
-        params.put(Params.ERROR_MSG, errorMessage);
-        return params;
+    /**
+     * Error is sent in batch with other errors, see {@link ErrorUploader}.
+     */
+    public static void post(String errorMessage, String type, String appKey) {
+        Logging.out(LOG_TAG, errorMessage);
+        LoopMeMetrics.recordFailure(type);
+        String errorType = TextUtils.isEmpty(type) ? ErrorType.CUSTOM : type;
+        String errorAppKey = TextUtils.isEmpty(appKey) ? AdRequestParametersProvider.getInstance().getAppKey() : appKey;
+        ErrorUploader.getInstance().add(errorType, errorMessage, errorAppKey);
     }
 }
@@ -0,0 +1,150 @@
+package com.loopme.debugging;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides which errors are reported. Error is sampled with probability set by server,
+ * then it takes token from bucket of its type and app key: burst of the same errors
+ * is reported only while bucket has tokens. Suppressed errors are counted, so their
+ * number can be reported instead.
+ * Not thread-safe, guarded by {@link ErrorUploader}.
+ */
+class ErrorRateLimiter {
+
+    private static final int BUCKET_SIZE = 5;
+    /**
+     * Time in which bucket gets one token back
+     */
+    private static final long REFILL_INTERVAL = 60 * 1000;
+    private static final int MAX_BUCKETS = 64;
+
+    private final Random mRandom = new Random();
+    private final LinkedHashMap<String, Bucket> mBuckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            if (size() > MAX_BUCKETS) {
+                // count of evicted bucket is kept till next report
+                addEvicted(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+    /**
+     * Suppressed counts of evicted buckets by type and app key
+     */
+    private final LinkedHashMap<String, Bucket> mEvicted = new LinkedHashMap<>();
+    private float mSampleRate = 1;
+
+    /**
+     * @param sampleRate - part of errors which are reported, from 0 to 1
+     */
+    void setSampleRate(float sampleRate) {
+        mSampleRate = Math.max(0, Math.min(1, sampleRate));
+    }
+
+    /**
+     * @return true if error should be reported, otherwise it is counted as suppressed
+     */
+    boolean tryAcquire(String type, String appKey, long now) {
+        String key = getKey(type, appKey);
+        Bucket bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(type, appKey, now);
+            mBuckets.put(key, bucket);
+        }
+        bucket.refill(now);
+        if (mRandom.nextFloat() >= mSampleRate || bucket.mTokens < 1) {
+            bucket.mSuppressedCount++;
+            return false;
+        }
+        bucket.mTokens--;
+        return true;
+    }
+
+    boolean hasSuppressed() {
+        if (!mEvicted.isEmpty()) {
+            return true;
+        }
+        for (Bucket bucket : mBuckets.values()) {
+            if (bucket.mSuppressedCount > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return buckets with suppressed errors, their counts are reset
+     */
+    List<Suppressed> drainSuppressed() {
+        List<Suppressed> suppressed = new ArrayList<>();
+        for (Bucket bucket : mEvicted.values()) {
+            suppressed.add(new Suppressed(bucket.mType, bucket.mAppKey, bucket.mSuppressedCount));
+        }
+        mEvicted.clear();
+        for (Bucket bucket : mBuckets.values()) {
+            if (bucket.mSuppressedCount > 0) {
+                suppressed.add(new Suppressed(bucket.mType, bucket.mAppKey, bucket.mSuppressedCount));
+                bucket.mSuppressedCount = 0;
+            }
+        }
+        return suppressed;
+    }
+
+    private void addEvicted(Bucket bucket) {
+        if (bucket.mSuppressedCount <= 0) {
+            return;
+        }
+        String key = getKey(bucket.mType, bucket.mAppKey);
+        Bucket evicted = mEvicted.get(key);
+        if (evicted != null) {
+            evicted.mSuppressedCount += bucket.mSuppressedCount;
+        } else {
+            mEvicted.put(key, bucket);
+        }
+    }
+
+    private static String getKey(String type, String appKey) {
+        return type + '\n' + appKey;
+    }
+
+    static class Suppressed {
+
+        final String mType;
+        final String mAppKey;
+        final int mCount;
+
+        private Suppressed(String type, String appKey, int count) {
+            mType = type;
+            mAppKey = appKey;
+            mCount = count;
+        }
+    }
+
+    private static class Bucket {
+
+        private final String mType;
+        private final String mAppKey;
+        private float mTokens = BUCKET_SIZE;
+        private long mRefillTime;
+        private int mSuppressedCount;
+
+        private Bucket(String type, String appKey, long now) {
+            mType = type;
+            mAppKey = appKey;
+            mRefillTime = now;
+        }
+
+        private void refill(long now) {
+            if (now > mRefillTime) {
+                mTokens = Math.min(BUCKET_SIZE, mTokens + (float) (now - mRefillTime) / REFILL_INTERVAL);
+                mRefillTime = now;
+            }
+        }
+    }
+}
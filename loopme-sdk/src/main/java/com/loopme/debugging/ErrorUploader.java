@@ -0,0 +1,228 @@
+package com.loopme.debugging;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.loopme.common.ExecutorHelper;
+import com.loopme.common.Logging;
+import com.loopme.common.StaticParams;
+import com.loopme.common.TelemetryQueue;
+import com.loopme.request.AdRequestParametersProvider;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Collects errors and sends them in gzip-compressed batches, so burst of errors costs one request.
+ * Identical errors are counted instead of being repeated. When buffer is full the oldest of the rarest
+ * errors is dropped, so repeated error is not pushed out by burst of distinct ones.
+ * Batch is sent when enough errors are collected or when first of them waited long enough.
+ * Batch is handed to {@link TelemetryQueue}, which keeps it on disk until it is delivered.
+ * Errors pass {@link ErrorRateLimiter} first, batch reports how many errors it suppressed.
+ * Batch is built and compressed on telemetry lane.
+ */
+class ErrorUploader {
+
+    private static final String LOG_TAG = ErrorUploader.class.getSimpleName();
+
+    private static final int MAX_ERRORS = 50;
+    private static final int FLUSH_SIZE = 20;
+    private static final long FLUSH_DELAY = 30 * 1000;
+
+    private static ErrorUploader sUploader;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            submitFlush();
+        }
+    };
+
+    /**
+     * Errors by type, message and app key, in order of arrival
+     */
+    private final LinkedHashMap<String, Error> mErrors = new LinkedHashMap<>();
+    private final ErrorRateLimiter mLimiter = new ErrorRateLimiter();
+    private final String mUrl;
+    private int mDroppedCount;
+    private boolean mIsFlushScheduled;
+
+    ErrorUploader(String url) {
+        mUrl = url;
+    }
+
+    static synchronized ErrorUploader getInstance() {
+        if (sUploader == null) {
+            sUploader = new ErrorUploader(HttpUtils.ERROR_URL);
+        }
+        return sUploader;
+    }
+
+    synchronized void setSampleRate(float sampleRate) {
+        mLimiter.setSampleRate(sampleRate);
+    }
+
+    void add(String type, String message, String appKey) {
+        boolean isFull;
+        synchronized (this) {
+            if (!mLimiter.tryAcquire(type, appKey, System.currentTimeMillis())) {
+                scheduleFlush(FLUSH_DELAY);
+                return;
+            }
+            String key = getKey(type, message, appKey);
+            Error error = mErrors.get(key);
+            if (error != null) {
+                error.mCount++;
+            } else {
+                if (mErrors.size() >= MAX_ERRORS) {
+                    dropRarest();
+                }
+                mErrors.put(key, new Error(type, message, appKey, 1));
+            }
+            isFull = mErrors.size() >= FLUSH_SIZE;
+            if (!isFull) {
+                scheduleFlush(FLUSH_DELAY);
+            }
+        }
+        if (isFull) {
+            submitFlush();
+        }
+    }
+
+    private void dropRarest() {
+        Map.Entry<String, Error> rarest = null;
+        for (Map.Entry<String, Error> entry : mErrors.entrySet()) {
+            if (rarest == null || entry.getValue().mCount < rarest.getValue().mCount) {
+                rarest = entry;
+            }
+        }
+        if (rarest != null) {
+            mDroppedCount += rarest.getValue().mCount;
+            mErrors.remove(rarest.getKey());
+        }
+    }
+
+    /**
+     * Must be called with lock held. Already scheduled flush is not postponed.
+     */
+    private void scheduleFlush(long delay) {
+        if (!mIsFlushScheduled) {
+            mIsFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, delay);
+        }
+    }
+
+    private void submitFlush() {
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            // flush which is dropped by overloaded lane is scheduled again by next error
+            mIsFlushScheduled = false;
+        }
+        ExecutorHelper.getTelemetryExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    private void flush() {
+        List<Error> batch;
+        List<ErrorRateLimiter.Suppressed> suppressed;
+        int droppedCount;
+        synchronized (this) {
+            if (mErrors.isEmpty() && !mLimiter.hasSuppressed()) {
+                return;
+            }
+            batch = new ArrayList<>(mErrors.values());
+            suppressed = mLimiter.drainSuppressed();
+            droppedCount = mDroppedCount;
+            mErrors.clear();
+            mDroppedCount = 0;
+        }
+        try {
+            Logging.out(LOG_TAG, "Send " + batch.size() + " error(s), " + droppedCount + " dropped, "
+                    + suppressed.size() + " suppressed type(s)");
+            byte[] body = gzip(buildBatch(batch, suppressed, droppedCount));
+            TelemetryQueue.getInstance().enqueuePost(mUrl, HttpUtils.JSON_CONTENT_TYPE, body, true);
+        } catch (JSONException | IOException e) {
+            Logging.out(LOG_TAG, "Can't build batch: " + e.getMessage());
+        }
+    }
+
+    private static String getKey(String type, String message, String appKey) {
+        return type + '\n' + message + '\n' + appKey;
+    }
+
+    private static String buildBatch(List<Error> batch, List<ErrorRateLimiter.Suppressed> suppressed,
+                                     int droppedCount) throws JSONException {
+        AdRequestParametersProvider provider = AdRequestParametersProvider.getInstance();
+        JSONObject json = new JSONObject();
+        json.put(Params.DEVICE_OS, "android");
+        json.put(Params.SDK_TYPE, "loopme");
+        json.put(Params.SDK_VERSION, StaticParams.SDK_VERSION);
+        json.put(Params.DEVICE_ID, provider.getViewerToken());
+        json.put(Params.PACKAGE_ID, provider.getPackage());
+        json.put(Params.MSG, "sdk_error");
+        json.put(Params.DROPPED_COUNT, droppedCount);
+
+        JSONArray errors = new JSONArray();
+        for (Error error : batch) {
+            JSONObject item = new JSONObject();
+            item.put(Params.APP_KEY, error.mAppKey);
+            item.put(Params.ERROR_TYPE, error.mType);
+            item.put(Params.ERROR_MSG, error.mMessage);
+            item.put(Params.COUNT, error.mCount);
+            errors.put(item);
+        }
+        json.put(Params.ERRORS, errors);
+
+        JSONArray suppressedErrors = new JSONArray();
+        for (ErrorRateLimiter.Suppressed item : suppressed) {
+            JSONObject suppressedItem = new JSONObject();
+            suppressedItem.put(Params.APP_KEY, item.mAppKey);
+            suppressedItem.put(Params.ERROR_TYPE, item.mType);
+            suppressedItem.put(Params.COUNT, item.mCount);
+            suppressedErrors.put(suppressedItem);
+        }
+        json.put(Params.SUPPRESSED, suppressedErrors);
+        return json.toString();
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream output = new GZIPOutputStream(bytes);
+        try {
+            output.write(text.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class Error {
+
+        private final String mType;
+        private final String mMessage;
+        private final String mAppKey;
+        private int mCount;
+
+        private Error(String type, String message, String appKey, int count) {
+            mType = type;
+            mMessage = message;
+            mAppKey = appKey;
+            mCount = count;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.loopme.debugging;
 
 import com.loopme.common.ExecutorHelper;
+import com.loopme.common.HttpConnectionManager;
 import com.loopme.common.Logging;
 
 import java.io.BufferedWriter;
@@ -9,7 +10,6 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.util.Map;
 
@@ -19,30 +19,45 @@ class HttpUtils {
 
     private static final int REQUEST_TIMEOUT = 10000;
     private static final String CONTENT_TYPE = "application/x-www-form-urlencoded";
+    static final String JSON_CONTENT_TYPE = "application/json";
 
-    private static final String ERROR_URL = "https://track.loopme.me/api/errors";
+    static final String ERROR_URL = "https://track.loopme.me/api/errors";
 
-    private static void handleRequest(final Map<String, String> params) {
-        URL url;
+    /**
+     * Posts data on calling thread.
+     *
+     * @param linesKey - parameter which gets lines, they are streamed into request body
+     */
+    static void handleRequest(Map<String, String> params, String linesKey, LogRingBuffer.LineSource lines) {
         HttpURLConnection urlConnection = null;
 
         try {
-            url = new URL(ERROR_URL);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setReadTimeout(REQUEST_TIMEOUT);
-            urlConnection.setConnectTimeout(REQUEST_TIMEOUT);
+            urlConnection = HttpConnectionManager.openConnection(ERROR_URL, REQUEST_TIMEOUT);
             urlConnection.setRequestMethod("POST");
             urlConnection.setDoInput(true);
             urlConnection.setDoOutput(true);
 
             urlConnection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            if (lines != null) {
+                urlConnection.setChunkedStreamingMode(0);
+            }
 
             OutputStream os = urlConnection.getOutputStream();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+            final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
 
             String data = getPostDataString(params);
 
             writer.write(data);
+            if (lines != null) {
+                writer.write("&" + URLEncoder.encode(linesKey, "UTF-8") + "=");
+                lines.writeTo(new LogRingBuffer.LineConsumer() {
+                    @Override
+                    public boolean accept(String line) throws IOException {
+                        writer.write(URLEncoder.encode(line + "\n", "UTF-8"));
+                        return true;
+                    }
+                });
+            }
             writer.flush();
             writer.close();
             os.close();
@@ -51,6 +66,11 @@ class HttpUtils {
 
             int code = urlConnection.getResponseCode();
             Logging.out(LOG_TAG, "response code : " + code);
+            if (code == HttpURLConnection.HTTP_OK) {
+                HttpConnectionManager.release(urlConnection.getInputStream());
+            } else {
+                HttpConnectionManager.releaseError(urlConnection);
+            }
         } catch (NullPointerException e) {
             e.printStackTrace();
             Logging.out(LOG_TAG, e.getMessage());
@@ -58,19 +78,15 @@ class HttpUtils {
         } catch (IOException e) {
             e.printStackTrace();
             Logging.out(LOG_TAG, String.valueOf(e));
-
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            HttpConnectionManager.releaseError(urlConnection);
         }
     }
 
     public static void postDataToServer(final Map<String, String> params) {
-        ExecutorHelper.getExecutor().submit(new Runnable() {
+        ExecutorHelper.getTelemetryExecutor().submit(new Runnable() {
             @Override
             public void run() {
-                handleRequest(params);
+                handleRequest(params, null, null);
             }
         });
     }
@@ -5,17 +5,24 @@ import android.os.CountDownTimer;
 import android.os.Handler;
 import android.os.Looper;
 
+import com.loopme.common.ExecutorHelper;
 import com.loopme.common.Logging;
 import com.loopme.common.StaticParams;
 import com.loopme.common.Utils;
 import com.loopme.request.AdRequestParametersProvider;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * While live debug session is active, SDK logs are kept in {@link LogRingBuffer}, logs
+ * which would be overwritten in ring buffer are spilled to {@link LogSpillFile}.
+ * When session ends, logs are streamed to server. Logs are not kept outside of session.
+ */
 public class LiveDebug {
 
     private static final String LOG_TAG = LiveDebug.class.getSimpleName();
@@ -23,39 +30,98 @@ public class LiveDebug {
     //default debug time is 5 minutes
     private static final int DEBUG_TIME = 5 * 60 * 1000;
 
-    private static LogDbHelper sLogDbHelper;
-    private static ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static final int MAX_LOG_COUNT = 1000;
+    /**
+     * Session logs are spilled in batches, well before ring buffer overwrites them
+     */
+    private static final int SPILL_BATCH_SIZE = MAX_LOG_COUNT / 4;
+    private static final String SPILL_FILE_NAME = "LoopMeDebugLogs";
+    private static final String LEGACY_DATABASE_NAME = "LoopMeLogs.db";
+
+    private static final LogRingBuffer sLogs = new LogRingBuffer(MAX_LOG_COUNT);
+    private static final AtomicBoolean sIsSpillScheduled = new AtomicBoolean();
+
+    private static volatile File sCacheDir;
+    // disk lane only, loggers read sSpilledSequence and sCanSpill
+    private static LogSpillFile sSpillFile;
+    private static volatile long sSpilledSequence;
+    private static volatile boolean sCanSpill;
+    /**
+     * Session which owns spill state, 0 if none, and the last session which is sent. Disk lane only.
+     */
+    private static int sSpillSession;
+    private static int sSentSession;
 
     private static CountDownTimer sDebugTimer;
-    private static boolean sIsDebugOn;
+    private static volatile boolean sIsDebugOn;
+    // guarded by LiveDebug.class
+    private static int sSessionCount;
 
-    public static void init(Context context) {
-        sLogDbHelper = new LogDbHelper(context);
+    public static void init(final Context context) {
+        if (sCacheDir != null) {
+            return;
+        }
+        final File cacheDir = context.getCacheDir();
+        submitToDisk(new Runnable() {
+            @Override
+            public void run() {
+                // logs were kept in database by previous versions
+                context.deleteDatabase(LEGACY_DATABASE_NAME);
+                deleteSpillFiles(cacheDir);
+            }
+        });
+        // sessions open spill files after leftovers of previous process are deleted
+        sCacheDir = cacheDir;
     }
 
+    /**
+     * Called from main thread and network lane.
+     */
     public static void setLiveDebug(final boolean debug) {
         Logging.out(LOG_TAG, "setLiveDebug " + debug);
-        if (sIsDebugOn != debug) {
-            if (debug) {
-                sIsDebugOn = debug;
-                Handler handler = new Handler(Looper.getMainLooper());
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        startTimer();
-                    }
-                });
+        final int session;
+        synchronized (LiveDebug.class) {
+            if (!debug || sIsDebugOn) {
+                return;
             }
+            sIsDebugOn = true;
+            session = ++sSessionCount;
         }
+        openSpillFile(session);
+        Handler handler = new Handler(Looper.getMainLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                startTimer(session);
+            }
+        });
+    }
+
+    public static boolean isDebugOn() {
+        return sIsDebugOn;
     }
 
     public static void handle(String logTag, String text) {
-        if (sIsDebugOn) {
-            saveLog(logTag, text);
+        if (!sIsDebugOn) {
+            return;
+        }
+        sLogs.add(logTag, text, Looper.getMainLooper() == Looper.myLooper());
+        if (sCanSpill && sLogs.getNextSequence() - sSpilledSequence >= SPILL_BATCH_SIZE
+                && sIsSpillScheduled.compareAndSet(false, true)) {
+            boolean isSubmitted = submitToDisk(new Runnable() {
+                @Override
+                public void run() {
+                    sIsSpillScheduled.set(false);
+                    spill();
+                }
+            });
+            if (!isSubmitted) {
+                // not logged, it would be handled here again
+                sIsSpillScheduled.set(false);
+            }
         }
     }
-
-    private static void startTimer() {
+    private static void startTimer(final int session) {
         if (sDebugTimer == null) {
             sDebugTimer = new CountDownTimer(DEBUG_TIME, 1000) {
                 @Override
@@ -64,7 +130,7 @@ public class LiveDebug {
 
                 @Override
                 public void onFinish() {
-                    sendToServer();
+                    sendToServer(session);
                     sIsDebugOn = false;
                     sDebugTimer = null;
                 }
@@ -74,22 +140,137 @@ public class LiveDebug {
         }
     }
 
-    private static void sendToServer() {
-        ExecutorService executor = Executors.newCachedThreadPool();
-        executor.submit(new Runnable() {
+    /**
+     * Every session has its own spill file, so file of previous session isn't overwritten while it is sent.
+     */
+    private static void openSpillFile(final int session) {
+        final File cacheDir = sCacheDir;
+        if (cacheDir == null) {
+            return;
+        }
+        boolean isSubmitted = submitToDisk(new Runnable() {
+            @Override
+            public void run() {
+                if (sSpillSession != 0) {
+                    // previous session has ended, but its logs are not sent yet
+                    upload(sSpillSession);
+                }
+                try {
+                    sSpillFile = LogSpillFile.open(new File(cacheDir, SPILL_FILE_NAME + session));
+                    sSpillSession = session;
+                    sCanSpill = true;
+                } catch (IOException e) {
+                    Logging.out(LOG_TAG, "Can't open spill file, logs are kept in memory: " + e.getMessage());
+                }
+            }
+        });
+        if (!isSubmitted) {
+            Logging.out(LOG_TAG, "Disk lane is overloaded, logs are kept in memory");
+        }
+    }
+
+    /**
+     * Must be called on disk lane.
+     */
+    private static void spill() {
+        if (sSpillFile == null || !sCanSpill) {
+            return;
+        }
+        try {
+            long end = sLogs.getNextSequence();
+            sSpilledSequence = sLogs.read(sSpilledSequence, sSpillFile);
+            if (sSpilledSequence < end) {
+                Logging.out(LOG_TAG, "Spill file is full, the rest of session is kept in memory");
+                sCanSpill = false;
+            }
+        } catch (IOException e) {
+            Logging.out(LOG_TAG, "Can't spill logs: " + e.getMessage());
+            sCanSpill = false;
+        }
+    }
+
+    private static void sendToServer(final int session) {
+        boolean isSubmitted = submitToDisk(new Runnable() {
             @Override
             public void run() {
-                if (sLogDbHelper != null) {
-                    Logging.out(LOG_TAG, "send to server");
-                    Map<String, String> params = initPostDataParams();
-                    HttpUtils.postDataToServer(params);
+                if (session <= sSentSession || (sSpillSession != 0 && sSpillSession != session)) {
+                    // logs were sent when next session was opened
+                    return;
                 }
+                upload(session);
             }
         });
+        if (!isSubmitted) {
+            Logging.out(LOG_TAG, "Disk lane is overloaded, logs are sent with next session");
+        }
+    }
+
+    /**
+     * Must be called on disk lane. Detaches spill state of session, so next session starts with empty one.
+     * Logs are sent on network lane, which doesn't drop tasks, spill file is deleted when they are sent.
+     */
+    private static void upload(int session) {
+        // the last logs of session are spilled before they are read
+        spill();
+        final LogSpillFile spillFile = sSpillFile;
+        final long spilledSequence = sSpilledSequence;
+        sSpillFile = null;
+        sCanSpill = false;
+        sSpillSession = 0;
+        sSentSession = session;
+        Logging.out(LOG_TAG, "send to server");
+        final Map<String, String> params = initPostDataParams();
+        try {
+            ExecutorHelper.getNetworkExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HttpUtils.handleRequest(params, Params.DEBUG_LOGS, getLogs(spillFile, spilledSequence));
+                    } finally {
+                        deleteSpillFile(spillFile);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Logging.out(LOG_TAG, "Logs are not sent: " + e.getMessage());
+            deleteSpillFile(spillFile);
+        }
+    }
+
+    private static void deleteSpillFile(LogSpillFile spillFile) {
+        if (spillFile != null) {
+            spillFile.delete();
+        }
+    }
+
+    /**
+     * Deletes spill files which were left by killed process.
+     */
+    private static void deleteSpillFiles(File cacheDir) {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(SPILL_FILE_NAME)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return false if task was rejected by disk lane
+     */
+    private static boolean submitToDisk(Runnable task) {
+        try {
+            ExecutorHelper.getDiskExecutor().submit(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
     }
 
     private static Map<String, String> initPostDataParams() {
-        String debugLogs = initLogsString();
         AdRequestParametersProvider provider = AdRequestParametersProvider.getInstance();
 
         Map<String, String> params = new HashMap<>();
@@ -100,7 +281,6 @@ public class LiveDebug {
         params.put(Params.PACKAGE_ID, provider.getPackage());
         params.put(Params.APP_KEY, provider.getAppKey());
         params.put(Params.MSG, "sdk_debug");
-        params.put(Params.DEBUG_LOGS, debugLogs);
         params.put(Params.APP_IDS, encryptString(Utils.getPackageInstalledAsString(provider.getPackagesInstalled())));
         return params;
     }
@@ -109,40 +289,19 @@ public class LiveDebug {
         return Utils.getEncryptedString(installedAsString);
     }
 
-    private static String initLogsString() {
-        if (sLogDbHelper != null) {
-            List<String> loglist = sLogDbHelper.getLogs();
-            sLogDbHelper.clear();
-            StringBuilder sb = new StringBuilder();
-            for (String s : loglist) {
-                sb.append(s);
-                sb.append("\n");
-            }
-            return sb.toString();
-        }
-        return null;
-    }
-
-    private static void saveLog(String logTag, String text) {
-        final String logString = formatLogMessage(logTag, text);
-        if (sLogDbHelper != null) {
-            sExecutor.submit(new Runnable() {
-                @Override
-                public void run() {
-                    sLogDbHelper.putLog(logString);
+    /**
+     * Logs are streamed into request body: spilled ones, then the rest of ring buffer.
+     * Sent logs are forgotten.
+     */
+    private static LogRingBuffer.LineSource getLogs(final LogSpillFile spillFile, final long spilledSequence) {
+        return new LogRingBuffer.LineSource() {
+            @Override
+            public void writeTo(LogRingBuffer.LineConsumer consumer) throws IOException {
+                if (spillFile != null) {
+                    spillFile.writeTo(consumer);
                 }
-            });
-        }
-    }
-
-    private static String formatLogMessage(String logTag, String text) {
-        String thread = (Looper.getMainLooper() == Looper.myLooper()) ? "ui" : "bg";
-        StringBuilder sb = new StringBuilder()
-                .append(thread)
-                .append(": ")
-                .append(logTag)
-                .append(": ")
-                .append(text);
-        return sb.toString();
+                sLogs.clear(sLogs.read(spillFile != null ? spilledSequence : 0, consumer));
+            }
+        };
     }
-}
\ No newline at end of file
+}
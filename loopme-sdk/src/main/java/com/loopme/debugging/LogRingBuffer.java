@@ -0,0 +1,91 @@
+package com.loopme.debugging;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity log buffer, new entries overwrite the oldest ones.
+ * Writers don't take locks: entry gets its sequence number and is published into its slot.
+ * Entries keep tag and text as is, line is formatted only when buffer is read.
+ */
+class LogRingBuffer {
+
+    interface LineConsumer {
+        /**
+         * @return false if consumer can't take more lines
+         */
+        boolean accept(String line) throws IOException;
+    }
+
+    interface LineSource {
+        void writeTo(LineConsumer consumer) throws IOException;
+    }
+
+    private final AtomicReferenceArray<Entry> mEntries;
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private volatile long mStartSequence;
+
+    LogRingBuffer(int capacity) {
+        mEntries = new AtomicReferenceArray<>(capacity);
+    }
+
+    void add(String tag, String text, boolean isUiThread) {
+        long sequence = mNextSequence.getAndIncrement();
+        mEntries.set((int) (sequence % mEntries.length()), new Entry(sequence, tag, text, isUiThread));
+    }
+
+    long getNextSequence() {
+        return mNextSequence.get();
+    }
+
+    /**
+     * Passes entries starting from given sequence to consumer, in order.
+     * Entries which were overwritten or are not published yet are skipped.
+     *
+     * @return sequence of the first entry which wasn't taken by consumer
+     */
+    long read(long fromSequence, LineConsumer consumer) throws IOException {
+        long end = mNextSequence.get();
+        long sequence = Math.max(fromSequence, Math.max(mStartSequence, end - mEntries.length()));
+        for (; sequence < end; sequence++) {
+            Entry entry = mEntries.get((int) (sequence % mEntries.length()));
+            if (entry != null && entry.mSequence == sequence && !consumer.accept(entry.format())) {
+                break;
+            }
+        }
+        return Math.max(sequence, fromSequence);
+    }
+
+    /**
+     * Forgets entries before given sequence.
+     */
+    void clear(long toSequence) {
+        mStartSequence = Math.max(mStartSequence, toSequence);
+    }
+
+    private static class Entry {
+
+        private final long mSequence;
+        private final String mTag;
+        private final String mText;
+        private final boolean mIsUiThread;
+
+        private Entry(long sequence, String tag, String text, boolean isUiThread) {
+            mSequence = sequence;
+            mTag = tag;
+            mText = text;
+            mIsUiThread = isUiThread;
+        }
+
+        private String format() {
+            return new StringBuilder()
+                    .append(mIsUiThread ? "ui" : "bg")
+                    .append(": ")
+                    .append(mTag)
+                    .append(": ")
+                    .append(mText)
+                    .toString();
+        }
+    }
+}
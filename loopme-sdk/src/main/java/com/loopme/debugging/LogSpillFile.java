@@ -0,0 +1,93 @@
+package com.loopme.debugging;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped file which keeps logs of live debug session, which don't fit in {@link LogRingBuffer}.
+ * File has fixed size, when it is full the rest of session stays only in ring buffer.
+ */
+class LogSpillFile implements LogRingBuffer.LineConsumer, LogRingBuffer.LineSource {
+
+    private static final int SIZE = 1024 * 1024;
+
+    private final File mFile;
+    private final MappedByteBuffer mBuffer;
+
+    private LogSpillFile(File file, MappedByteBuffer buffer) {
+        mFile = file;
+        mBuffer = buffer;
+    }
+
+    static LogSpillFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(SIZE);
+            // mapping stays valid after channel is closed
+            return new LogSpillFile(file, randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public boolean accept(String line) throws IOException {
+        byte[] bytes = (line + '\n').getBytes("UTF-8");
+        if (bytes.length > mBuffer.remaining()) {
+            return false;
+        }
+        mBuffer.put(bytes);
+        return true;
+    }
+
+    @Override
+    public void writeTo(LogRingBuffer.LineConsumer consumer) throws IOException {
+        ByteBuffer written = mBuffer.duplicate();
+        written.flip();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new BufferInputStream(written), "UTF-8"));
+        String line = reader.readLine();
+        while (line != null && consumer.accept(line)) {
+            line = reader.readLine();
+        }
+    }
+
+    /**
+     * Mapping is released by GC.
+     */
+    void delete() {
+        if (!mFile.delete()) {
+            mFile.deleteOnExit();
+        }
+    }
+
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.loopme.debugging;
+
+import android.text.TextUtils;
+
+import com.loopme.common.Logging;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of ad loading stages and failure counters.
+ * Recording is lock-free and uses fixed memory, host app can pull {@link Snapshot}
+ * or register {@link Listener}.
+ */
+public class LoopMeMetrics {
+
+    private static final String LOG_TAG = LoopMeMetrics.class.getSimpleName();
+
+    public static final int STAGE_ADV_ID = 0;
+    public static final int STAGE_URL_BUILD = 1;
+    /**
+     * Includes DNS lookup, it is not reported separately by HttpURLConnection
+     */
+    public static final int STAGE_CONNECT = 2;
+    public static final int STAGE_TTFB = 3;
+    /**
+     * Time spent waiting for response body, response is parsed while it is streamed
+     */
+    public static final int STAGE_BODY = 4;
+    public static final int STAGE_PARSE = 5;
+    public static final int STAGE_HTML_PRELOAD = 6;
+    public static final int STAGE_VIDEO_DOWNLOAD = 7;
+    public static final int STAGE_TIME_TO_READY = 8;
+
+    private static final String[] STAGE_NAMES = {"adv_id", "url_build", "connect", "ttfb", "body",
+            "parse", "html_preload", "video_download", "time_to_ready"};
+
+    private static final LatencyHistogram[] sHistograms = new LatencyHistogram[STAGE_NAMES.length];
+    private static final ConcurrentHashMap<String, AtomicLong> sFailures = new ConcurrentHashMap<>();
+    private static final List<Listener> sListeners = new CopyOnWriteArrayList<>();
+    private static final AtomicLong sPrimaryWins = new AtomicLong();
+    private static final AtomicLong sHedgeWins = new AtomicLong();
+    private static final AtomicLong sWarmHits = new AtomicLong();
+    private static final AtomicLong sWarmMisses = new AtomicLong();
+
+    static {
+        for (int i = 0; i < sHistograms.length; i++) {
+            sHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Called on thread which recorded value, implementation should return quickly.
+     */
+    public interface Listener {
+        void onStageRecorded(int stage, long durationMillis);
+
+        void onFailure(String errorType);
+    }
+
+    private LoopMeMetrics() {
+    }
+
+    public static void record(int stage, long durationMillis) {
+        if (stage < 0 || stage >= sHistograms.length) {
+            Logging.out(LOG_TAG, "Unknown stage " + stage);
+            return;
+        }
+        sHistograms[stage].record(durationMillis);
+        for (Listener listener : sListeners) {
+            listener.onStageRecorded(stage, durationMillis);
+        }
+    }
+
+    /**
+     * @param errorType - one of {@link ErrorType}, null is counted as {@link ErrorType#CUSTOM}
+     */
+    public static void recordFailure(String errorType) {
+        String type = TextUtils.isEmpty(errorType) ? ErrorType.CUSTOM : errorType;
+        AtomicLong counter = sFailures.get(type);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = sFailures.putIfAbsent(type, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+        for (Listener listener : sListeners) {
+            listener.onFailure(type);
+        }
+    }
+
+    /**
+     * Counts which request delivered response when hedged requests are enabled.
+     *
+     * @param isHedge - true if response of second (hedged) request arrived first
+     */
+    public static void recordHedgeWinner(boolean isHedge) {
+        if (isHedge) {
+            sHedgeWins.incrementAndGet();
+        } else {
+            sPrimaryWins.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts video loads which were served by cache or download started in advance.
+     *
+     * @param isHit - true if video didn't need new download
+     */
+    public static void recordWarmLookup(boolean isHit) {
+        if (isHit) {
+            sWarmHits.incrementAndGet();
+        } else {
+            sWarmMisses.incrementAndGet();
+        }
+    }
+
+    public static void addListener(Listener listener) {
+        if (listener != null) {
+            sListeners.add(listener);
+        }
+    }
+
+    public static void removeListener(Listener listener) {
+        sListeners.remove(listener);
+    }
+
+    public static Snapshot getSnapshot() {
+        LatencyHistogram.Snapshot[] stages = new LatencyHistogram.Snapshot[sHistograms.length];
+        for (int i = 0; i < sHistograms.length; i++) {
+            stages[i] = sHistograms[i].getSnapshot();
+        }
+        Map<String, Long> failures = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : sFailures.entrySet()) {
+            failures.put(entry.getKey(), entry.getValue().get());
+        }
+        return new Snapshot(stages, failures, sPrimaryWins.get(), sHedgeWins.get(),
+                sWarmHits.get(), sWarmMisses.get());
+    }
+
+    public static void reset() {
+        for (LatencyHistogram histogram : sHistograms) {
+            histogram.reset();
+        }
+        sFailures.clear();
+        sPrimaryWins.set(0);
+        sHedgeWins.set(0);
+        sWarmHits.set(0);
+        sWarmMisses.set(0);
+    }
+
+    public static String getStageName(int stage) {
+        return stage >= 0 && stage < STAGE_NAMES.length ? STAGE_NAMES[stage] : "unknown";
+    }
+
+    public static class Snapshot {
+
+        private final LatencyHistogram.Snapshot[] mStages;
+        private final Map<String, Long> mFailures;
+        private final long mPrimaryWins;
+        private final long mHedgeWins;
+        private final long mWarmHits;
+        private final long mWarmMisses;
+
+        private Snapshot(LatencyHistogram.Snapshot[] stages, Map<String, Long> failures,
+                         long primaryWins, long hedgeWins, long warmHits, long warmMisses) {
+            mStages = stages;
+            mFailures = Collections.unmodifiableMap(failures);
+            mPrimaryWins = primaryWins;
+            mHedgeWins = hedgeWins;
+            mWarmHits = warmHits;
+            mWarmMisses = warmMisses;
+        }
+
+        /**
+         * @return count of hedged loads which were served by first request
+         */
+        public long getPrimaryWins() {
+            return mPrimaryWins;
+        }
+
+        /**
+         * @return count of hedged loads which were served by second request
+         */
+        public long getHedgeWins() {
+            return mHedgeWins;
+        }
+
+        /**
+         * @return count of video loads which were served by cache or download in progress
+         */
+        public long getWarmHits() {
+            return mWarmHits;
+        }
+
+        /**
+         * @return count of video loads which started new download
+         */
+        public long getWarmMisses() {
+            return mWarmMisses;
+        }
+
+        public LatencyHistogram.Snapshot getStage(int stage) {
+            return mStages[stage];
+        }
+
+        /**
+         * @return failures count by {@link ErrorType}
+         */
+        public Map<String, Long> getFailures() {
+            return mFailures;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < mStages.length; i++) {
+                if (mStages[i].getCount() > 0) {
+                    builder.append(STAGE_NAMES[i]).append(": ").append(mStages[i]).append('\n');
+                }
+            }
+            builder.append("failures: ").append(mFailures);
+            if (mPrimaryWins + mHedgeWins > 0) {
+                builder.append("\nhedge wins: ").append(mHedgeWins).append(" of ").append(mPrimaryWins + mHedgeWins);
+            }
+            if (mWarmHits + mWarmMisses > 0) {
+                builder.append("\nwarm hits: ").append(mWarmHits).append(" of ").append(mWarmHits + mWarmMisses);
+            }
+            return builder.toString();
+        }
+    }
+}
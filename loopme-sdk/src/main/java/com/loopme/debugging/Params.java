@@ -18,6 +18,10 @@ class Params {
     public static final String ERROR_TYPE = "error_type";//["server"|"bad_asset"|"js"|"custom"]
     public static final String ERROR_MSG = "error_msg";//examples depends on error_type:
     public static final String APP_IDS = "app_ids";
+    public static final String ERRORS = "errors";// batch of errors, every item has app_key, error_type, error_msg and count
+    public static final String COUNT = "count";// how many times the same error happened
+    public static final String DROPPED_COUNT = "dropped_count";// errors which didn't fit in batch buffer
+    public static final String SUPPRESSED = "suppressed";// errors skipped by sampling or rate limit, every item has app_key, error_type and count
 //            "server" -> "Timeout"
 //            "server" -> "Server code 502"
 //            "bad_asset" -> "Wrong encoding: https://i.loopme.me/fd192b26e6c548af.mp4"
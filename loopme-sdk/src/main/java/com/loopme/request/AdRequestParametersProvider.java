@@ -1,10 +1,7 @@
 package com.loopme.request;
 
 import android.Manifest;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Configuration;
@@ -13,7 +10,6 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
-import android.os.BatteryManager;
 import android.provider.Settings;
 import android.support.v4.content.ContextCompat;
 import android.telephony.TelephonyManager;
@@ -33,8 +29,6 @@ import com.loopme.constants.ConnectionType;
 
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import static com.loopme.common.StaticParams.UNKNOWN_NAME;
 import static com.loopme.constants.DeviceType.PHONE;
@@ -64,11 +58,9 @@ public class AdRequestParametersProvider {
 
     private String mAppKey;
     private String mPackageId;
-    private String mUserAgent;
+    private volatile String mUserAgent;
     private int mScreenWidth;
     private int mScreenHeight;
-    private int mAdWidth;
-    private int mAdHeight;
     private String mDeviceName;
     private BaseAd mBaseAd;
 
@@ -283,6 +275,11 @@ public class AdRequestParametersProvider {
         mCarrierInited = true;
     }
 
+    void resetCarrier() {
+        mCarrierInited = false;
+        mCarrier = null;
+    }
+
     public boolean isDntPresent() {
         return mDntPresent;
     }
@@ -353,76 +350,9 @@ public class AdRequestParametersProvider {
      * result[1] - plugged type: USB,AC,WL,CHRG,NCHRG
      */
     public String[] getBatteryInfo(final Context context) {
-
-        final Object monitor = new Object();
-
-        final String[] result = new String[2];
-
-        final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                synchronized (monitor) {
-                    int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
-                    int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
-                    float batteryPct = level / (float) scale;
-                    result[0] = String.valueOf(batteryPct);
-
-                    int status = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
-                    switch (status) {
-                        case 0:
-                            result[1] = "NCHRG";
-                            break;
-                        case BatteryManager.BATTERY_PLUGGED_AC:
-                            result[1] = "AC";
-                            break;
-                        case BatteryManager.BATTERY_PLUGGED_USB:
-                            result[1] = "USB";
-                            break;
-                        case BatteryManager.BATTERY_PLUGGED_WIRELESS:
-                            result[1] = "WL";
-                            break;
-                        default:
-                            result[1] = "CHRG";
-                    }
-                    monitor.notifyAll();
-                }
-            }
-        };
-
-        IntentFilter batteryLevelFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
-        context.registerReceiver(batteryReceiver, batteryLevelFilter);
-
-        // on some devices broadcast does not sent sometimes
-        // in this case continue by timeout
-        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
-        executor.schedule(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (monitor) {
-                    if (result[0] == null) {
-                        result[0] = "-1.0";
-                        result[1] = "UNKNOWN";
-                    }
-                    monitor.notifyAll();
-                }
-            }
-        }, 2, TimeUnit.MILLISECONDS);
-
-        synchronized (monitor) {
-            try {
-                if (result[0] == null) {
-                    monitor.wait();
-                }
-            } catch (InterruptedException e) {
-                // do nothing
-            }
-            try {
-                context.unregisterReceiver(batteryReceiver);
-            } catch (IllegalArgumentException e) {
-                // ignore
-            }
-        }
-        return result;
+        BatteryInfoCache cache = BatteryInfoCache.getInstance();
+        cache.init(context);
+        return cache.getBatteryInfo();
     }
 
     public String getWebViewVersion(Context context) {
@@ -451,6 +381,23 @@ public class AdRequestParametersProvider {
         }
     }
 
+    /**
+     * Detects default user agent of WebView without creating WebView instance,
+     * so it can be called from background thread. Does nothing if user agent is already known.
+     */
+    public void resolveUserAgent(Context context) {
+        if (!TextUtils.isEmpty(mUserAgent) || context == null) {
+            return;
+        }
+        String userAgent = null;
+        try {
+            userAgent = WebSettings.getDefaultUserAgent(context);
+        } catch (RuntimeException e) {
+            Logging.out(LOG_TAG, "Can't get default user agent: " + e.getMessage());
+        }
+        mUserAgent = TextUtils.isEmpty(userAgent) ? DEFAULT_USER_AGENT : userAgent;
+    }
+
     public String getUserAgent() {
         return mUserAgent;
     }
@@ -478,38 +425,36 @@ public class AdRequestParametersProvider {
         }
     }
 
-    public int getAdWidth() {
-        return mAdWidth;
-    }
-
-    public int getAdHeight() {
-        return mAdHeight;
-    }
-
-    public void setAdSize(BaseAd baseAd) {
+    /**
+     * Size is returned instead of being kept here, so background prefetch
+     * doesn't change size of foreground request.
+     *
+     * @return width and height of ad in dp, interstitial takes whole screen
+     */
+    public int[] getAdSize(BaseAd baseAd) {
         if (baseAd instanceof LoopMeInterstitialGeneral) {
-            setSize(mScreenWidth, mScreenHeight);
+            return new int[]{mScreenWidth, mScreenHeight};
         } else if (baseAd instanceof LoopMeBannerGeneral) {
             LoopMeBannerGeneral banner = (LoopMeBannerGeneral) baseAd;
             ViewGroup.LayoutParams params = Utils.getParamsSafety(banner);
             if (params != null) {
-                setSize(Utils.convertPixelToDp(params.width),
-                        Utils.convertPixelToDp(params.height));
+                return new int[]{Utils.convertPixelToDp(params.width), Utils.convertPixelToDp(params.height)};
             }
         }
-    }
-
-    private void setSize(int width, int height) {
-        mAdWidth = width;
-        mAdHeight = height;
+        return new int[]{0, 0};
     }
 
     public void init(BaseAd baseAd) {
         mBaseAd = baseAd;
         setAppKey(baseAd.getAppKey());
         detectPackage(baseAd.getContext());
-        setUserAgent(baseAd.getContext());
         setDeviceName(baseAd.getContext());
+        DeviceContextProvider.getInstance().init(baseAd.getContext());
+        BatteryInfoCache.getInstance().init(baseAd.getContext());
+    }
+
+    public DeviceContext getDeviceContext(Context context) {
+        return DeviceContextProvider.getInstance().getSnapshot(context);
     }
 
     private void setDeviceName(Context context) {
@@ -0,0 +1,182 @@
+package com.loopme.request;
+
+import android.content.Context;
+
+import com.loopme.IntegrationType;
+import com.loopme.common.ExecutorHelper;
+import com.loopme.common.Logging;
+import com.loopme.debugging.LoopMeMetrics;
+import com.loopme.tasks.AdvIdFetcher;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Resolves inputs of ad request concurrently:
+ * advertising id (Play Services IPC), device context snapshot and WebView user agent.
+ * Request url can be built as soon as {@link #resolve()} returns true.
+ * Keeps duration of every stage to show critical path of load.
+ */
+public class AdRequestPreparation {
+
+    private static final String LOG_TAG = AdRequestPreparation.class.getSimpleName();
+
+    private static final long RESOLVE_TIMEOUT = 1000 * 5;//5 seconds
+    /**
+     * Advertising id carries limit ad tracking flag, so request waits for it longer
+     */
+    private static final long ADV_ID_TIMEOUT = 1000 * 10;//10 seconds
+
+    public static final int STAGE_ADV_ID = 0;
+    public static final int STAGE_DEVICE_CONTEXT = 1;
+    public static final int STAGE_USER_AGENT = 2;
+    public static final int STAGE_URL_BUILD = 3;
+    private static final String[] STAGE_NAMES = {"adv id", "device context", "user agent", "url build"};
+
+    private final Context mContext;
+    private final AtomicLongArray mStageDurations = new AtomicLongArray(STAGE_NAMES.length);
+    private long mStartTime;
+    private long mResolveTime;
+
+    public AdRequestPreparation(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Starts all lookups and waits for them. Blocks calling thread, must not be called on main thread.
+     * Lookup which doesn't finish in time is left running. Request is built without user agent,
+     * but not without advertising id.
+     *
+     * @return false if advertising id is not resolved, request must not be sent
+     */
+    public boolean resolve() {
+        mStartTime = System.currentTimeMillis();
+        final AdRequestParametersProvider provider = AdRequestParametersProvider.getInstance();
+
+        Future<?> advIdFuture = null;
+        if (provider.getGoogleAdvertisingId() == null) {
+            advIdFuture = ExecutorHelper.getNetworkExecutor().submit(timed(STAGE_ADV_ID, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    new AdvIdFetcher(mContext, new AdvIdFetcher.Listener() {
+                        @Override
+                        public void onComplete(String advId, boolean isLimited) {
+                            provider.setGoogleAdvertisingId(advId, isLimited);
+                        }
+                    }).run();
+                    return null;
+                }
+            }));
+        }
+        Future<?> userAgentFuture = null;
+        if (provider.getUserAgent() == null) {
+            userAgentFuture = ExecutorHelper.getNetworkExecutor().submit(timed(STAGE_USER_AGENT, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    provider.resolveUserAgent(mContext);
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            timed(STAGE_DEVICE_CONTEXT, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    provider.getDeviceContext(mContext);
+                    return null;
+                }
+            }).call();
+        } catch (Exception e) {
+            Logging.out(LOG_TAG, "Device context: " + e.getMessage());
+        }
+
+        boolean isAdvIdResolved = await(advIdFuture, STAGE_ADV_ID, ADV_ID_TIMEOUT);
+        await(userAgentFuture, STAGE_USER_AGENT, RESOLVE_TIMEOUT);
+        mResolveTime = System.currentTimeMillis();
+        if (advIdFuture != null) {
+            LoopMeMetrics.record(LoopMeMetrics.STAGE_ADV_ID, mStageDurations.get(STAGE_ADV_ID));
+        }
+        return isAdvIdResolved;
+    }
+
+    /**
+     * Builds single ad request url, must be called after {@link #resolve()}.
+     *
+     * @param adSize - width and height of ad in dp
+     */
+    public String buildRequestUrl(String appKey, AdTargetingData metadata, IntegrationType type, int[] adSize) {
+        long start = System.currentTimeMillis();
+        String url = new AdRequestUrlBuilder(mContext).buildRequestUrl(appKey, metadata, type, adSize);
+        mStageDurations.set(STAGE_URL_BUILD, System.currentTimeMillis() - start);
+        LoopMeMetrics.record(LoopMeMetrics.STAGE_URL_BUILD, mStageDurations.get(STAGE_URL_BUILD));
+        return url;
+    }
+
+    public long getStageDuration(int stage) {
+        return mStageDurations.get(stage);
+    }
+
+    /**
+     * @return time from start of preparation till inputs are ready
+     */
+    public long getResolveDuration() {
+        return mResolveTime - mStartTime;
+    }
+
+    public void logTimings(String appKey) {
+        StringBuilder builder = new StringBuilder("Request preparation for ")
+                .append(appKey)
+                .append(": ")
+                .append(getResolveDuration())
+                .append(" ms (");
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(STAGE_NAMES[i]).append(' ').append(mStageDurations.get(i)).append(" ms");
+        }
+        builder.append(')');
+        Logging.out(LOG_TAG, builder.toString());
+    }
+
+    /**
+     * @return true if lookup is completed or wasn't needed
+     */
+    private boolean await(Future<?> future, int stage, long timeout) {
+        if (future == null) {
+            return true;
+        }
+        long timeLeft = timeout - (System.currentTimeMillis() - mStartTime);
+        try {
+            future.get(Math.max(timeLeft, 0), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            mStageDurations.set(stage, System.currentTimeMillis() - mStartTime);
+            Logging.out(LOG_TAG, STAGE_NAMES[stage] + " is not ready in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Logging.out(LOG_TAG, STAGE_NAMES[stage] + ": " + e.getCause());
+        }
+        return false;
+    }
+
+    private <T> Callable<T> timed(final int stage, final Callable<T> callable) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.currentTimeMillis();
+                try {
+                    return callable.call();
+                } finally {
+                    mStageDurations.set(stage, System.currentTimeMillis() - start);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,35 @@
+package com.loopme.request;
+
+/**
+ * One placement of batched ad request.
+ */
+public class AdRequestSlot {
+
+    private final String mAppKey;
+    private final String mFormat;
+    private final int mWidth;
+    private final int mHeight;
+
+    public AdRequestSlot(String appKey, String format, int width, int height) {
+        mAppKey = appKey;
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public String getAppKey() {
+        return mAppKey;
+    }
+
+    public String getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+}
@@ -45,6 +45,10 @@ public class AdRequestUrlBuilder {
     private static final String PARAM_DEVICE_TYPE = "devicetype";
     private static final String PARAM_DEVICE_NAME = "pn";
     private static final String PARAM_TRACKERS = "trackers";
+    /**
+     * Measured download bandwidth in kbps, so server can choose suitable video
+     */
+    private static final String PARAM_BANDWIDTH = "bw";
 
     /**
      * Optional targeting parameters
@@ -55,8 +59,18 @@ public class AdRequestUrlBuilder {
 
     private static final String PARAM_V360 = "v360";
 
+    /**
+     * Batch request parameters, slot parameters are suffixed with slot index
+     */
+    private static final String PARAM_BATCH = "batch";
+    private static final String PARAM_SLOT_APPKEY = "ak_";
+    private static final String PARAM_SLOT_FORMAT = "format_";
+    private static final String PARAM_SLOT_WIDTH = "width_";
+    private static final String PARAM_SLOT_HEIGHT = "height_";
+
     private final Context mContext;
     private IntegrationType mIntegrationType;
+    private int[] mAdSize = new int[]{0, 0};
 
     public AdRequestUrlBuilder(Context context) {
         mContext = context;
@@ -65,18 +79,71 @@ public class AdRequestUrlBuilder {
         }
     }
 
-    public String buildRequestUrl(String appKey, AdTargetingData metadata, IntegrationType integrationType) {
+    /**
+     * @param adSize - width and height of ad in dp
+     */
+    public String buildRequestUrl(String appKey, AdTargetingData metadata, IntegrationType integrationType,
+                                  int[] adSize) {
         mIntegrationType = integrationType != null ? integrationType : IntegrationType.NORMAL;
+        mAdSize = adSize;
         return buildRequestUrl(appKey, metadata);
     }
 
     public String buildRequestUrl(String appKey, AdTargetingData metadata) {
         Logging.out(LOG_TAG, "Start build request url");
 
+        Uri.Builder builder = createBuilder(appKey, metadata);
+        if (builder == null) {
+            return null;
+        }
+        String url = builder.build().toString();
+
+        Logging.out(LOG_TAG, "Finish build request url");
+
+        return url;
+    }
+
+    /**
+     * Builds one request for several placements.
+     * Common parameters are taken from first slot.
+     */
+    public String buildBatchRequestUrl(List<AdRequestSlot> slots, AdTargetingData metadata,
+                                       IntegrationType integrationType) {
+        Logging.out(LOG_TAG, "Start build batch request url");
+        if (slots == null || slots.isEmpty()) {
+            return null;
+        }
+        mIntegrationType = integrationType != null ? integrationType : IntegrationType.NORMAL;
+        mAdSize = new int[]{slots.get(0).getWidth(), slots.get(0).getHeight()};
+
+        Uri.Builder builder = createBuilder(slots.get(0).getAppKey(), metadata);
+        if (builder == null) {
+            return null;
+        }
+        builder.appendQueryParameter(PARAM_BATCH, String.valueOf(slots.size()));
+        for (int i = 0; i < slots.size(); i++) {
+            AdRequestSlot slot = slots.get(i);
+            builder.appendQueryParameter(PARAM_SLOT_APPKEY + i, slot.getAppKey())
+                    .appendQueryParameter(PARAM_SLOT_FORMAT + i, slot.getFormat())
+                    .appendQueryParameter(PARAM_SLOT_WIDTH + i, String.valueOf(slot.getWidth()))
+                    .appendQueryParameter(PARAM_SLOT_HEIGHT + i, String.valueOf(slot.getHeight()));
+        }
+        String url = builder.build().toString();
+
+        Logging.out(LOG_TAG, "Finish build batch request url");
+
+        return url;
+    }
+
+    private Uri.Builder createBuilder(String appKey, AdTargetingData metadata) {
         if (mContext == null) {
             return null;
         }
+        if (mIntegrationType == null) {
+            mIntegrationType = IntegrationType.NORMAL;
+        }
         AdRequestParametersProvider provider = AdRequestParametersProvider.getInstance();
+        DeviceContext deviceContext = provider.getDeviceContext(mContext);
 
         String str = StaticParams.BASE_URL;
         List<String> list = Arrays.asList(str.split("/"));
@@ -93,35 +160,35 @@ public class AdRequestUrlBuilder {
         }
 
         builder.appendQueryParameter(PARAM_APPKEY, appKey)
-                .appendQueryParameter(PARAM_CONNECTION_TYPE, String.valueOf(provider.getConnectionType(mContext)))
-                .appendQueryParameter(PARAM_LANGUAGE, provider.getLanguage())
+                .appendQueryParameter(PARAM_CONNECTION_TYPE, String.valueOf(deviceContext.getConnectionType()))
+                .appendQueryParameter(PARAM_LANGUAGE, deviceContext.getLanguage())
                 .appendQueryParameter(PARAM_SDK_VERSION, StaticParams.SDK_VERSION)
                 .appendQueryParameter(PARAM_V360, "1")
-                .appendQueryParameter(PARAM_APP_VERSION, provider.getAppVersion(mContext))
+                .appendQueryParameter(PARAM_APP_VERSION, deviceContext.getAppVersion())
                 .appendQueryParameter(PARAM_MRAID, provider.getMraidSupport())
-                .appendQueryParameter(PARAM_ORIENTATION, provider.getOrientation(mContext))
+                .appendQueryParameter(PARAM_ORIENTATION, deviceContext.getOrientation())
                 .appendQueryParameter(PARAM_VIEWER_TOKEN, provider.getViewerToken())
                 .appendQueryParameter(PARAM_BUNDLE_ID, mContext.getPackageName())
-                .appendQueryParameter(PARAM_WEBVIEW_VERSION, provider.getWebViewVersion(mContext))
+                .appendQueryParameter(PARAM_WEBVIEW_VERSION, deviceContext.getWebViewVersion())
                 .appendQueryParameter(PARAM_INTEGRATION_TYPE, mIntegrationType.getType())
                 .appendQueryParameter(PARAM_SCREEN_WIDTH, String.valueOf(provider.getScreenWidth()))
                 .appendQueryParameter(PARAM_SCREEN_HEIGHT, String.valueOf(provider.getScreenHeight()))
-                .appendQueryParameter(PARAM_AD_WIDTH, String.valueOf(provider.getAdWidth()))
-                .appendQueryParameter(PARAM_AD_HEIGHT, String.valueOf(provider.getAdHeight()))
+                .appendQueryParameter(PARAM_AD_WIDTH, String.valueOf(mAdSize[0]))
+                .appendQueryParameter(PARAM_AD_HEIGHT, String.valueOf(mAdSize[1]))
                 .appendQueryParameter(PARAM_DEVICE_NAME, provider.getDeviceName())
                 .appendQueryParameter(PARAM_TRACKERS, provider.getTrackersSupported());
 
-        String latitude = provider.getLatitude();
+        String latitude = deviceContext.getLatitude();
         if (latitude != null) {
             builder.appendQueryParameter(PARAM_LATITUDE, latitude);
         }
 
-        String longitude = provider.getLongitude();
+        String longitude = deviceContext.getLongitude();
         if (longitude != null) {
             builder.appendQueryParameter(PARAM_LONGITUDE, longitude);
         }
 
-        String carrier = provider.getCarrier(mContext);
+        String carrier = deviceContext.getCarrier();
         if (carrier != null) {
             builder.appendQueryParameter(PARAM_CARRIER, carrier);
         }
@@ -134,11 +201,14 @@ public class AdRequestUrlBuilder {
         String dntValue = provider.isDntPresent() ? "1" : "0";
         builder.appendQueryParameter(PARAM_DNT, dntValue);
 
-        if (provider.isWifiInfoAvailable(mContext)) {
-            String wifiName = provider.getWifiName(mContext);
-            if (!TextUtils.isEmpty(wifiName)) {
-                builder.appendQueryParameter(PARAM_WIFI_NAME, wifiName);
-            }
+        long bandwidth = ThroughputEstimator.getInstance().getBandwidthHint(deviceContext.getConnectionType());
+        if (bandwidth > 0) {
+            builder.appendQueryParameter(PARAM_BANDWIDTH, String.valueOf(bandwidth));
+        }
+
+        String wifiName = deviceContext.getWifiName();
+        if (!TextUtils.isEmpty(wifiName)) {
+            builder.appendQueryParameter(PARAM_WIFI_NAME, wifiName);
         }
 
         if (metadata != null && metadata.getKeywords() != null) {
@@ -163,10 +233,6 @@ public class AdRequestUrlBuilder {
         builder.appendQueryParameter(PARAM_CHARGE_LEVEL, batteryInfo[0]);
         builder.appendQueryParameter(PARAM_PLUGGED, batteryInfo[1]);
 
-        String url = builder.build().toString();
-
-        Logging.out(LOG_TAG, "Finish build request url");
-
-        return url;
+        return builder;
     }
 }
\ No newline at end of file
@@ -0,0 +1,105 @@
+package com.loopme.request;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+import com.loopme.common.Logging;
+
+/**
+ * Keeps last known battery state.
+ * Initial value is taken from sticky {@link Intent#ACTION_BATTERY_CHANGED} broadcast,
+ * then it is updated by the same broadcast. Reading never blocks.
+ */
+public class BatteryInfoCache {
+
+    private static final String LOG_TAG = BatteryInfoCache.class.getSimpleName();
+
+    private static final String UNKNOWN_LEVEL = "-1.0";
+    private static final String UNKNOWN_PLUGGED = "UNKNOWN";
+
+    private static BatteryInfoCache sCache;
+
+    private volatile String[] mBatteryInfo = new String[]{UNKNOWN_LEVEL, UNKNOWN_PLUGGED};
+    private volatile boolean mIsCharging;
+    private boolean mIsRegistered;
+
+    BatteryInfoCache() {
+    }
+
+    public static synchronized BatteryInfoCache getInstance() {
+        if (sCache == null) {
+            sCache = new BatteryInfoCache();
+        }
+        return sCache;
+    }
+
+    /**
+     * Subscribes to battery changes. Safe to call several times.
+     */
+    public synchronized void init(Context context) {
+        if (mIsRegistered || context == null) {
+            return;
+        }
+        try {
+            IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+            Intent sticky = context.getApplicationContext().registerReceiver(initBatteryReceiver(), filter);
+            if (sticky != null) {
+                update(sticky);
+            }
+            mIsRegistered = true;
+        } catch (RuntimeException e) {
+            Logging.out(LOG_TAG, "Can't subscribe to battery changes: " + e.getMessage());
+        }
+    }
+
+    private BroadcastReceiver initBatteryReceiver() {
+        return new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                update(intent);
+            }
+        };
+    }
+
+    private void update(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        float batteryPct = level / (float) scale;
+
+        int status = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
+        String plugged;
+        switch (status) {
+            case 0:
+                plugged = "NCHRG";
+                break;
+            case BatteryManager.BATTERY_PLUGGED_AC:
+                plugged = "AC";
+                break;
+            case BatteryManager.BATTERY_PLUGGED_USB:
+                plugged = "USB";
+                break;
+            case BatteryManager.BATTERY_PLUGGED_WIRELESS:
+                plugged = "WL";
+                break;
+            default:
+                plugged = "CHRG";
+        }
+        mIsCharging = status > 0;
+        mBatteryInfo = new String[]{String.valueOf(batteryPct), plugged};
+    }
+
+    /**
+     * @return result[0] - charge level: 0..1
+     * result[1] - plugged type: USB,AC,WL,CHRG,NCHRG
+     */
+    public String[] getBatteryInfo() {
+        return mBatteryInfo.clone();
+    }
+
+    public boolean isCharging() {
+        return mIsCharging;
+    }
+}
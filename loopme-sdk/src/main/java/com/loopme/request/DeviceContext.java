@@ -0,0 +1,151 @@
+package com.loopme.request;
+
+/**
+ * Immutable snapshot of device parameters which are used in ad request.
+ * Built by {@link DeviceContextProvider}, every rebuild has new version.
+ */
+public class DeviceContext {
+
+    private final long mVersion;
+
+    private final int mConnectionType;
+    private final String mCarrier;
+    private final String mWifiName;
+
+    private final String mOrientation;
+    private final String mLanguage;
+
+    private final String mLatitude;
+    private final String mLongitude;
+    private final long mLocationTime;
+
+    private final String mAppVersion;
+    private final String mWebViewVersion;
+
+    private DeviceContext(Builder builder) {
+        mVersion = builder.mVersion;
+        mConnectionType = builder.mConnectionType;
+        mCarrier = builder.mCarrier;
+        mWifiName = builder.mWifiName;
+        mOrientation = builder.mOrientation;
+        mLanguage = builder.mLanguage;
+        mLatitude = builder.mLatitude;
+        mLongitude = builder.mLongitude;
+        mLocationTime = builder.mLocationTime;
+        mAppVersion = builder.mAppVersion;
+        mWebViewVersion = builder.mWebViewVersion;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public int getConnectionType() {
+        return mConnectionType;
+    }
+
+    public String getCarrier() {
+        return mCarrier;
+    }
+
+    public String getWifiName() {
+        return mWifiName;
+    }
+
+    public String getOrientation() {
+        return mOrientation;
+    }
+
+    public String getLanguage() {
+        return mLanguage;
+    }
+
+    public String getLatitude() {
+        return mLatitude;
+    }
+
+    public String getLongitude() {
+        return mLongitude;
+    }
+
+    long getLocationTime() {
+        return mLocationTime;
+    }
+
+    public String getAppVersion() {
+        return mAppVersion;
+    }
+
+    public String getWebViewVersion() {
+        return mWebViewVersion;
+    }
+
+    static class Builder {
+
+        private long mVersion;
+        private int mConnectionType;
+        private String mCarrier;
+        private String mWifiName;
+        private String mOrientation;
+        private String mLanguage;
+        private String mLatitude;
+        private String mLongitude;
+        private long mLocationTime;
+        private String mAppVersion;
+        private String mWebViewVersion;
+
+        Builder() {
+        }
+
+        /**
+         * Starts new snapshot with values of previous one
+         */
+        Builder(DeviceContext previous) {
+            mConnectionType = previous.mConnectionType;
+            mCarrier = previous.mCarrier;
+            mWifiName = previous.mWifiName;
+            mOrientation = previous.mOrientation;
+            mLanguage = previous.mLanguage;
+            mLatitude = previous.mLatitude;
+            mLongitude = previous.mLongitude;
+            mLocationTime = previous.mLocationTime;
+            mAppVersion = previous.mAppVersion;
+            mWebViewVersion = previous.mWebViewVersion;
+        }
+
+        Builder version(long version) {
+            mVersion = version;
+            return this;
+        }
+
+        Builder network(int connectionType, String carrier, String wifiName) {
+            mConnectionType = connectionType;
+            mCarrier = carrier;
+            mWifiName = wifiName;
+            return this;
+        }
+
+        Builder configuration(String orientation, String language) {
+            mOrientation = orientation;
+            mLanguage = language;
+            return this;
+        }
+
+        Builder location(String latitude, String longitude, long time) {
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mLocationTime = time;
+            return this;
+        }
+
+        Builder application(String appVersion, String webViewVersion) {
+            mAppVersion = appVersion;
+            mWebViewVersion = webViewVersion;
+            return this;
+        }
+
+        DeviceContext build() {
+            return new DeviceContext(this);
+        }
+    }
+}
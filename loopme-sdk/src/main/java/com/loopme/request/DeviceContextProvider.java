@@ -0,0 +1,151 @@
+package com.loopme.request;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.location.Location;
+import android.net.ConnectivityManager;
+
+import com.loopme.common.Logging;
+import com.loopme.common.Utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps {@link DeviceContext} snapshot and rebuilds only parts which were invalidated:
+ * network info - by connectivity broadcast,
+ * orientation and language - by configuration change,
+ * location - by time to live.
+ * App version and WebView version are detected once.
+ */
+public class DeviceContextProvider {
+
+    private static final String LOG_TAG = DeviceContextProvider.class.getSimpleName();
+
+    private static final long LOCATION_TIME_TO_LIVE = 1000 * 60 * 5;//5 minutes
+
+    private static DeviceContextProvider sProvider;
+
+    private final AtomicLong mVersionCounter = new AtomicLong();
+
+    private volatile DeviceContext mSnapshot;
+    private volatile boolean mIsNetworkChanged = true;
+    private volatile boolean mIsConfigurationChanged = true;
+
+    private boolean mIsRegistered;
+
+    DeviceContextProvider() {
+    }
+
+    public static synchronized DeviceContextProvider getInstance() {
+        if (sProvider == null) {
+            sProvider = new DeviceContextProvider();
+        }
+        return sProvider;
+    }
+
+    /**
+     * Subscribes to invalidation events. Safe to call several times.
+     */
+    public synchronized void init(Context context) {
+        if (mIsRegistered || context == null) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        try {
+            appContext.registerReceiver(initConnectivityReceiver(),
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            appContext.registerComponentCallbacks(initComponentCallbacks());
+            mIsRegistered = true;
+        } catch (RuntimeException e) {
+            Logging.out(LOG_TAG, "Can't subscribe to device changes: " + e.getMessage());
+        }
+    }
+
+    private BroadcastReceiver initConnectivityReceiver() {
+        return new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mIsNetworkChanged = true;
+            }
+        };
+    }
+
+    private ComponentCallbacks initComponentCallbacks() {
+        return new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                mIsConfigurationChanged = true;
+            }
+
+            @Override
+            public void onLowMemory() {
+            }
+        };
+    }
+
+    /**
+     * @return actual snapshot, does not touch system services if nothing changed
+     */
+    public DeviceContext getSnapshot(Context context) {
+        DeviceContext snapshot = mSnapshot;
+        if (snapshot != null && !mIsNetworkChanged && !mIsConfigurationChanged &&
+                !isLocationExpired(snapshot)) {
+            return snapshot;
+        }
+        return rebuild(context);
+    }
+
+    /**
+     * @return last built snapshot without checking its validity, null if snapshot was not built yet
+     */
+    public DeviceContext getLastSnapshot() {
+        return mSnapshot;
+    }
+
+    private synchronized DeviceContext rebuild(Context context) {
+        DeviceContext previous = mSnapshot;
+        DeviceContext.Builder builder = previous == null ?
+                new DeviceContext.Builder() :
+                new DeviceContext.Builder(previous);
+        AdRequestParametersProvider provider = AdRequestParametersProvider.getInstance();
+
+        if (previous == null) {
+            builder.application(provider.getAppVersion(context), provider.getWebViewVersion(context));
+        }
+        if (previous == null || mIsNetworkChanged) {
+            mIsNetworkChanged = false;
+            provider.resetCarrier();
+            String wifiName = null;
+            if (context != null && provider.isWifiInfoAvailable(context)) {
+                wifiName = provider.getWifiName(context);
+            }
+            builder.network(provider.getConnectionType(context), provider.getCarrier(context), wifiName);
+        }
+        if (previous == null || mIsConfigurationChanged) {
+            mIsConfigurationChanged = false;
+            builder.configuration(provider.getOrientation(context), provider.getLanguage());
+        }
+        if (previous == null || isLocationExpired(previous)) {
+            Location location = Utils.getLastKnownLocation();
+            if (location != null) {
+                builder.location(String.valueOf(location.getLatitude()),
+                        String.valueOf(location.getLongitude()), System.currentTimeMillis());
+            } else {
+                builder.location(null, null, System.currentTimeMillis());
+            }
+        }
+
+        DeviceContext snapshot = builder.version(mVersionCounter.incrementAndGet()).build();
+        mSnapshot = snapshot;
+        Logging.out(LOG_TAG, "Device context version " + snapshot.getVersion());
+        return snapshot;
+    }
+
+    private boolean isLocationExpired(DeviceContext snapshot) {
+        return System.currentTimeMillis() - snapshot.getLocationTime() > LOCATION_TIME_TO_LIVE;
+    }
+}
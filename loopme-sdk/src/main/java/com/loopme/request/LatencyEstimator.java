@@ -0,0 +1,104 @@
+package com.loopme.request;
+
+import android.util.SparseArray;
+
+import com.loopme.common.StaticParams;
+import com.loopme.constants.ConnectionType;
+
+import java.util.Arrays;
+
+/**
+ * Rolling estimate of ad request latency per {@link ConnectionType}.
+ * Keeps last {@link #WINDOW_SIZE} samples of every connection type and derives
+ * adaptive timeouts and delay of hedged request from their 95th percentile.
+ * Until there are enough samples, default {@link StaticParams#REQUEST_TIMEOUT} is used.
+ */
+public class LatencyEstimator {
+
+    private static final int WINDOW_SIZE = 32;
+    private static final int MIN_SAMPLES = 5;
+    private static final int TIMEOUT_MULTIPLIER = 3;
+    private static final int MIN_TIMEOUT = 1000 * 3; //3 seconds
+    private static final double PERCENTILE = 0.95;
+
+    private static LatencyEstimator sEstimator;
+
+    private final SparseArray<Window> mWindows = new SparseArray<>();
+
+    LatencyEstimator() {
+    }
+
+    public static synchronized LatencyEstimator getInstance() {
+        if (sEstimator == null) {
+            sEstimator = new LatencyEstimator();
+        }
+        return sEstimator;
+    }
+
+    /**
+     * @return connection type of last device context snapshot, {@link ConnectionType#UNKNOWN} if it is not built yet
+     */
+    public static int getCurrentConnectionType() {
+        DeviceContext snapshot = DeviceContextProvider.getInstance().getLastSnapshot();
+        return snapshot != null ? snapshot.getConnectionType() : ConnectionType.UNKNOWN;
+    }
+
+    public synchronized void addSample(int connectionType, long latency) {
+        Window window = mWindows.get(connectionType);
+        if (window == null) {
+            window = new Window();
+            mWindows.put(connectionType, window);
+        }
+        window.add(latency);
+    }
+
+    /**
+     * @return connect and read timeout of one request in millis
+     */
+    public synchronized int getTimeout(int connectionType) {
+        long p95 = getPercentile(connectionType);
+        if (p95 < 0) {
+            return StaticParams.REQUEST_TIMEOUT;
+        }
+        long timeout = Math.max(p95 * TIMEOUT_MULTIPLIER, MIN_TIMEOUT);
+        return (int) Math.min(timeout, StaticParams.REQUEST_TIMEOUT);
+    }
+
+    /**
+     * @return time of whole request in millis, connect and read get their own timeout each
+     */
+    public synchronized int getRequestTimeout(int connectionType) {
+        return getTimeout(connectionType) * 2;
+    }
+
+    /**
+     * @return delay before hedged request in millis, 0 if there are not enough samples
+     */
+    public synchronized long getHedgeDelay(int connectionType) {
+        return Math.max(getPercentile(connectionType), 0);
+    }
+
+    private long getPercentile(int connectionType) {
+        Window window = mWindows.get(connectionType);
+        if (window == null || window.mCount < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(window.mSamples, window.mCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(sorted.length * PERCENTILE) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    private static class Window {
+
+        private final long[] mSamples = new long[WINDOW_SIZE];
+        private int mCount;
+        private int mNext;
+
+        private void add(long sample) {
+            mSamples[mNext] = sample;
+            mNext = (mNext + 1) % WINDOW_SIZE;
+            mCount = Math.min(mCount + 1, WINDOW_SIZE);
+        }
+    }
+}
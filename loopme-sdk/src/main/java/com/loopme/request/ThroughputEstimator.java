@@ -0,0 +1,79 @@
+package com.loopme.request;
+
+import android.util.SparseArray;
+
+import com.loopme.constants.ConnectionType;
+
+/**
+ * Download throughput per {@link ConnectionType}, exponentially weighted moving average
+ * of past video downloads. It is used to size video preview and as bandwidth hint for server.
+ */
+public class ThroughputEstimator {
+
+    private static final double ALPHA = 0.3;
+    /**
+     * Smaller downloads are dominated by connection setup and don't show throughput
+     */
+    private static final long MIN_SAMPLE_BYTES = 1024 * 256;
+    private static final long MIN_PREVIEW_LENGTH = 1024 * 256;
+    private static final int DEFAULT_PREVIEW_DIVISOR = 4;
+    /**
+     * Typical length of video ad, used to guess bitrate of file with known size
+     */
+    private static final int ASSUMED_VIDEO_DURATION_SECONDS = 30;
+
+    private static ThroughputEstimator sEstimator;
+
+    private final SparseArray<Double> mThroughputs = new SparseArray<>();
+
+    private ThroughputEstimator() {
+    }
+
+    public static synchronized ThroughputEstimator getInstance() {
+        if (sEstimator == null) {
+            sEstimator = new ThroughputEstimator();
+        }
+        return sEstimator;
+    }
+
+    public synchronized void addSample(int connectionType, long bytes, long millis) {
+        if (bytes < MIN_SAMPLE_BYTES || millis <= 0) {
+            return;
+        }
+        double sample = bytes * 1000d / millis;
+        Double average = mThroughputs.get(connectionType);
+        mThroughputs.put(connectionType, average == null ? sample : ALPHA * sample + (1 - ALPHA) * average);
+    }
+
+    /**
+     * @return bytes per second, 0 if there were no downloads on this connection type
+     */
+    public synchronized long getThroughput(int connectionType) {
+        Double average = mThroughputs.get(connectionType);
+        return average == null ? 0 : average.longValue();
+    }
+
+    /**
+     * @return kilobits per second for request url, 0 if unknown
+     */
+    public long getBandwidthHint(int connectionType) {
+        return getThroughput(connectionType) * 8 / 1000;
+    }
+
+    /**
+     * Preview is long enough for playback of it to cover download of the rest of file:
+     * preview / bitrate >= (length - preview) / throughput.
+     * Quarter of file is used until throughput is known.
+     */
+    public long getPreviewLength(int connectionType, long fileLength) {
+        long throughput = getThroughput(connectionType);
+        long preview;
+        if (throughput == 0) {
+            preview = fileLength / DEFAULT_PREVIEW_DIVISOR;
+        } else {
+            double bitrate = (double) fileLength / ASSUMED_VIDEO_DURATION_SECONDS;
+            preview = (long) (fileLength * bitrate / (throughput + bitrate));
+        }
+        return Math.min(Math.max(preview, MIN_PREVIEW_LENGTH), fileLength);
+    }
+}
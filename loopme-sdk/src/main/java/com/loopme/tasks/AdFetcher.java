@@ -1,21 +1,37 @@
 package com.loopme.tasks;
 
+import android.os.Handler;
+import android.os.Looper;
+
 import com.loopme.common.AdParams;
+import com.loopme.common.ExecutorHelper;
+import com.loopme.common.HttpConnectionManager;
 import com.loopme.common.Logging;
 import com.loopme.common.LoopMeError;
 import com.loopme.common.ResponseParser;
 import com.loopme.common.StaticParams;
-import com.loopme.common.Utils;
 import com.loopme.debugging.ErrorLog;
 import com.loopme.debugging.ErrorType;
+import com.loopme.debugging.LoopMeMetrics;
 import com.loopme.request.AdRequestParametersProvider;
+import com.loopme.request.LatencyEstimator;
 
 import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AdFetcher implements Runnable {
 
@@ -23,12 +39,27 @@ public class AdFetcher implements Runnable {
     private static final int RESPONSE_CODE_SUCCESS = 200;
     private static final int RESPONSE_CODE_UNKNOWN = 0;
 
+    private static final int NO_WINNER = 0;
+    private static final int PRIMARY_REQUEST = 1;
+    private static final int HEDGED_REQUEST = 2;
+    private static final int FAILED = -1;
+    private static final int CANCELLED = -2;
+
     private final String mRequestUrl;
     private Listener mListener;
     private int mFormat;
     private String mAppKey;
-    private LoopMeError mLoopMeError;
-    private HttpURLConnection mUrlConnection;
+    /**
+     * Error and reason of failure by request id, guarded by mErrors.
+     * Error of primary request is reported once when all requests failed.
+     */
+    private final LoopMeError[] mErrors = new LoopMeError[HEDGED_REQUEST + 1];
+    private final String[] mErrorReports = new String[HEDGED_REQUEST + 1];
+    private final AtomicInteger mWinner = new AtomicInteger(NO_WINNER);
+    /**
+     * Open connections by request id, guarded by itself
+     */
+    private final HttpURLConnection[] mConnections = new HttpURLConnection[HEDGED_REQUEST + 1];
     private static final String USER_AGENT = "User-Agent";
 
 
@@ -46,61 +77,239 @@ public class AdFetcher implements Runnable {
     @Override
     public void run() {
         Logging.out(LOG_TAG, "Start making http request to server...");
-        String result = getResponse(mRequestUrl);
-        compete(result);
+        int connectionType = LatencyEstimator.getCurrentConnectionType();
+        long hedgeDelay = StaticParams.USE_HEDGED_REQUESTS ?
+                LatencyEstimator.getInstance().getHedgeDelay(connectionType) : 0;
+        if (hedgeDelay > 0) {
+            runHedged(connectionType, hedgeDelay);
+        } else if (!request(mRequestUrl, PRIMARY_REQUEST, connectionType)) {
+            failIfNoWinner();
+        }
         Logging.out(LOG_TAG, "Response received.");
     }
 
-    private void compete(String result) {
-        if (result == null) {
-            complete(null, mLoopMeError);
-        } else {
-            ResponseParser parser = new ResponseParser(new ResponseParser.Listener() {
-
-                @Override
-                public void onParseError(LoopMeError error) {
-                    complete(null, error);
+    /**
+     * Sends second request if first one didn't receive response in hedge delay.
+     * Response which arrived first is delivered, other one is discarded.
+     */
+    private void runHedged(final int connectionType, long hedgeDelay) {
+        final Future<?>[] hedge = new Future<?>[1];
+        Handler handler = new Handler(Looper.getMainLooper());
+        Runnable hedgeTrigger = new Runnable() {
+            @Override
+            public void run() {
+                Logging.out(LOG_TAG, "Send hedged request");
+                synchronized (hedge) {
+                    try {
+                        hedge[0] = ExecutorHelper.getNetworkExecutor().submit(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() {
+                                return mWinner.get() == NO_WINNER &&
+                                        request(mRequestUrl, HEDGED_REQUEST, connectionType);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // primary request is still running, it delivers its result or error
+                        Logging.out(LOG_TAG, "Hedged request is rejected: " + e.getMessage());
+                    }
                 }
-            }, mFormat);
-            AdParams adParams = parser.getAdParams(result);
-            if (adParams != null) {
-                complete(adParams, null);
             }
+        };
+        handler.postDelayed(hedgeTrigger, hedgeDelay);
+        boolean handled = request(mRequestUrl, PRIMARY_REQUEST, connectionType);
+        handler.removeCallbacks(hedgeTrigger);
+        if (handled) {
+            return;
+        }
+        Future<?> hedgeFuture;
+        synchronized (hedge) {
+            hedgeFuture = hedge[0];
+        }
+        if (hedgeFuture != null && awaitHedge(hedgeFuture, connectionType)) {
+            return;
+        }
+        failIfNoWinner();
+    }
+
+    private boolean awaitHedge(Future<?> hedge, int connectionType) {
+        try {
+            return Boolean.TRUE.equals(hedge.get(LatencyEstimator.getInstance().getRequestTimeout(connectionType),
+                    TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            Logging.out(LOG_TAG, "Hedged request: " + e);
+        }
+        return false;
+    }
+
+    /**
+     * Stops requests which are in progress, their result is not delivered.
+     */
+    public void cancel() {
+        if (mWinner.compareAndSet(NO_WINNER, CANCELLED)) {
+            disconnectExcept(NO_WINNER);
+        }
+    }
+
+    private void failIfNoWinner() {
+        if (mWinner.compareAndSet(NO_WINNER, FAILED)) {
+            LoopMeError error;
+            String errorReport;
+            synchronized (mErrors) {
+                // hedged request can fail later, but it only repeats primary one
+                int requestId = mErrors[PRIMARY_REQUEST] != null ? PRIMARY_REQUEST : HEDGED_REQUEST;
+                error = mErrors[requestId];
+                errorReport = mErrorReports[requestId];
+            }
+            onRequestFail(error);
+            if (errorReport != null) {
+                ErrorLog.post(errorReport, ErrorType.SERVER, mAppKey);
+            }
+        }
+    }
+
+    /**
+     * Called with body of successful response, stream is released after return.
+     */
+    protected void onResponse(InputStream in) {
+        final LoopMeError[] parseError = new LoopMeError[1];
+        ResponseParser parser = new ResponseParser(new ResponseParser.Listener() {
+
+            @Override
+            public void onParseError(LoopMeError error) {
+                parseError[0] = error;
+            }
+        }, mFormat);
+        AdParams adParams = parser.getAdParams(in);
+        if (adParams != null) {
+            complete(adParams, null);
+        } else {
+            complete(null, parseError[0]);
         }
     }
 
-    private String getResponse(String url) {
+    protected void onRequestFail(LoopMeError error) {
+        complete(null, error);
+    }
+
+    /**
+     * @return true if response was received, it is delivered by winner request
+     */
+    private boolean request(String url, int requestId, int connectionType) {
         int responseCode = 0;
+        int timeout = LatencyEstimator.getInstance().getTimeout(connectionType);
+        HttpURLConnection connection = null;
+        long start = System.currentTimeMillis();
         try {
-            URL request = new URL(url);
-            mUrlConnection = (HttpURLConnection) request.openConnection();
-            mUrlConnection.setRequestProperty(USER_AGENT, getUserAgent());
-            mUrlConnection.setReadTimeout(StaticParams.REQUEST_TIMEOUT);
-            mUrlConnection.setConnectTimeout(StaticParams.REQUEST_TIMEOUT);
+            connection = HttpConnectionManager.openConnection(url, timeout);
+            if (!addConnection(requestId, connection)) {
+                connection.disconnect();
+                return false;
+            }
+            connection.setRequestProperty(USER_AGENT, getUserAgent());
+            connection.connect();
+            long connected = System.currentTimeMillis();
+            LoopMeMetrics.record(LoopMeMetrics.STAGE_CONNECT, connected - start);
 
-            responseCode = mUrlConnection.getResponseCode();
+            responseCode = connection.getResponseCode();
+            long responseTime = System.currentTimeMillis();
+            LoopMeMetrics.record(LoopMeMetrics.STAGE_TTFB, responseTime - connected);
+            LatencyEstimator.getInstance().addSample(connectionType, responseTime - start);
             if (responseCode != RESPONSE_CODE_SUCCESS) {
-                throw new IOException();
+                HttpConnectionManager.releaseError(connection);
+                handleBadResponseCode(requestId, responseCode);
+                return false;
             }
-            InputStream in = new BufferedInputStream(mUrlConnection.getInputStream());
-            return Utils.getStringFromStream(in);
+            if (!mWinner.compareAndSet(NO_WINNER, requestId)) {
+                Logging.out(LOG_TAG, "Response of request " + requestId + " is discarded");
+                connection.disconnect();
+                return true;
+            }
+            // response of the other request is not needed any more
+            disconnectExcept(requestId);
+            if (StaticParams.USE_HEDGED_REQUESTS) {
+                LoopMeMetrics.recordHedgeWinner(requestId == HEDGED_REQUEST);
+            }
+            TimedInputStream in = new TimedInputStream(new BufferedInputStream(connection.getInputStream()));
+            long bodyStart = System.currentTimeMillis();
+            try {
+                onResponse(in);
+            } finally {
+                HttpConnectionManager.release(in);
+            }
+            long readTime = in.getReadTime();
+            LoopMeMetrics.record(LoopMeMetrics.STAGE_BODY, readTime);
+            LoopMeMetrics.record(LoopMeMetrics.STAGE_PARSE, System.currentTimeMillis() - bodyStart - readTime);
+            return true;
 
         } catch (SocketTimeoutException e) {
             Logging.out(LOG_TAG + "timeout ad_request", ErrorType.SERVER);
-            mLoopMeError = new LoopMeError("Request timeout");
-            ErrorLog.post("Request timeout", ErrorType.SERVER, mAppKey);
+            // connect and read have their own timeouts, so sample is time spent by both
+            LatencyEstimator.getInstance().addSample(connectionType, System.currentTimeMillis() - start);
+            setError(requestId, new LoopMeError("Request timeout"), "Request timeout");
+            disconnect(connection);
         } catch (IOException e) {
             Logging.out(LOG_TAG, e.getMessage());
             if (responseCode != RESPONSE_CODE_UNKNOWN) {
-                mLoopMeError = new LoopMeError("Server code: " + responseCode);
-                ErrorLog.post("Bad servers response code " + responseCode, ErrorType.SERVER, mAppKey);
+                handleBadResponseCode(requestId, responseCode);
             }
+            disconnect(connection);
         } finally {
-            if (mUrlConnection != null) {
-                mUrlConnection.disconnect();
+            removeConnection(requestId);
+        }
+        return false;
+    }
+
+    private void handleBadResponseCode(int requestId, int responseCode) {
+        setError(requestId, new LoopMeError("Server code: " + responseCode), "Bad servers response code " + responseCode);
+    }
+
+    private void setError(int requestId, LoopMeError error, String errorReport) {
+        synchronized (mErrors) {
+            mErrors[requestId] = error;
+            mErrorReports[requestId] = errorReport;
+        }
+    }
+
+    /**
+     * @return false if result of fetcher is already known, so connection isn't needed
+     */
+    private boolean addConnection(int requestId, HttpURLConnection connection) {
+        synchronized (mConnections) {
+            if (mWinner.get() != NO_WINNER) {
+                return false;
+            }
+            mConnections[requestId] = connection;
+            return true;
+        }
+    }
+
+    private void removeConnection(int requestId) {
+        synchronized (mConnections) {
+            mConnections[requestId] = null;
+        }
+    }
+
+    private void disconnectExcept(int requestId) {
+        List<HttpURLConnection> connections = new ArrayList<>();
+        synchronized (mConnections) {
+            for (int i = 0; i < mConnections.length; i++) {
+                if (i != requestId && mConnections[i] != null) {
+                    connections.add(mConnections[i]);
+                    mConnections[i] = null;
+                }
             }
         }
-        return null;
+        for (HttpURLConnection connection : connections) {
+            connection.disconnect();
+        }
+    }
+
+    private void disconnect(HttpURLConnection connection) {
+        if (connection != null) {
+            connection.disconnect();
+        }
     }
 
     private String getUserAgent() {
@@ -113,4 +322,40 @@ public class AdFetcher implements Runnable {
             mListener.onComplete(params, error);
         }
     }
+
+    /**
+     * Counts time spent in reading, so body transfer can be separated from parsing of streamed response.
+     */
+    private static class TimedInputStream extends FilterInputStream {
+
+        private long mReadTime;
+
+        private TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                return super.read();
+            } finally {
+                mReadTime += System.currentTimeMillis() - start;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                return super.read(buffer, offset, count);
+            } finally {
+                mReadTime += System.currentTimeMillis() - start;
+            }
+        }
+
+        private long getReadTime() {
+            return mReadTime;
+        }
+    }
 }
@@ -0,0 +1,70 @@
+package com.loopme.tasks;
+
+import com.loopme.common.AdParams;
+import com.loopme.common.Logging;
+import com.loopme.common.LoopMeError;
+import com.loopme.common.ResponseParser;
+
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Fetches ads for several placements in one request and
+ * delivers result of each placement separately.
+ */
+public class BatchAdFetcher extends AdFetcher {
+
+    private static final String LOG_TAG = BatchAdFetcher.class.getSimpleName();
+
+    private final int[] mFormats;
+    private final Listener mBatchListener;
+
+    public interface Listener {
+        void onComplete(int slot, AdParams params, LoopMeError error);
+    }
+
+    public BatchAdFetcher(String requestUrl, int[] formats, Listener listener, String appKey) {
+        super(requestUrl, null, 0, appKey);
+        mFormats = formats;
+        mBatchListener = listener;
+    }
+
+    @Override
+    protected void onResponse(InputStream in) {
+        final LoopMeError[] errors = new LoopMeError[mFormats.length];
+        final LoopMeError[] responseError = new LoopMeError[1];
+
+        ResponseParser parser = new ResponseParser(new ResponseParser.Listener() {
+            @Override
+            public void onParseError(LoopMeError error) {
+                responseError[0] = error;
+            }
+        }, 0);
+        List<AdParams> adParamsList = parser.getAdParamsList(in, mFormats, new ResponseParser.BatchListener() {
+            @Override
+            public void onSlotParseError(int slot, LoopMeError error) {
+                errors[slot] = error;
+            }
+        });
+        Logging.out(LOG_TAG, "Batch response: " + adParamsList.size() + " of " + mFormats.length);
+
+        for (int i = 0; i < mFormats.length; i++) {
+            AdParams params = i < adParamsList.size() ? adParamsList.get(i) : null;
+            LoopMeError error = errors[i] != null ? errors[i] : responseError[0];
+            complete(i, params, params == null ? error : null);
+        }
+    }
+
+    @Override
+    protected void onRequestFail(LoopMeError error) {
+        for (int i = 0; i < mFormats.length; i++) {
+            complete(i, null, error);
+        }
+    }
+
+    private void complete(int slot, AdParams params, LoopMeError error) {
+        if (mBatchListener != null) {
+            mBatchListener.onComplete(slot, params, error);
+        }
+    }
+}
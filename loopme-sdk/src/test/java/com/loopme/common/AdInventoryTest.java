@@ -0,0 +1,191 @@
+package com.loopme.common;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class AdInventoryTest {
+
+    private static final String APP_KEY = "appKey";
+    private static final int FORMAT = 1;
+
+    private final List<Integer> mRefills = new ArrayList<>();
+    private final AdInventory.Refiller mRefiller = new AdInventory.Refiller() {
+        @Override
+        public void refill(int count) {
+            mRefills.add(count);
+        }
+    };
+    private AdInventory mInventory;
+
+    @Before
+    public void setUp() {
+        mInventory = new AdInventory();
+    }
+
+    @Test
+    public void adsAreNotKeptUntilDepthIsSet() {
+        mInventory.offer(APP_KEY, FORMAT, createAd(100));
+
+        assertFalse(mInventory.isEnabled(APP_KEY, FORMAT));
+        assertNull(mInventory.poll(APP_KEY, FORMAT));
+        assertEquals(0, mInventory.getStats(APP_KEY, FORMAT).getSize());
+    }
+
+    @Test
+    public void adExpiringSoonerIsUsedFirst() {
+        mInventory.setDepth(APP_KEY, FORMAT, 3);
+        AdParams late = createAd(300);
+        AdParams early = createAd(100);
+        mInventory.offer(APP_KEY, FORMAT, late);
+        mInventory.offer(APP_KEY, FORMAT, early);
+
+        assertTrue(mInventory.isEnabled(APP_KEY, FORMAT));
+        assertSame(early, mInventory.poll(APP_KEY, FORMAT));
+        assertSame(late, mInventory.poll(APP_KEY, FORMAT));
+        assertNull(mInventory.poll(APP_KEY, FORMAT));
+    }
+
+    @Test
+    public void expiredAdIsRemovedOnPoll() {
+        mInventory.setDepth(APP_KEY, FORMAT, 3);
+        AdParams expiring = createAd(100);
+        // ad is valid when it is offered and expires while it waits in queue
+        when(expiring.isExpired()).thenReturn(false, true);
+        AdParams valid = createAd(200);
+        mInventory.offer(APP_KEY, FORMAT, expiring);
+        mInventory.offer(APP_KEY, FORMAT, valid);
+        assertEquals(2, mInventory.getStats(APP_KEY, FORMAT).getSize());
+
+        assertSame(valid, mInventory.poll(APP_KEY, FORMAT));
+
+        AdInventory.Stats stats = mInventory.getStats(APP_KEY, FORMAT);
+        assertEquals(1, stats.getExpiredCount());
+        assertEquals(1, stats.getHitCount());
+        assertEquals(0, stats.getSize());
+    }
+
+    @Test
+    public void expiredAdIsNotOffered() {
+        mInventory.setDepth(APP_KEY, FORMAT, 3);
+        AdParams expired = createAd(100);
+        when(expired.isExpired()).thenReturn(true);
+
+        mInventory.offer(APP_KEY, FORMAT, expired);
+
+        assertEquals(0, mInventory.getStats(APP_KEY, FORMAT).getSize());
+    }
+
+    @Test
+    public void latestExpiringAdIsDroppedOverDepth() {
+        mInventory.setDepth(APP_KEY, FORMAT, 2);
+        AdParams first = createAd(100);
+        AdParams latest = createAd(300);
+        AdParams second = createAd(200);
+
+        mInventory.offer(APP_KEY, FORMAT, first);
+        mInventory.offer(APP_KEY, FORMAT, latest);
+        mInventory.offer(APP_KEY, FORMAT, second);
+
+        assertEquals(2, mInventory.getStats(APP_KEY, FORMAT).getSize());
+        assertSame(first, mInventory.poll(APP_KEY, FORMAT));
+        assertSame(second, mInventory.poll(APP_KEY, FORMAT));
+        assertNull(mInventory.poll(APP_KEY, FORMAT));
+    }
+
+    @Test
+    public void depthIsClamped() {
+        mInventory.setDepth(APP_KEY, FORMAT, AdInventory.MAX_DEPTH + 3);
+        mInventory.setRefiller(APP_KEY, FORMAT, mRefiller);
+
+        mInventory.refillIfNeeded(APP_KEY, FORMAT);
+
+        assertEquals(Collections.singletonList(AdInventory.MAX_DEPTH), mRefills);
+        mInventory.setDepth(APP_KEY, FORMAT, -1);
+        assertFalse(mInventory.isEnabled(APP_KEY, FORMAT));
+    }
+
+    @Test
+    public void pendingRefillsAreNotRequestedAgain() {
+        mInventory.setDepth(APP_KEY, FORMAT, 3);
+        mInventory.setRefiller(APP_KEY, FORMAT, mRefiller);
+
+        mInventory.refillIfNeeded(APP_KEY, FORMAT);
+        mInventory.refillIfNeeded(APP_KEY, FORMAT);
+        assertEquals(Collections.singletonList(3), mRefills);
+
+        mInventory.offer(APP_KEY, FORMAT, createAd(100));
+        mInventory.onRefillFailed(APP_KEY, FORMAT);
+        mInventory.refillIfNeeded(APP_KEY, FORMAT);
+
+        // one ad is ready, one is still loaded
+        assertEquals(Arrays.asList(3, 1), mRefills);
+    }
+
+    @Test
+    public void pollRefillsTakenAd() {
+        mInventory.setDepth(APP_KEY, FORMAT, 2);
+        mInventory.offer(APP_KEY, FORMAT, createAd(100));
+        mInventory.offer(APP_KEY, FORMAT, createAd(200));
+        mInventory.setRefiller(APP_KEY, FORMAT, mRefiller);
+
+        mInventory.poll(APP_KEY, FORMAT);
+
+        assertEquals(Collections.singletonList(1), mRefills);
+    }
+
+    @Test
+    public void otherRefillerIsNotRemoved() {
+        mInventory.setDepth(APP_KEY, FORMAT, 1);
+        mInventory.setRefiller(APP_KEY, FORMAT, mRefiller);
+
+        mInventory.removeRefiller(APP_KEY, FORMAT, mock(AdInventory.Refiller.class));
+        mInventory.refillIfNeeded(APP_KEY, FORMAT);
+        assertEquals(Collections.singletonList(1), mRefills);
+
+        mInventory.onRefillFailed(APP_KEY, FORMAT);
+        mInventory.removeRefiller(APP_KEY, FORMAT, mRefiller);
+        mInventory.refillIfNeeded(APP_KEY, FORMAT);
+        assertEquals(Collections.singletonList(1), mRefills);
+    }
+
+    @Test
+    public void countersArePerPlacement() {
+        mInventory.setDepth(APP_KEY, FORMAT, 2);
+        mInventory.setDepth(APP_KEY, FORMAT + 1, 2);
+        mInventory.offer(APP_KEY, FORMAT, createAd(100));
+
+        mInventory.poll(APP_KEY, FORMAT);
+        mInventory.poll(APP_KEY, FORMAT);
+        mInventory.poll(APP_KEY, FORMAT + 1);
+
+        AdInventory.Stats stats = mInventory.getStats(APP_KEY, FORMAT);
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(0, stats.getExpiredCount());
+        assertEquals(1, mInventory.getStats(APP_KEY, FORMAT + 1).getMissCount());
+    }
+
+    private static AdParams createAd(long expiresIn) {
+        AdParams params = mock(AdParams.class);
+        when(params.getExpiryTimestamp()).thenReturn(System.currentTimeMillis() + expiresIn);
+        return params;
+    }
+}
@@ -0,0 +1,85 @@
+package com.loopme.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ByteBufferPoolTest {
+
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    @Test
+    public void releasedBufferIsReusedCleared() {
+        ByteBuffer buffer = ByteBufferPool.acquire();
+        buffer.put(new byte[100]);
+        buffer.flip();
+        ByteBufferPool.release(buffer);
+        int allocatedCount = ByteBufferPool.getAllocatedCount();
+
+        ByteBuffer reused = ByteBufferPool.acquire();
+
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(ByteBufferPool.BUFFER_SIZE, reused.limit());
+        assertEquals(allocatedCount, ByteBufferPool.getAllocatedCount());
+        ByteBufferPool.release(reused);
+    }
+
+    @Test
+    public void acquiredBufferIsDirect() {
+        ByteBuffer buffer = ByteBufferPool.acquire();
+
+        assertTrue(buffer.isDirect());
+        assertEquals(ByteBufferPool.BUFFER_SIZE, buffer.capacity());
+        ByteBufferPool.release(buffer);
+    }
+
+    @Test
+    public void foreignBuffersAreNotPooled() {
+        List<ByteBuffer> buffers = acquire(MAX_POOLED_BUFFERS + 1);
+        ByteBuffer heapBuffer = ByteBuffer.allocate(ByteBufferPool.BUFFER_SIZE);
+        ByteBuffer smallBuffer = ByteBuffer.allocateDirect(ByteBufferPool.BUFFER_SIZE / 2);
+        ByteBufferPool.release(heapBuffer);
+        ByteBufferPool.release(smallBuffer);
+
+        ByteBuffer buffer = ByteBufferPool.acquire();
+
+        assertNotSame(heapBuffer, buffer);
+        assertNotSame(smallBuffer, buffer);
+        assertTrue(buffer.isDirect());
+        buffers.add(buffer);
+        release(buffers);
+    }
+
+    @Test
+    public void poolKeepsLimitedCountOfBuffers() {
+        release(acquire(MAX_POOLED_BUFFERS + 2));
+        int allocatedCount = ByteBufferPool.getAllocatedCount();
+
+        List<ByteBuffer> buffers = acquire(MAX_POOLED_BUFFERS + 2);
+
+        assertEquals(allocatedCount + 2, ByteBufferPool.getAllocatedCount());
+        release(buffers);
+    }
+
+    private static List<ByteBuffer> acquire(int count) {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            buffers.add(ByteBufferPool.acquire());
+        }
+        return buffers;
+    }
+
+    private static void release(List<ByteBuffer> buffers) {
+        for (ByteBuffer buffer : buffers) {
+            ByteBufferPool.release(buffer);
+        }
+    }
+}
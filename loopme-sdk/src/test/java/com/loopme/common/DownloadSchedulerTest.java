@@ -0,0 +1,202 @@
+package com.loopme.common;
+
+import com.loopme.constants.DownloadPriority;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class DownloadSchedulerTest {
+
+    private final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+    private DownloadScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new DownloadScheduler();
+    }
+
+    @Test
+    public void runningDownloadsAreCappedGlobally() {
+        TestTask[] tasks = addTasks(DownloadPriority.PREFETCH, "a", "b", "c", "d");
+
+        assertEquals(Arrays.asList("start 0", "start 1", "start 2"), mEvents);
+        assertFalse(tasks[3].mIsStarted);
+    }
+
+    @Test
+    public void runningDownloadsAreCappedPerHost() {
+        TestTask[] tasks = addTasks(DownloadPriority.PREFETCH, "a", "a", "a", "b");
+
+        assertEquals(Arrays.asList("start 0", "start 1", "start 3"), mEvents);
+        assertFalse(tasks[2].mIsStarted);
+    }
+
+    @Test
+    public void newestLowestPriorityDownloadIsPaused() {
+        TestTask first = add("first", "a", DownloadPriority.PREFETCH);
+        add("second", "b", DownloadPriority.NEXT);
+        TestTask third = add("third", "c", DownloadPriority.PREFETCH);
+        mEvents.clear();
+
+        TestTask visible = add("visible", "d", DownloadPriority.VISIBLE);
+
+        assertEquals(Arrays.asList("pause third", "start visible"), mEvents);
+        assertFalse(third.isRunning());
+        assertTrue(first.isRunning());
+        assertTrue(visible.isRunning());
+    }
+
+    @Test
+    public void downloadOnFullHostPausesDownloadOfThatHost() {
+        add("first", "a", DownloadPriority.PREFETCH);
+        add("second", "a", DownloadPriority.PREFETCH);
+        // newer download of other host has the same priority, but it doesn't free slot on host
+        add("other", "b", DownloadPriority.PREFETCH);
+        mEvents.clear();
+
+        add("visible", "a", DownloadPriority.VISIBLE);
+
+        assertEquals(Arrays.asList("pause second", "start visible"), mEvents);
+    }
+
+    @Test
+    public void pausedDownloadIsResumedAfterRemove() {
+        TestTask[] tasks = addTasks(DownloadPriority.PREFETCH, "a", "b", "c");
+        TestTask visible = add("visible", "d", DownloadPriority.VISIBLE);
+        mEvents.clear();
+
+        mScheduler.remove(visible);
+
+        assertEquals(Collections.singletonList("resume 2"), mEvents);
+        assertTrue(tasks[2].isRunning());
+        assertEquals(1, tasks[2].mStartCount);
+    }
+
+    @Test
+    public void waitingDownloadIsStartedWhenItsPriorityIsRaised() {
+        TestTask[] tasks = addTasks(DownloadPriority.PREFETCH, "a", "b", "c", "d");
+        mEvents.clear();
+
+        mScheduler.setPriority(tasks[3], DownloadPriority.VISIBLE);
+
+        assertEquals(Arrays.asList("pause 2", "start 3"), mEvents);
+    }
+
+    @Test
+    public void concurrentChangesLeaveTasksAsScheduled() throws Exception {
+        final TestTask[] tasks = addTasks(DownloadPriority.PREFETCH, "a", "a", "a", "a");
+        final int threadsCount = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadsCount; i++) {
+            final Random random = new Random(i);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 200; j++) {
+                        TestTask task = tasks[random.nextInt(tasks.length)];
+                        mScheduler.setPriority(task, random.nextInt(DownloadPriority.PREFETCH + 1));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int running = 0;
+        for (TestTask task : tasks) {
+            running += task.isRunning() ? 1 : 0;
+        }
+        // tasks which were paused and resumed out of order would break per host cap
+        assertEquals(2, running);
+    }
+
+    private TestTask[] addTasks(int priority, String... hosts) {
+        TestTask[] tasks = new TestTask[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            tasks[i] = add(String.valueOf(i), hosts[i], priority);
+        }
+        return tasks;
+    }
+
+    private TestTask add(String name, String host, int priority) {
+        TestTask task = new TestTask(name);
+        mScheduler.add(task, "http://" + host + ".example.com/video.mp4", priority);
+        return task;
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class TestTask implements DownloadScheduler.Task {
+
+        private final String mName;
+        private int mStartCount;
+        private boolean mIsStarted;
+        private boolean mIsPaused;
+
+        private TestTask(String name) {
+            mName = name;
+        }
+
+        synchronized boolean isRunning() {
+            return mIsStarted && !mIsPaused;
+        }
+
+        @Override
+        public synchronized void start() {
+            mStartCount++;
+            mIsStarted = true;
+            mEvents.add("start " + mName);
+        }
+
+        @Override
+        public void pause() {
+            // real task takes time to pause, decisions of other threads can be made meanwhile
+            sleep();
+            synchronized (this) {
+                mIsPaused = true;
+                mEvents.add("pause " + mName);
+            }
+        }
+
+        @Override
+        public void resume() {
+            sleep();
+            synchronized (this) {
+                mIsPaused = false;
+                mEvents.add("resume " + mName);
+            }
+        }
+    }
+}
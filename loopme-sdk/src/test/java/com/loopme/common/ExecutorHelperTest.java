@@ -0,0 +1,336 @@
+package com.loopme.common;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class ExecutorHelperTest {
+
+    private static final int NETWORK_THREADS = 4;
+    private static final int NETWORK_QUEUE_SIZE = 128;
+    private static final int DISK_QUEUE_SIZE = 256;
+    private static final int TELEMETRY_QUEUE_SIZE = 64;
+    /**
+     * Threads of network, download, disk, cpu (at most), telemetry, streaming and accept lanes
+     */
+    private static final int MAX_LANE_THREADS = 4 + 9 + 1 + 4 + 1 + 4 + 1;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final CountDownLatch mReleaseLatch = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        mReleaseLatch.countDown();
+        ExecutorHelper.shutdown();
+    }
+
+    @Test
+    public void taskRunsOnLaneThread() throws Exception {
+        final AtomicReference<String> threadName = new AtomicReference<>();
+
+        ExecutorHelper.getDiskExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+            }
+        }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertTrue(threadName.get().startsWith("LoopMe-disk-"));
+    }
+
+    @Test
+    public void fullLaneRunsTaskOfBackgroundThreadInCaller() throws Exception {
+        fillLane(ExecutorHelper.getNetworkExecutor(), NETWORK_THREADS, NETWORK_QUEUE_SIZE);
+        final AtomicReference<Thread> runThread = new AtomicReference<>();
+        final AtomicReference<Thread> callerThread = new AtomicReference<>();
+
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                callerThread.set(Thread.currentThread());
+                ExecutorHelper.getNetworkExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        runThread.set(Thread.currentThread());
+                    }
+                });
+            }
+        });
+        caller.start();
+        caller.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertEquals(callerThread.get(), runThread.get());
+    }
+
+    @Test
+    public void fullDiskLaneKeepsOrderOfBackgroundTasks() throws Exception {
+        final ExecutorService lane = ExecutorHelper.getDiskExecutor();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch startLatch = block(lane);
+        assertTrue(startLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (int i = 0; i < DISK_QUEUE_SIZE; i++) {
+            lane.submit(record(order, i));
+        }
+
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                lane.submit(record(order, DISK_QUEUE_SIZE));
+            }
+        });
+        caller.start();
+        caller.join(200);
+        assertTrue("Caller must wait for room in queue", caller.isAlive());
+
+        mReleaseLatch.countDown();
+        caller.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        lane.submit(record(order, DISK_QUEUE_SIZE + 1)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(DISK_QUEUE_SIZE + 2, order.size());
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void fullDiskLaneRejectsTaskOfItsOwnThread() throws Exception {
+        final ExecutorService lane = ExecutorHelper.getDiskExecutor();
+        final CountDownLatch fillLatch = new CountDownLatch(1);
+        final AtomicBoolean isRejected = new AtomicBoolean();
+        Runnable nested = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        Runnable submitter = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fillLatch.await();
+                    lane.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    isRejected.set(true);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Future<?> result = lane.submit(submitter);
+        for (int i = 0; i < DISK_QUEUE_SIZE; i++) {
+            lane.submit(nested);
+        }
+
+        fillLatch.countDown();
+
+        result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(isRejected.get());
+    }
+
+    @Test
+    public void concurrentLoadsKeepThreadCountBounded() throws Exception {
+        final int loadsCount = 100;
+        final ExecutorService[] lanes = {ExecutorHelper.getNetworkExecutor(), ExecutorHelper.getDownloadExecutor(),
+                ExecutorHelper.getDiskExecutor(), ExecutorHelper.getCpuExecutor(), ExecutorHelper.getTelemetryExecutor()};
+        final AtomicInteger runCount = new AtomicInteger();
+        final AtomicInteger maxThreads = new AtomicInteger();
+        final AtomicBoolean isLoading = new AtomicBoolean(true);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        Thread monitor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (isLoading.get()) {
+                    int threads = countLaneThreads();
+                    if (threads > maxThreads.get()) {
+                        maxThreads.set(threads);
+                    }
+                    Thread.yield();
+                }
+            }
+        });
+        monitor.start();
+        List<Thread> loads = new ArrayList<>();
+        for (int i = 0; i < loadsCount; i++) {
+            // like ad load, every step goes to its lane
+            Thread load = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (ExecutorService lane : lanes) {
+                        lane.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                runCount.incrementAndGet();
+                                sleep(2);
+                            }
+                        });
+                    }
+                }
+            });
+            load.start();
+            loads.add(load);
+        }
+
+        startLatch.countDown();
+        for (Thread load : loads) {
+            load.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        }
+        for (ExecutorService lane : lanes) {
+            lane.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        isLoading.set(false);
+        monitor.join();
+
+        assertTrue("Lane threads: " + maxThreads.get(), maxThreads.get() <= MAX_LANE_THREADS);
+        assertTrue(maxThreads.get() > 1);
+        // telemetry lane can drop oldest reports, other lanes run every task
+        assertTrue(runCount.get() >= (lanes.length - 1) * loadsCount);
+    }
+
+    @Test
+    public void fullLaneRejectsTaskOfMainThread() throws Exception {
+        fillLane(ExecutorHelper.getDiskExecutor(), 1, DISK_QUEUE_SIZE);
+        final AtomicBoolean isRun = new AtomicBoolean();
+
+        try {
+            ExecutorHelper.getDiskExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    isRun.set(true);
+                }
+            });
+            fail("Main thread must not run task of full lane");
+        } catch (RejectedExecutionException e) {
+            assertFalse(isRun.get());
+        }
+    }
+
+    @Test
+    public void telemetryLaneDropsOldestTask() throws Exception {
+        ExecutorService lane = ExecutorHelper.getTelemetryExecutor();
+        CountDownLatch startLatch = block(lane);
+        assertTrue(startLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        final AtomicInteger firstRun = new AtomicInteger(-1);
+        final CountDownLatch doneLatch = new CountDownLatch(TELEMETRY_QUEUE_SIZE);
+        for (int i = 0; i <= TELEMETRY_QUEUE_SIZE; i++) {
+            final int number = i;
+            lane.submit(new Runnable() {
+                @Override
+                public void run() {
+                    firstRun.compareAndSet(-1, number);
+                    doneLatch.countDown();
+                }
+            });
+        }
+
+        mReleaseLatch.countDown();
+
+        assertTrue(doneLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, firstRun.get());
+    }
+
+    @Test
+    public void shutdownLaneIsRecreated() {
+        ExecutorService lane = ExecutorHelper.getNetworkExecutor();
+
+        ExecutorHelper.shutdown();
+
+        assertTrue(lane.isShutdown());
+        ExecutorService newLane = ExecutorHelper.getNetworkExecutor();
+        assertNotSame(lane, newLane);
+        assertFalse(newLane.isShutdown());
+    }
+
+    /**
+     * Blocks all threads of lane and fills its queue.
+     */
+    private void fillLane(ExecutorService lane, int threads, int queueSize) throws InterruptedException {
+        for (int i = 0; i < threads; i++) {
+            CountDownLatch startLatch = block(lane);
+            assertTrue(startLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < queueSize; i++) {
+            lane.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+    }
+
+    private CountDownLatch block(ExecutorService lane) {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        lane.submit(new Runnable() {
+            @Override
+            public void run() {
+                startLatch.countDown();
+                try {
+                    mReleaseLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return startLatch;
+    }
+
+    private static Runnable record(final List<Integer> order, final int number) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(number);
+            }
+        };
+    }
+
+    private static int countLaneThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("LoopMe-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
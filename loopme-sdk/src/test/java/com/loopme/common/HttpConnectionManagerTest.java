@@ -0,0 +1,129 @@
+package com.loopme.common;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpConnectionManagerTest {
+
+    private static final int BODY_SIZE = 1000;
+
+    private final List<Integer> mClientPorts = new CopyOnWriteArrayList<>();
+    private HttpServer mServer;
+    private String mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mClientPorts.add(exchange.getRemoteAddress().getPort());
+                exchange.sendResponseHeaders(200, BODY_SIZE);
+                OutputStream body = exchange.getResponseBody();
+                body.write(new byte[BODY_SIZE]);
+                body.close();
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/ad";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void openConnectionSetsTimeoutsAndPoolSettings() throws IOException {
+        HttpURLConnection connection = HttpConnectionManager.openConnection(mUrl, 5000);
+
+        assertEquals(5000, connection.getConnectTimeout());
+        assertEquals(5000, connection.getReadTimeout());
+        assertNotNull(System.getProperty("http.keepAlive"));
+        assertNotNull(System.getProperty("http.maxConnections"));
+        assertNotNull(System.getProperty("http.keepAliveDuration"));
+    }
+
+    @Test
+    public void releasedConnectionIsReused() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            HttpURLConnection connection = HttpConnectionManager.openConnection(mUrl, 5000);
+            assertEquals(200, connection.getResponseCode());
+            InputStream stream = connection.getInputStream();
+            stream.read(new byte[10]);
+            HttpConnectionManager.release(stream);
+        }
+
+        assertEquals(3, mClientPorts.size());
+        assertEquals(mClientPorts.get(0), mClientPorts.get(1));
+        assertEquals(mClientPorts.get(0), mClientPorts.get(2));
+    }
+
+    @Test
+    public void releaseReadsRestOfShortBody() {
+        CountingStream stream = new CountingStream(new byte[1000]);
+
+        HttpConnectionManager.release(stream);
+
+        assertEquals(1000, stream.mReadCount);
+        assertTrue(stream.mIsClosed);
+    }
+
+    @Test
+    public void releaseDoesNotDrainLongBody() {
+        CountingStream stream = new CountingStream(new byte[1024 * 1024]);
+
+        HttpConnectionManager.release(stream);
+
+        assertTrue(stream.mReadCount < 1024 * 128);
+        assertTrue(stream.mIsClosed);
+    }
+
+    @Test
+    public void releaseIgnoresMissingStream() {
+        HttpConnectionManager.release(null);
+    }
+
+    private static class CountingStream extends ByteArrayInputStream {
+
+        private int mReadCount;
+        private boolean mIsClosed;
+
+        private CountingStream(byte[] body) {
+            super(body);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                mReadCount += count;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIsClosed = true;
+            super.close();
+        }
+    }
+}
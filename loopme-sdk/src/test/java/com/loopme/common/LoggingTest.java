@@ -0,0 +1,141 @@
+package com.loopme.common;
+
+import android.util.Log;
+
+import com.loopme.constants.LogLevel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class LoggingTest {
+
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final String TAG_NAME = "Debug.LoopMe.LoggingTest";
+    private static final Logging.Tag TAG = Logging.tag(LoggingTest.class);
+
+    private boolean mIsDebugMode;
+
+    @Before
+    public void setUp() {
+        mIsDebugMode = StaticParams.DEBUG_MODE;
+        StaticParams.DEBUG_MODE = true;
+    }
+
+    @After
+    public void tearDown() {
+        StaticParams.DEBUG_MODE = mIsDebugMode;
+        Logging.setMinLevel(LogLevel.DEBUG);
+    }
+
+    @Test
+    public void placeholdersAreReplacedWithArguments() throws Exception {
+        Logging.log(LogLevel.INFO, TAG, "Loaded {} bytes", 1024);
+        Logging.log(LogLevel.INFO, TAG, "Chunk {} of {} is loaded", 3, 11);
+        Logging.log(LogLevel.INFO, TAG, "Is cached: {}", true);
+
+        assertEquals(Arrays.asList("Loaded 1024 bytes", "Chunk 3 of 11 is loaded", "Is cached: true"),
+                awaitMessages(3));
+    }
+
+    @Test
+    public void argumentWithoutPlaceholderIsAppended() throws Exception {
+        Logging.log(LogLevel.INFO, TAG, "Position: ", 42);
+        Logging.log(LogLevel.INFO, TAG, "Range {}-", 10, 20);
+        Logging.log(LogLevel.INFO, TAG, "{} and {} and {}", 1, 2);
+
+        assertEquals(Arrays.asList("Position: 42", "Range 10-20", "1 and 2 and {}"), awaitMessages(3));
+    }
+
+    @Test
+    public void levelIsMappedToLogcatPriority() throws Exception {
+        Logging.log(LogLevel.DEBUG, TAG, "debug");
+        Logging.log(LogLevel.WARNING, TAG, "warning");
+        Logging.log(LogLevel.ERROR, TAG, "error");
+        Logging.out(TAG, "info");
+
+        List<Integer> priorities = new ArrayList<>();
+        for (ShadowLog.LogItem item : awaitItems(4)) {
+            priorities.add(item.type);
+        }
+        assertEquals(Arrays.asList(Log.DEBUG, Log.WARN, Log.ERROR, Log.INFO), priorities);
+    }
+
+    @Test
+    public void stringTagIsPrefixed() throws Exception {
+        Logging.out("LoggingTest", "message");
+
+        assertEquals(Arrays.asList("message"), awaitMessages(1));
+    }
+
+    @Test
+    public void nothingIsWrittenWhenDebugIsOff() throws Exception {
+        StaticParams.DEBUG_MODE = false;
+        Logging.log(LogLevel.ERROR, TAG, "Skipped {}", 1);
+        Logging.out(TAG, "Skipped");
+        // debug mode is turned on again, so written message shows that lane has run
+        StaticParams.DEBUG_MODE = true;
+        Logging.out(TAG, "Written");
+
+        assertEquals(Arrays.asList("Written"), awaitMessages(1));
+    }
+
+    @Test
+    public void messagesBelowMinLevelAreSkipped() throws Exception {
+        Logging.setMinLevel(LogLevel.WARNING);
+
+        assertFalse(Logging.isLoggable(LogLevel.INFO));
+        assertTrue(Logging.isLoggable(LogLevel.WARNING));
+        Logging.log(LogLevel.DEBUG, TAG, "Skipped {}", 1);
+        Logging.out(TAG, "Skipped");
+        Logging.log(LogLevel.ERROR, TAG, "Written {}", 2);
+
+        assertEquals(Arrays.asList("Written 2"), awaitMessages(1));
+    }
+
+    private static List<String> awaitMessages(int count) throws InterruptedException {
+        List<String> messages = new ArrayList<>();
+        for (ShadowLog.LogItem item : awaitItems(count)) {
+            messages.add(item.msg);
+        }
+        return messages;
+    }
+
+    /**
+     * Messages are written to logcat on cpu lane.
+     */
+    private static List<ShadowLog.LogItem> awaitItems(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        List<ShadowLog.LogItem> items = getItems();
+        while (items.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            items = getItems();
+        }
+        return items;
+    }
+
+    private static List<ShadowLog.LogItem> getItems() {
+        List<ShadowLog.LogItem> items = new ArrayList<>();
+        for (ShadowLog.LogItem item : ShadowLog.getLogs()) {
+            if (TAG_NAME.equals(item.tag)) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+}
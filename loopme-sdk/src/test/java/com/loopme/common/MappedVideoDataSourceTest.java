@@ -0,0 +1,162 @@
+package com.loopme.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class MappedVideoDataSourceTest {
+
+    private static final int LENGTH = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void missingFileIsNotMapped() {
+        assertNull(MappedVideoDataSource.create(null));
+        assertNull(MappedVideoDataSource.create(new File(mFolder.getRoot(), "missing.mp4").getPath()));
+        assertNull(MappedVideoDataSource.create(mFolder.getRoot().getPath()));
+    }
+
+    @Test
+    public void cachedFileIsRead() throws IOException {
+        File file = createFile("video.mp4", LENGTH);
+        MappedVideoDataSource dataSource = MappedVideoDataSource.create(file.getPath());
+        assertNotNull(dataSource);
+        byte[] buffer = new byte[20];
+
+        assertEquals(LENGTH, dataSource.getSize());
+        assertEquals(10, dataSource.readAt(30, buffer, 5, 10));
+        assertArrayEquals(new byte[]{30, 31, 32, 33, 34, 35, 36, 37, 38, 39}, copy(buffer, 5, 10));
+        assertEquals(4, dataSource.readAt(96, buffer, 0, 20));
+        assertEquals(-1, dataSource.readAt(LENGTH, buffer, 0, 20));
+        dataSource.close();
+        dataSource.close();
+    }
+
+    @Test
+    public void sharedMappingOutlivesClosedPlayer() throws IOException {
+        File file = createFile("shared.mp4", LENGTH);
+        MappedVideoDataSource first = MappedVideoDataSource.create(file.getPath());
+        MappedVideoDataSource second = MappedVideoDataSource.create(file.getPath());
+        first.close();
+        byte[] buffer = new byte[1];
+
+        assertEquals(1, second.readAt(50, buffer, 0, 1));
+        assertEquals(50, buffer[0]);
+        second.close();
+    }
+
+    @Test
+    public void replacedFileIsMappedAgain() throws IOException {
+        File file = createFile("replaced.mp4", LENGTH);
+        MappedVideoDataSource first = MappedVideoDataSource.create(file.getPath());
+        createFile("replaced.mp4", LENGTH * 2);
+
+        MappedVideoDataSource second = MappedVideoDataSource.create(file.getPath());
+
+        assertEquals(LENGTH, first.getSize());
+        assertEquals(LENGTH * 2, second.getSize());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void partialFileIsReadUpToLoadedBytes() throws IOException {
+        File file = createFile("partial.mp4", LENGTH);
+        TestSource source = new TestSource(file, 40);
+        String url = StreamingProxy.getInstance().register("partial", source);
+        try {
+            MappedVideoDataSource dataSource = MappedVideoDataSource.create(url);
+            assertNotNull(dataSource);
+            byte[] buffer = new byte[50];
+
+            assertEquals(LENGTH, dataSource.getSize());
+            assertEquals(40, dataSource.readAt(0, buffer, 0, 50));
+            assertEquals(39, buffer[39]);
+            dataSource.close();
+        } finally {
+            StreamingProxy.getInstance().unregister("partial", source);
+        }
+    }
+
+    @Test
+    public void missingDataFailsRead() throws IOException {
+        File file = createFile("failed.mp4", LENGTH);
+        TestSource source = new TestSource(file, -1);
+        String url = StreamingProxy.getInstance().register("failed", source);
+        try {
+            MappedVideoDataSource dataSource = MappedVideoDataSource.create(url);
+            try {
+                dataSource.readAt(0, new byte[10], 0, 10);
+                fail("Read of data which will not be loaded must fail");
+            } catch (IOException e) {
+                dataSource.close();
+            }
+        } finally {
+            StreamingProxy.getInstance().unregister("failed", source);
+        }
+    }
+
+    private File createFile(String name, int length) throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) i;
+        }
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static byte[] copy(byte[] buffer, int offset, int count) {
+        byte[] bytes = new byte[count];
+        System.arraycopy(buffer, offset, bytes, 0, count);
+        return bytes;
+    }
+
+    private static class TestSource implements StreamingProxy.Source {
+
+        private final File mFile;
+        private final long mAvailable;
+
+        private TestSource(File file, long available) {
+            mFile = file;
+            mAvailable = available;
+        }
+
+        @Override
+        public long getLength() {
+            return mFile.length();
+        }
+
+        @Override
+        public File getFile() {
+            return mFile;
+        }
+
+        @Override
+        public long awaitAvailable(long position, long timeoutMillis) {
+            return mAvailable < 0 ? -1 : Math.max(mAvailable - position, 0);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.loopme.common;
+
+import com.loopme.constants.AdFormat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class ResponseParserTest {
+
+    private static final String BANNER_AD = "{\"script\":\"<div>banner</div>\","
+            + "\"settings\":{\"format\":\"banner\",\"orientation\":\"portrait\"}}";
+
+    private final List<String> mErrors = new ArrayList<>();
+    private final List<String> mSlotErrors = new ArrayList<>();
+    private ResponseParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = new ResponseParser(new ResponseParser.Listener() {
+            @Override
+            public void onParseError(LoopMeError message) {
+                mErrors.add(message.getMessage());
+            }
+        }, AdFormat.INTERSTITIAL);
+    }
+
+    @Test
+    public void streamReadsKnownFieldsInAnyOrder() {
+        String response = "{\"unknown\":{\"nested\":[1,{\"a\":\"b\"}],\"script\":\"ignored\"},"
+                + "\"settings\":{\"extra\":[true,null],\"format\":\"interstitial\",\"orientation\":\"landscape\","
+                + "\"ad_expiry_time\":\"1200\",\"token\":\"abc\",\"package_ids\":[\"com.app\",7,\"com.game\"],"
+                + "\"measure_partners\":\"moat\",\"v360\":1,\"mraid\":0,\"autoloading\":0},"
+                + "\"script\":\"<video src=\\\"https:\\/\\/cdn.loopme.com\\/v.mp4\\\">\"}";
+
+        AdParams params = mParser.getAdParams(stream(response));
+
+        assertNotNull(params);
+        assertTrue(mErrors.isEmpty());
+        assertEquals("interstitial", params.getAdFormat());
+        assertEquals("landscape", params.getAdOrientation());
+        assertEquals(1200 * 1000, params.getExpiredTime());
+        assertEquals("abc", params.getToken());
+        assertEquals(Arrays.asList("com.app", "com.game"), params.getPackageIds());
+        assertTrue(params.getTrackers().isEmpty());
+        assertTrue(params.isVideo360());
+        assertFalse(params.isMraid());
+        assertFalse(params.getAutoloading());
+        assertEquals(Arrays.asList("https://cdn.loopme.com/v.mp4"), params.getVideoUrls());
+    }
+
+    @Test
+    public void streamAndStringGiveSameParams() {
+        String response = "{\"script\":\"<div/>\",\"settings\":{\"format\":\"interstitial\",\"token\":\"t\"}}";
+
+        AdParams fromStream = mParser.getAdParams(stream(response));
+        AdParams fromString = mParser.getAdParams(response);
+
+        assertEquals(fromString.getHtml(), fromStream.getHtml());
+        assertEquals(fromString.getToken(), fromStream.getToken());
+    }
+
+    @Test
+    public void emptyStreamIsReportedAsNoContent() {
+        assertNull(mParser.getAdParams(stream("")));
+
+        assertEquals(Arrays.asList("No content"), mErrors);
+    }
+
+    @Test
+    public void truncatedStreamIsReportedAsBroken() {
+        assertNull(mParser.getAdParams(stream("{\"settings\":{\"format\":\"inter")));
+
+        assertEquals(Arrays.asList("Exception during json parse"), mErrors);
+    }
+
+    @Test
+    public void wrongFormatIsRejected() {
+        assertNull(mParser.getAdParams(stream(BANNER_AD)));
+
+        assertEquals(Arrays.asList("Wrong Ad format: banner"), mErrors);
+    }
+
+    @Test
+    public void batchGivesAdForEachSlot() {
+        String response = "{\"ads\":[" + BANNER_AD + ",42,"
+                + "{\"settings\":{\"format\":\"interstitial\"},\"script\":\"<p/>\"}]}";
+        int[] formats = {AdFormat.BANNER, AdFormat.BANNER, AdFormat.INTERSTITIAL, AdFormat.BANNER};
+
+        List<AdParams> result = mParser.getAdParamsList(stream(response), formats, initBatchListener());
+
+        assertEquals(4, result.size());
+        assertEquals("<div>banner</div>", result.get(0).getHtml());
+        assertNull(result.get(1));
+        assertEquals("<p/>", result.get(2).getHtml());
+        assertNull(result.get(3));
+        assertEquals(Arrays.asList("1: Exception during json parse", "3: No ad in batch response"), mSlotErrors);
+        assertTrue(mErrors.isEmpty());
+    }
+
+    @Test
+    public void singleAdIsAnswerForFirstSlot() {
+        int[] formats = {AdFormat.BANNER, AdFormat.BANNER};
+
+        List<AdParams> result = mParser.getAdParamsList(stream(BANNER_AD), formats, initBatchListener());
+
+        assertEquals("<div>banner</div>", result.get(0).getHtml());
+        assertNull(result.get(1));
+        assertEquals(Arrays.asList("1: No ad in batch response"), mSlotErrors);
+    }
+
+    @Test
+    public void emptyBatchIsReportedToResponseListener() {
+        List<AdParams> result = mParser.getAdParamsList(stream(""), new int[]{AdFormat.BANNER}, initBatchListener());
+
+        assertTrue(result.isEmpty());
+        assertEquals(Arrays.asList("No content"), mErrors);
+        assertTrue(mSlotErrors.isEmpty());
+    }
+
+    @Test
+    public void brokenBatchIsReportedToResponseListener() {
+        List<AdParams> result = mParser.getAdParamsList(stream("{\"ads\":[" + BANNER_AD + ",{\"sett"),
+                new int[]{AdFormat.BANNER}, initBatchListener());
+
+        assertTrue(result.isEmpty());
+        assertEquals(Arrays.asList("Exception during json parse"), mErrors);
+    }
+
+    @Test
+    public void videoUrlsAreUniqueAndLimited() {
+        String html = "<video src='http://a.com/1.mp4?x=1'></video> http://a.com/1.mp4?x=1 "
+                + "https:\\/\\/b.com\\/2.MP4 http://c.com/3.mp4.html http://d.com/4.mp4 http://e.com/5.mp4";
+
+        List<String> urls = ResponseParser.extractVideoUrls(html);
+
+        assertEquals(Arrays.asList("http://a.com/1.mp4?x=1", "https://b.com/2.MP4", "http://d.com/4.mp4"), urls);
+    }
+
+    private ResponseParser.BatchListener initBatchListener() {
+        return new ResponseParser.BatchListener() {
+            @Override
+            public void onSlotParseError(int slot, LoopMeError message) {
+                mSlotErrors.add(slot + ": " + message.getMessage());
+            }
+        };
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes());
+    }
+}
@@ -0,0 +1,396 @@
+package com.loopme.common;
+
+import android.util.Base64;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class SegmentedDownloaderTest {
+
+    private static final int CHUNK_SIZE = 1024 * 256;
+    private static final int CHUNKS_COUNT = 11;
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mContent = new byte[CHUNK_SIZE * (CHUNKS_COUNT - 1) + 1000];
+    private final List<Integer> mRequestedChunks = Collections.synchronizedList(new ArrayList<Integer>());
+    private final Set<Integer> mFailingChunks = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final Set<Integer> mFailingOnceChunks = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final Set<Integer> mCutOnceChunks = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private volatile String mETag = "\"v1\"";
+    private volatile String mContentMd5;
+
+    private HttpServer mServer;
+    private String mUrl;
+    private File mTargetFile;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(mContent);
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/video.mp4";
+        mTargetFile = new File(mFolder.getRoot(), "video.mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void cancelledDownloadIsResumed() throws Exception {
+        for (int chunk = 6; chunk < CHUNKS_COUNT; chunk++) {
+            mFailingChunks.add(chunk);
+        }
+        TestListener firstListener = new TestListener();
+        SegmentedDownloader first = new SegmentedDownloader(mUrl, mTargetFile, false, firstListener);
+        first.start();
+        // every connection stops at failed chunk and waits for backoff
+        awaitRequestCount(9);
+        first.cancel();
+
+        assertTrue(getStateFile().exists());
+        assertEquals(mContent.length, getPartFile().length());
+        assertFalse(mTargetFile.exists());
+        assertEquals(1, firstListener.mFinishLatch.getCount());
+
+        mFailingChunks.clear();
+        mRequestedChunks.clear();
+        TestListener secondListener = new TestListener();
+        new SegmentedDownloader(mUrl, mTargetFile, false, secondListener).start();
+
+        secondListener.awaitFinish();
+        assertNull(secondListener.mError);
+        assertEquals(Arrays.asList(6, 7, 8, 9, 10), getSortedRequestedChunks());
+        assertDownloaded(secondListener);
+    }
+
+    @Test
+    public void changedFileIsLoadedFromStart() throws Exception {
+        for (int chunk = 6; chunk < CHUNKS_COUNT; chunk++) {
+            mFailingChunks.add(chunk);
+        }
+        SegmentedDownloader first = new SegmentedDownloader(mUrl, mTargetFile, false, new TestListener());
+        first.start();
+        awaitRequestCount(9);
+        first.cancel();
+
+        mFailingChunks.clear();
+        mRequestedChunks.clear();
+        mETag = "\"v2\"";
+        TestListener listener = new TestListener();
+        new SegmentedDownloader(mUrl, mTargetFile, false, listener).start();
+
+        listener.awaitFinish();
+        assertEquals(CHUNKS_COUNT, getSortedRequestedChunks().size());
+        assertDownloaded(listener);
+    }
+
+    @Test
+    public void truncatedStateIsIgnored() throws Exception {
+        Random random = new Random(7);
+        for (int i = 0; i < 3; i++) {
+            interruptDownload();
+            // process died while state was written
+            truncate(getStateFile(), random.nextInt((int) getStateFile().length()));
+
+            TestListener listener = new TestListener();
+            new SegmentedDownloader(mUrl, mTargetFile, false, listener).start();
+
+            listener.awaitFinish();
+            assertEquals(CHUNKS_COUNT, getSortedRequestedChunks().size());
+            assertDownloaded(listener);
+        }
+    }
+
+    @Test
+    public void truncatedPartFileIsLoadedFromStart() throws Exception {
+        Random random = new Random(7);
+        for (int i = 0; i < 3; i++) {
+            interruptDownload();
+            truncate(getPartFile(), random.nextInt(mContent.length));
+
+            TestListener listener = new TestListener();
+            new SegmentedDownloader(mUrl, mTargetFile, false, listener).start();
+
+            listener.awaitFinish();
+            assertEquals(CHUNKS_COUNT, getSortedRequestedChunks().size());
+            assertDownloaded(listener);
+        }
+    }
+
+    @Test
+    public void unsavedChunksAreLoadedAgain() throws Exception {
+        Random random = new Random(7);
+        interruptDownload();
+        // writer stopped in the middle of chunk which is not saved in state
+        byte[] garbage = new byte[CHUNK_SIZE];
+        random.nextBytes(garbage);
+        RandomAccessFile output = new RandomAccessFile(getPartFile(), "rw");
+        try {
+            output.seek(CHUNK_SIZE * 6 + random.nextInt(CHUNK_SIZE * 4));
+            output.write(garbage);
+        } finally {
+            output.close();
+        }
+
+        TestListener listener = new TestListener();
+        new SegmentedDownloader(mUrl, mTargetFile, false, listener).start();
+
+        listener.awaitFinish();
+        assertEquals(Arrays.asList(6, 7, 8, 9, 10), getSortedRequestedChunks());
+        assertDownloaded(listener);
+    }
+
+    @Test
+    public void failedChunkIsRetriedAfterBackoff() throws Exception {
+        mFailingOnceChunks.add(3);
+        TestListener listener = new TestListener();
+        new SegmentedDownloader(mUrl, mTargetFile, false, listener).start();
+        // retry waits on main looper, other chunks are loaded meanwhile
+        awaitRequestCount(CHUNKS_COUNT);
+        assertEquals(1, listener.mFinishLatch.getCount());
+
+        ShadowLooper.idleMainLooper(500);
+
+        listener.awaitFinish();
+        assertEquals(2, Collections.frequency(mRequestedChunks, 3));
+        assertDownloaded(listener);
+    }
+
+    @Test
+    public void chunkCutMidTransferIsRetried() throws Exception {
+        mCutOnceChunks.add(4);
+        TestListener listener = new TestListener();
+        new SegmentedDownloader(mUrl, mTargetFile, false, listener).start();
+        awaitRequestCount(CHUNKS_COUNT);
+        assertEquals(1, listener.mFinishLatch.getCount());
+
+        ShadowLooper.idleMainLooper(500);
+
+        listener.awaitFinish();
+        assertEquals(2, Collections.frequency(mRequestedChunks, 4));
+        assertDownloaded(listener);
+    }
+
+    @Test
+    public void fileWithMatchingMd5IsPublished() throws Exception {
+        mContentMd5 = Base64.encodeToString(MessageDigest.getInstance("MD5").digest(mContent), Base64.NO_WRAP);
+        TestListener listener = new TestListener();
+
+        new SegmentedDownloader(mUrl, mTargetFile, false, listener).start();
+
+        listener.awaitFinish();
+        assertDownloaded(listener);
+    }
+
+    @Test
+    public void fileWithWrongMd5IsDeleted() throws Exception {
+        mContentMd5 = Base64.encodeToString(new byte[16], Base64.NO_WRAP);
+        TestListener listener = new TestListener();
+
+        new SegmentedDownloader(mUrl, mTargetFile, false, listener).start();
+
+        listener.awaitFinish();
+        assertEquals("Error during video loading", listener.mError);
+        assertFalse(mTargetFile.exists());
+        assertFalse(getPartFile().exists());
+        assertFalse(getStateFile().exists());
+    }
+
+    @Test
+    public void publishedFileReplacesOldOne() throws Exception {
+        RandomAccessFile oldFile = new RandomAccessFile(mTargetFile, "rw");
+        oldFile.write(new byte[100]);
+        oldFile.close();
+        TestListener listener = new TestListener();
+
+        new SegmentedDownloader(mUrl, mTargetFile, false, listener).start();
+
+        listener.awaitFinish();
+        assertDownloaded(listener);
+    }
+
+    private void assertDownloaded(TestListener listener) throws IOException {
+        assertNull(listener.mError);
+        assertEquals(mTargetFile, listener.mFile);
+        assertArrayEquals(mContent, readFile(mTargetFile));
+        assertFalse(getPartFile().exists());
+        assertFalse(getStateFile().exists());
+    }
+
+    private void awaitRequestCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (mRequestedChunks.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mRequestedChunks.size());
+    }
+
+    /**
+     * Loads first 6 chunks and cancels download, so its files are left for next one.
+     */
+    private void interruptDownload() throws Exception {
+        mRequestedChunks.clear();
+        for (int chunk = 6; chunk < CHUNKS_COUNT; chunk++) {
+            mFailingChunks.add(chunk);
+        }
+        SegmentedDownloader downloader = new SegmentedDownloader(mUrl, mTargetFile, false, new TestListener());
+        downloader.start();
+        awaitRequestCount(9);
+        downloader.cancel();
+        assertTrue(getStateFile().exists());
+        mFailingChunks.clear();
+        mRequestedChunks.clear();
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(length);
+        } finally {
+            output.close();
+        }
+    }
+
+    private List<Integer> getSortedRequestedChunks() {
+        List<Integer> chunks = new ArrayList<>(mRequestedChunks);
+        Collections.sort(chunks);
+        return chunks;
+    }
+
+    private File getPartFile() {
+        return new File(mFolder.getRoot(), "video" + SegmentedDownloader.PART_EXTENSION);
+    }
+
+    private File getStateFile() {
+        return new File(mFolder.getRoot(), "video" + SegmentedDownloader.CHUNKS_EXTENSION);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", mETag);
+        headers.set("Accept-Ranges", "bytes");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            headers.set("Content-Length", String.valueOf(mContent.length));
+            if (mContentMd5 != null) {
+                headers.set("Content-MD5", mContentMd5);
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        Matcher matcher = RANGE_PATTERN.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+        if (!matcher.matches()) {
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+            return;
+        }
+        int start = Integer.parseInt(matcher.group(1));
+        int end = Integer.parseInt(matcher.group(2));
+        int chunk = start / CHUNK_SIZE;
+        mRequestedChunks.add(chunk);
+        if (mFailingChunks.contains(chunk) || mFailingOnceChunks.remove(chunk)) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        headers.set("Content-Range", "bytes " + start + "-" + end + "/" + mContent.length);
+        exchange.sendResponseHeaders(206, end - start + 1);
+        OutputStream body = exchange.getResponseBody();
+        if (mCutOnceChunks.remove(chunk)) {
+            // connection is dropped in the middle of body
+            body.write(mContent, start, (end - start + 1) / 2);
+            body.flush();
+            throw new IOException("Connection is cut");
+        }
+        body.write(mContent, start, end - start + 1);
+        body.close();
+    }
+
+    private static class TestListener implements SegmentedDownloader.Listener {
+
+        private final CountDownLatch mFinishLatch = new CountDownLatch(1);
+        private volatile File mFile;
+        private volatile String mError;
+
+        @Override
+        public void onPreviewReady() {
+        }
+
+        @Override
+        public void onComplete(File file) {
+            mFile = file;
+            mFinishLatch.countDown();
+        }
+
+        @Override
+        public void onError(String message, boolean isBadAsset) {
+            mError = message;
+            mFinishLatch.countDown();
+        }
+
+        private void awaitFinish() throws InterruptedException {
+            assertTrue(mFinishLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+}
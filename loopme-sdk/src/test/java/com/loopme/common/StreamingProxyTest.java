@@ -0,0 +1,302 @@
+package com.loopme.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class StreamingProxyTest {
+
+    private static final int LENGTH = 100;
+    private static final String KEY = "video";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mContent = new byte[LENGTH];
+    private LoadingSource mLoadingSource;
+    private StreamingProxy.Source mSource;
+    private String mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < LENGTH; i++) {
+            mContent[i] = (byte) i;
+        }
+        File file = mFolder.newFile("video.mp4");
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(mContent);
+        output.close();
+        mLoadingSource = new LoadingSource(file);
+        mSource = mLoadingSource;
+        mUrl = StreamingProxy.getInstance().register(KEY, mSource);
+    }
+
+    @After
+    public void tearDown() {
+        StreamingProxy.getInstance().unregister(KEY, mSource);
+    }
+
+    @Test
+    public void rangeIsParsed() {
+        assertRange(0, 99, "0", "");
+        assertRange(10, 19, "10", "19");
+        assertRange(99, 99, "99", "200");
+        assertRange(90, 99, "", "10");
+        assertRange(0, 99, "", "500");
+    }
+
+    @Test
+    public void unsatisfiableRangeIsRejected() {
+        assertNull(StreamingProxy.parseRange("", "", LENGTH));
+        assertNull(StreamingProxy.parseRange("", "0", LENGTH));
+        assertNull(StreamingProxy.parseRange("50", "10", LENGTH));
+        assertNull(StreamingProxy.parseRange("100", "", LENGTH));
+        assertNull(StreamingProxy.parseRange("99999999999999999999", "", LENGTH));
+    }
+
+    @Test
+    public void sourceIsFoundByUrl() {
+        assertNotNull(mUrl);
+        assertSame(mSource, StreamingProxy.getInstance().getSourceForUrl(mUrl));
+        assertNull(StreamingProxy.getInstance().getSourceForUrl("http://127.0.0.1:1/" + KEY));
+    }
+
+    @Test
+    public void wholeFileIsServedWithoutRange() throws IOException {
+        Response response = request("GET", null);
+
+        assertEquals("HTTP/1.1 200 OK", response.mStatus);
+        assertArrayEquals(mContent, response.mBody);
+    }
+
+    @Test
+    public void partOfFileIsServedForRange() throws IOException {
+        Response response = request("GET", "bytes=10-19");
+
+        assertEquals("HTTP/1.1 206 Partial Content", response.mStatus);
+        assertTrue(response.mHeaders.contains("Content-Range: bytes 10-19/100"));
+        assertArrayEquals(copy(10, 20), response.mBody);
+    }
+
+    @Test
+    public void suffixOfFileIsServed() throws IOException {
+        Response response = request("GET", "bytes=-5");
+
+        assertEquals("HTTP/1.1 206 Partial Content", response.mStatus);
+        assertArrayEquals(copy(95, 100), response.mBody);
+    }
+
+    @Test
+    public void emptyRangeIsNotSatisfiable() throws IOException {
+        Response response = request("GET", "bytes=-");
+
+        assertEquals("HTTP/1.1 416 Range Not Satisfiable", response.mStatus);
+        assertTrue(response.mHeaders.contains("Content-Range: bytes */100"));
+        assertEquals(0, response.mBody.length);
+    }
+
+    @Test
+    public void headRequestHasNoBody() throws IOException {
+        Response response = request("HEAD", null);
+
+        assertEquals("HTTP/1.1 200 OK", response.mStatus);
+        assertTrue(response.mHeaders.contains("Content-Length: 100"));
+        assertEquals(0, response.mBody.length);
+    }
+
+    @Test
+    public void unknownSourceIsNotFound() throws IOException {
+        StreamingProxy.getInstance().unregister(KEY, mSource);
+
+        assertEquals("HTTP/1.1 404 Not Found", request("GET", null).mStatus);
+    }
+
+    @Test
+    public void newerSourceIsNotUnregisteredByOldOne() throws IOException {
+        final StreamingProxy.Source oldSource = mSource;
+        mSource = new StreamingProxy.Source() {
+            @Override
+            public long getLength() {
+                return oldSource.getLength();
+            }
+
+            @Override
+            public File getFile() {
+                return oldSource.getFile();
+            }
+
+            @Override
+            public long awaitAvailable(long position, long timeoutMillis) throws InterruptedException {
+                return oldSource.awaitAvailable(position, timeoutMillis);
+            }
+        };
+        StreamingProxy.getInstance().register(KEY, mSource);
+
+        StreamingProxy.getInstance().unregister(KEY, oldSource);
+
+        assertSame(mSource, StreamingProxy.getInstance().getSourceForUrl(mUrl));
+        assertEquals("HTTP/1.1 200 OK", request("GET", null).mStatus);
+    }
+
+    @Test
+    public void loadedRangeIsServedWhileRestIsLoaded() throws Exception {
+        mLoadingSource.setLoaded(30);
+
+        Response response = request("GET", "bytes=0-29");
+
+        assertEquals("HTTP/1.1 206 Partial Content", response.mStatus);
+        assertArrayEquals(copy(0, 30), response.mBody);
+    }
+
+    @Test
+    public void tailRangeWaitsForDataAndIsServedIntact() throws Exception {
+        mLoadingSource.setLoaded(30);
+        final AtomicReference<Response> response = new AtomicReference<>();
+        Thread player = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    response.set(request("GET", "bytes=60-99"));
+                } catch (IOException e) {
+                    // response stays null
+                }
+            }
+        });
+        player.start();
+
+        // origin is slow, data arrives in small parts
+        for (int loaded = 40; loaded <= 90; loaded += 10) {
+            player.join(100);
+            assertTrue("Tail must wait till it is loaded", player.isAlive());
+            mLoadingSource.setLoaded(loaded);
+        }
+        mLoadingSource.setLoaded(LENGTH);
+        player.join(TimeUnit.SECONDS.toMillis(5));
+
+        assertNotNull(response.get());
+        assertEquals("HTTP/1.1 206 Partial Content", response.get().mStatus);
+        assertArrayEquals(copy(60, LENGTH), response.get().mBody);
+    }
+
+    private static void assertRange(long start, long end, String first, String last) {
+        assertArrayEquals(new long[]{start, end}, StreamingProxy.parseRange(first, last, LENGTH));
+    }
+
+    private byte[] copy(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        System.arraycopy(mContent, from, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    private Response request(String method, String range) throws IOException {
+        URL url = new URL(mUrl);
+        Socket socket = new Socket(url.getHost(), url.getPort());
+        try {
+            StringBuilder request = new StringBuilder()
+                    .append(method).append(' ').append(url.getPath()).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(url.getHost()).append("\r\n");
+            if (range != null) {
+                request.append("Range: ").append(range).append("\r\n");
+            }
+            request.append("\r\n");
+            OutputStream output = socket.getOutputStream();
+            output.write(request.toString().getBytes("US-ASCII"));
+            output.flush();
+            return new Response(readFully(socket.getInputStream()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * File which is loaded gradually, reader waits for bytes which are not loaded yet.
+     */
+    private static class LoadingSource implements StreamingProxy.Source {
+
+        private final File mFile;
+        private long mLoaded = LENGTH;
+
+        private LoadingSource(File file) {
+            mFile = file;
+        }
+
+        synchronized void setLoaded(long loaded) {
+            mLoaded = loaded;
+            notifyAll();
+        }
+
+        @Override
+        public long getLength() {
+            return LENGTH;
+        }
+
+        @Override
+        public File getFile() {
+            return mFile;
+        }
+
+        @Override
+        public synchronized long awaitAvailable(long position, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (position >= mLoaded && position < LENGTH) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) {
+                    return -1;
+                }
+                wait(timeout);
+            }
+            return Math.max(mLoaded - position, 0);
+        }
+    }
+
+    private static class Response {
+
+        private final String mStatus;
+        private final String mHeaders;
+        private final byte[] mBody;
+
+        private Response(byte[] response) throws IOException {
+            String text = new String(response, "ISO-8859-1");
+            int headersEnd = text.indexOf("\r\n\r\n");
+            mHeaders = text.substring(0, headersEnd);
+            mStatus = mHeaders.substring(0, mHeaders.indexOf("\r\n"));
+            mBody = new byte[response.length - headersEnd - 4];
+            System.arraycopy(response, headersEnd + 4, mBody, 0, mBody.length);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.loopme.common;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class TelemetryQueueTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<String> mBodies = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> mKeys = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int mResponseCode = 200;
+
+    private HttpServer mServer;
+    private String mUrl;
+    private Context mContext;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = new String(readFully(exchange.getRequestBody()), "UTF-8");
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.sendResponseHeaders(mResponseCode, -1);
+                exchange.close();
+                mKeys.add(exchange.getRequestHeaders().getFirst("Idempotency-Key"));
+                mBodies.add(body);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/events";
+        final File filesDir = mFolder.getRoot();
+        mContext = new ContextWrapper(RuntimeEnvironment.application) {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void requestsAreDeliveredInOrder() throws Exception {
+        TelemetryQueue queue = new TelemetryQueue();
+        queue.init(mContext);
+
+        enqueue(queue, "first", "second", "third");
+
+        awaitRequestCount(3);
+        assertEquals(Arrays.asList("first", "second", "third"), mBodies);
+        assertEquals(3, new HashSet<>(mKeys).size());
+    }
+
+    @Test
+    public void requestsQueuedBeforeInitAreStored() throws Exception {
+        mResponseCode = 503;
+        TelemetryQueue queue = new TelemetryQueue();
+        enqueue(queue, "early");
+        awaitRequestCount(1);
+        mResponseCode = 200;
+        queue.init(mContext);
+        awaitLanes();
+
+        assertEquals(1, getSegmentFiles().size());
+        assertTrue(getSegmentFiles().get(0).length() > 0);
+    }
+
+    @Test
+    public void pendingRequestsAreReplayedWithSameKeys() throws Exception {
+        mResponseCode = 503;
+        TelemetryQueue firstRun = new TelemetryQueue();
+        firstRun.init(mContext);
+        enqueue(firstRun, "first", "second");
+        // first request fails, retry waits on main looper
+        awaitRequestCount(1);
+        awaitLanes();
+        String firstKey = mKeys.get(0);
+
+        mResponseCode = 200;
+        mKeys.clear();
+        mBodies.clear();
+        new TelemetryQueue().init(mContext);
+
+        awaitRequestCount(2);
+        assertEquals(Arrays.asList("first", "second"), mBodies);
+        assertEquals(firstKey, mKeys.get(0));
+    }
+
+    @Test
+    public void deliveredRequestsAreNotReplayed() throws Exception {
+        TelemetryQueue firstRun = new TelemetryQueue();
+        firstRun.init(mContext);
+        enqueue(firstRun, "first", "second");
+        awaitRequestCount(2);
+        awaitLanes();
+
+        new TelemetryQueue().init(mContext);
+        awaitLanes();
+
+        assertEquals(2, mBodies.size());
+    }
+
+    @Test
+    public void tornTailIsSkippedAndNotAppendedTo() throws Exception {
+        mResponseCode = 503;
+        TelemetryQueue firstRun = new TelemetryQueue();
+        firstRun.init(mContext);
+        enqueue(firstRun, "first", "second");
+        awaitRequestCount(1);
+        awaitLanes();
+        List<File> segments = getSegmentFiles();
+        assertEquals(1, segments.size());
+        // record header without record, like write which was interrupted by crash
+        FileOutputStream output = new FileOutputStream(segments.get(0), true);
+        output.write(new byte[]{0, 0, 0, 20, 1, 2, 3, 4, 5});
+        output.close();
+
+        mResponseCode = 200;
+        mBodies.clear();
+        TelemetryQueue secondRun = new TelemetryQueue();
+        secondRun.init(mContext);
+        // replayed requests go before new one only when they are loaded already
+        awaitLanes();
+        enqueue(secondRun, "third");
+
+        awaitRequestCount(3);
+        assertEquals(Arrays.asList("first", "second", "third"), mBodies);
+        awaitLanes();
+        mBodies.clear();
+        new TelemetryQueue().init(mContext);
+        awaitLanes();
+        assertTrue(mBodies.isEmpty());
+    }
+
+    @Test
+    public void corruptedRecordEndsReplayOfSegment() throws Exception {
+        mResponseCode = 503;
+        TelemetryQueue firstRun = new TelemetryQueue();
+        firstRun.init(mContext);
+        enqueue(firstRun, "first");
+        awaitRequestCount(1);
+        awaitLanes();
+        enqueue(firstRun, "second");
+        awaitLanes();
+        File segment = getSegmentFiles().get(0);
+        byte[] bytes = readFully(new FileInputStream(segment));
+        // flip last byte of second record, its checksum doesn't match
+        bytes[bytes.length - 1] ^= 1;
+        FileOutputStream output = new FileOutputStream(segment);
+        output.write(bytes);
+        output.close();
+
+        mResponseCode = 200;
+        mBodies.clear();
+        new TelemetryQueue().init(mContext);
+
+        awaitRequestCount(1);
+        awaitLanes();
+        assertEquals(Arrays.asList("first"), mBodies);
+    }
+
+    private void enqueue(TelemetryQueue queue, String... bodies) throws IOException {
+        for (String body : bodies) {
+            queue.enqueuePost(mUrl, "text/plain", body.getBytes("UTF-8"), false);
+        }
+    }
+
+    private List<File> getSegmentFiles() {
+        File[] files = new File(mFolder.getRoot(), "LoopMeTelemetry").listFiles();
+        List<File> segments = new ArrayList<>();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.length() > 0) {
+                segments.add(file);
+            }
+        }
+        return segments;
+    }
+
+    private void awaitRequestCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (mBodies.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mBodies.size());
+    }
+
+    /**
+     * Waits for queued commits and deliveries, lanes execute tasks in order.
+     */
+    private static void awaitLanes() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            await(ExecutorHelper.getDiskExecutor());
+            await(ExecutorHelper.getTelemetryExecutor());
+        }
+    }
+
+    private static void await(ExecutorService lane) throws Exception {
+        lane.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
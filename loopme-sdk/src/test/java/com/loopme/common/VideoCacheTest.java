@@ -0,0 +1,310 @@
+package com.loopme.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class VideoCacheTest {
+
+    private static final String FIRST_URL = "http://cdn.loopme.test/first.mp4";
+    private static final String SECOND_URL = "http://cdn.loopme.test/second.mp4";
+    private static final String THIRD_URL = "http://cdn.loopme.test/third.mp4";
+    private static final int SIZE = 100;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private long mLifeTime;
+    private long mMaxSize;
+    private File mDirectory;
+    private VideoCache mCache;
+
+    @Before
+    public void setUp() {
+        mLifeTime = StaticParams.CACHED_VIDEO_LIFE_TIME;
+        mMaxSize = StaticParams.VIDEO_CACHE_MAX_SIZE;
+        mDirectory = mFolder.getRoot();
+        mCache = open();
+    }
+
+    @After
+    public void tearDown() {
+        StaticParams.CACHED_VIDEO_LIFE_TIME = mLifeTime;
+        StaticParams.VIDEO_CACHE_MAX_SIZE = mMaxSize;
+    }
+
+    @Test
+    public void downloadedFileIsFound() throws IOException {
+        assertNull(mCache.get(FIRST_URL));
+
+        download(FIRST_URL, SIZE);
+
+        assertEquals(mCache.getFile(FIRST_URL), mCache.get(FIRST_URL));
+        assertEquals(SIZE, mCache.getSize());
+    }
+
+    @Test
+    public void leastRecentlyUsedFileIsEvictedOverBudget() throws IOException {
+        StaticParams.VIDEO_CACHE_MAX_SIZE = SIZE * 2 + SIZE / 2;
+        download(FIRST_URL, SIZE);
+        download(SECOND_URL, SIZE);
+        assertNotNull(mCache.get(FIRST_URL));
+
+        download(THIRD_URL, SIZE);
+
+        assertNull(mCache.get(SECOND_URL));
+        assertFalse(mCache.getFile(SECOND_URL).exists());
+        assertNotNull(mCache.get(FIRST_URL));
+        assertNotNull(mCache.get(THIRD_URL));
+        assertEquals(SIZE * 2, mCache.getSize());
+    }
+
+    @Test
+    public void expiredFileIsRemoved() throws IOException {
+        download(FIRST_URL, SIZE);
+        StaticParams.CACHED_VIDEO_LIFE_TIME = -1;
+
+        assertNull(mCache.get(FIRST_URL));
+        assertFalse(mCache.getFile(FIRST_URL).exists());
+        assertEquals(0, mCache.getSize());
+    }
+
+    @Test
+    public void pinnedFileIsKeptUntilLastUnpin() throws IOException {
+        download(FIRST_URL, SIZE);
+        mCache.pin(FIRST_URL);
+        mCache.pin(FIRST_URL);
+        StaticParams.CACHED_VIDEO_LIFE_TIME = -1;
+
+        assertNull(mCache.get(FIRST_URL));
+        mCache.unpin(FIRST_URL);
+        download(SECOND_URL, SIZE);
+        assertTrue(mCache.getFile(FIRST_URL).exists());
+
+        mCache.unpin(FIRST_URL);
+        download(THIRD_URL, SIZE);
+
+        assertFalse(mCache.getFile(FIRST_URL).exists());
+        assertEquals(0, mCache.getSize());
+    }
+
+    @Test
+    public void pinnedFileIsKeptByClear() throws IOException {
+        download(FIRST_URL, SIZE);
+        download(SECOND_URL, SIZE);
+        mCache.pin(FIRST_URL);
+
+        mCache.clear();
+
+        assertNotNull(mCache.get(FIRST_URL));
+        assertFalse(mCache.getFile(SECOND_URL).exists());
+        assertEquals(SIZE, mCache.getSize());
+    }
+
+    @Test
+    public void journalIsReplayed() throws Exception {
+        StaticParams.VIDEO_CACHE_MAX_SIZE = SIZE * 2 + SIZE / 2;
+        download(FIRST_URL, SIZE);
+        download(SECOND_URL, SIZE);
+        assertNotNull(mCache.get(FIRST_URL));
+        awaitJournal();
+
+        mCache = open();
+        download(THIRD_URL, SIZE);
+
+        // order of access is replayed too
+        assertNull(mCache.get(SECOND_URL));
+        assertNotNull(mCache.get(FIRST_URL));
+        assertEquals(SIZE * 2, mCache.getSize());
+    }
+
+    @Test
+    public void brokenRecordsAreSkipped() throws Exception {
+        String key = VideoCache.getKey(FIRST_URL);
+        String otherKey = VideoCache.getKey(SECOND_URL);
+        long now = System.currentTimeMillis();
+        createFile(mCache.getFile(FIRST_URL), SIZE);
+        createFile(mCache.getFile(SECOND_URL), SIZE);
+        writeJournal("loopme-video-cache 2",
+                "P " + key + " " + SIZE + " " + now + " " + now + " 1 -",
+                "P " + otherKey + " " + SIZE + " " + now + " " + now + " 1",
+                "A " + key + " 12ab",
+                "R",
+                "garbage",
+                "P " + otherKey + " 1x0 " + now + " " + now + " 1 -");
+
+        mCache = open();
+
+        assertNotNull(mCache.get(FIRST_URL));
+        assertNull(mCache.get(SECOND_URL));
+        assertFalse(mCache.getFile(SECOND_URL).exists());
+        assertEquals(SIZE, mCache.getSize());
+    }
+
+    @Test
+    public void journalOfUnknownFormatIsIgnored() throws Exception {
+        createFile(mCache.getFile(FIRST_URL), SIZE);
+        writeJournal("loopme-video-cache 1", "P " + VideoCache.getKey(FIRST_URL) + " " + SIZE);
+
+        mCache = open();
+
+        assertNull(mCache.get(FIRST_URL));
+        assertEquals(0, mCache.getSize());
+    }
+
+    @Test
+    public void journalIsCompacted() throws Exception {
+        download(FIRST_URL, SIZE);
+        for (int i = 0; i < 100; i++) {
+            mCache.putPartial(SECOND_URL);
+            mCache.remove(SECOND_URL);
+        }
+        awaitJournal();
+
+        assertTrue(countJournalLines() < 10);
+        mCache = open();
+        assertNotNull(mCache.get(FIRST_URL));
+        assertNull(mCache.get(SECOND_URL));
+        assertEquals(SIZE, mCache.getSize());
+    }
+
+    @Test
+    public void renamedButUnrecordedDownloadIsRecovered() throws Exception {
+        mCache.putPartial(FIRST_URL);
+        awaitJournal();
+        // process died after file was published, but before it was recorded
+        createFile(mCache.getFile(FIRST_URL), SIZE);
+
+        mCache = open();
+
+        assertEquals(mCache.getFile(FIRST_URL), mCache.get(FIRST_URL));
+        assertEquals(SIZE, mCache.getSize());
+    }
+
+    @Test
+    public void entryWithoutFileIsDropped() throws Exception {
+        download(FIRST_URL, SIZE);
+        awaitJournal();
+        assertTrue(mCache.getFile(FIRST_URL).delete());
+
+        mCache = open();
+
+        assertNull(mCache.get(FIRST_URL));
+        assertEquals(0, mCache.getSize());
+    }
+
+    @Test
+    public void orphanFilesAreReclaimed() throws Exception {
+        download(FIRST_URL, SIZE);
+        mCache.putPartial(SECOND_URL);
+        mCache.putPartial(THIRD_URL);
+        awaitJournal();
+        String key = VideoCache.getKey(FIRST_URL);
+        String partialKey = VideoCache.getKey(SECOND_URL);
+        // leftovers of published download, interrupted download and interrupted state write
+        File[] orphans = {
+                new File(mDirectory, key + SegmentedDownloader.PART_EXTENSION),
+                new File(mDirectory, key + SegmentedDownloader.CHUNKS_EXTENSION),
+                new File(mDirectory, partialKey + SegmentedDownloader.CHUNKS_EXTENSION + ".tmp"),
+                new File(mDirectory, "unknown.mp4")};
+        for (File orphan : orphans) {
+            createFile(orphan, SIZE);
+        }
+        File partFile = new File(mDirectory, partialKey + SegmentedDownloader.PART_EXTENSION);
+        File stateFile = new File(mDirectory, partialKey + SegmentedDownloader.CHUNKS_EXTENSION);
+        createFile(partFile, SIZE);
+        createFile(stateFile, 10);
+
+        mCache = open();
+
+        for (File orphan : orphans) {
+            assertFalse(orphan.getName(), orphan.exists());
+        }
+        // partial download is kept to be resumed, the one without file is dropped
+        assertTrue(partFile.exists());
+        assertTrue(stateFile.exists());
+        awaitJournal();
+        assertEquals(3, countJournalLines());
+        assertNotNull(mCache.get(FIRST_URL));
+    }
+
+    private VideoCache open() {
+        VideoCache cache = new VideoCache(mDirectory);
+        cache.init();
+        return cache;
+    }
+
+    private void download(String url, int size) throws IOException {
+        mCache.putPartial(url);
+        createFile(mCache.getFile(url), size);
+        mCache.putComplete(url, size, null);
+    }
+
+    private static void createFile(File file, int length) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(length);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Journal is written on disk lane
+     */
+    private static void awaitJournal() throws Exception {
+        ExecutorHelper.getDiskExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void writeJournal(String... lines) throws Exception {
+        awaitJournal();
+        Writer writer = new FileWriter(new File(mDirectory, "cache.journal"));
+        try {
+            for (String line : lines) {
+                writer.write(line + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private int countJournalLines() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(new File(mDirectory, "cache.journal")));
+        try {
+            int count = 0;
+            while (reader.readLine() != null) {
+                count++;
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.loopme.debugging;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ErrorRateLimiterTest {
+
+    private static final int BUCKET_SIZE = 5;
+    private static final long REFILL_INTERVAL = 60 * 1000;
+    private static final int MAX_BUCKETS = 64;
+    private static final String TYPE = "bad_asset";
+    private static final String APP_KEY = "app";
+
+    private ErrorRateLimiter mLimiter;
+
+    @Before
+    public void setUp() {
+        mLimiter = new ErrorRateLimiter();
+    }
+
+    @Test
+    public void burstIsSuppressedAfterBucketIsEmpty() {
+        assertEquals(BUCKET_SIZE, acquire(TYPE, APP_KEY, BUCKET_SIZE + 3, 0));
+        assertTrue(mLimiter.hasSuppressed());
+
+        List<ErrorRateLimiter.Suppressed> suppressed = mLimiter.drainSuppressed();
+        assertEquals(1, suppressed.size());
+        assertEquals(TYPE, suppressed.get(0).mType);
+        assertEquals(APP_KEY, suppressed.get(0).mAppKey);
+        assertEquals(3, suppressed.get(0).mCount);
+    }
+
+    @Test
+    public void tokenIsRefilledOverTime() {
+        acquire(TYPE, APP_KEY, BUCKET_SIZE, 0);
+
+        assertFalse(mLimiter.tryAcquire(TYPE, APP_KEY, REFILL_INTERVAL / 2));
+        assertTrue(mLimiter.tryAcquire(TYPE, APP_KEY, REFILL_INTERVAL));
+        assertFalse(mLimiter.tryAcquire(TYPE, APP_KEY, REFILL_INTERVAL));
+        // bucket doesn't grow over its size
+        assertEquals(BUCKET_SIZE, acquire(TYPE, APP_KEY, BUCKET_SIZE + 1, REFILL_INTERVAL * 100));
+    }
+
+    @Test
+    public void bucketsAreSeparatePerTypeAndAppKey() {
+        acquire(TYPE, APP_KEY, BUCKET_SIZE, 0);
+
+        assertTrue(mLimiter.tryAcquire("broken_redirect", APP_KEY, 0));
+        assertTrue(mLimiter.tryAcquire(TYPE, "other_app", 0));
+        assertFalse(mLimiter.hasSuppressed());
+    }
+
+    @Test
+    public void sampledOutErrorsAreSuppressed() {
+        mLimiter.setSampleRate(0);
+
+        assertEquals(0, acquire(TYPE, APP_KEY, 3, 0));
+        assertEquals(3, mLimiter.drainSuppressed().get(0).mCount);
+
+        // rate out of range is clamped
+        mLimiter.setSampleRate(2);
+        assertEquals(BUCKET_SIZE, acquire(TYPE, APP_KEY, BUCKET_SIZE, 0));
+    }
+
+    @Test
+    public void drainResetsSuppressedCounts() {
+        acquire(TYPE, APP_KEY, BUCKET_SIZE + 2, 0);
+
+        assertEquals(2, mLimiter.drainSuppressed().get(0).mCount);
+        assertFalse(mLimiter.hasSuppressed());
+        assertTrue(mLimiter.drainSuppressed().isEmpty());
+
+        // draining doesn't give tokens back
+        assertFalse(mLimiter.tryAcquire(TYPE, APP_KEY, 0));
+        assertEquals(1, mLimiter.drainSuppressed().get(0).mCount);
+    }
+
+    @Test
+    public void suppressedCountOfEvictedBucketIsKept() {
+        acquire(TYPE, APP_KEY, BUCKET_SIZE + 4, 0);
+        for (int i = 0; i < MAX_BUCKETS; i++) {
+            mLimiter.tryAcquire(TYPE, "app" + i, 0);
+        }
+        // new bucket starts full after eviction
+        assertEquals(BUCKET_SIZE, acquire(TYPE, APP_KEY, BUCKET_SIZE + 1, 0));
+
+        List<ErrorRateLimiter.Suppressed> suppressed = mLimiter.drainSuppressed();
+        int count = 0;
+        for (ErrorRateLimiter.Suppressed item : suppressed) {
+            assertEquals(APP_KEY, item.mAppKey);
+            count += item.mCount;
+        }
+        assertEquals(5, count);
+        assertFalse(mLimiter.hasSuppressed());
+    }
+
+    /**
+     * @return count of errors which are allowed
+     */
+    private int acquire(String type, String appKey, int count, long now) {
+        int acquired = 0;
+        for (int i = 0; i < count; i++) {
+            if (mLimiter.tryAcquire(type, appKey, now)) {
+                acquired++;
+            }
+        }
+        return acquired;
+    }
+}
@@ -0,0 +1,148 @@
+package com.loopme.debugging;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class ErrorUploaderTest {
+
+    private static final long FLUSH_DELAY = 30 * 1000;
+    private static final int FLUSH_SIZE = 20;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final BlockingQueue<String> mBatches = new LinkedBlockingQueue<>();
+    private HttpServer mServer;
+    private ErrorUploader mUploader;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = readFully(exchange.getRequestBody());
+                // queue is shared by tests, so batch is acknowledged before test can stop server
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    mBatches.add(new String(readFully(new GZIPInputStream(new ByteArrayInputStream(body))), "UTF-8"));
+                }
+            }
+        });
+        mServer.start();
+        mUploader = new ErrorUploader("http://127.0.0.1:" + mServer.getAddress().getPort() + "/errors");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void identicalErrorsAreCounted() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mUploader.add(ErrorType.SERVER, "Broken response", "key");
+        }
+        mUploader.add(ErrorType.JS, "Script error", "key");
+
+        ShadowLooper.idleMainLooper(FLUSH_DELAY);
+
+        JSONObject batch = awaitBatch();
+        assertEquals("sdk_error", batch.getString(Params.MSG));
+        assertEquals(0, batch.getInt(Params.DROPPED_COUNT));
+        JSONArray errors = batch.getJSONArray(Params.ERRORS);
+        assertEquals(2, errors.length());
+        assertError(errors.getJSONObject(0), ErrorType.SERVER, "Broken response", 3);
+        assertError(errors.getJSONObject(1), ErrorType.JS, "Script error", 1);
+        assertEquals(0, batch.getJSONArray(Params.SUPPRESSED).length());
+    }
+
+    @Test
+    public void fullBufferIsSentWithoutDelay() throws Exception {
+        for (int i = 0; i < FLUSH_SIZE; i++) {
+            mUploader.add(ErrorType.CUSTOM, "Error " + i, "key" + i);
+        }
+
+        JSONObject batch = awaitBatch();
+        assertEquals(FLUSH_SIZE, batch.getJSONArray(Params.ERRORS).length());
+    }
+
+    @Test
+    public void burstOfErrorsIsSuppressed() throws Exception {
+        for (int i = 0; i < 8; i++) {
+            mUploader.add(ErrorType.BAD_ASSET, "Bad asset", "key");
+        }
+
+        ShadowLooper.idleMainLooper(FLUSH_DELAY);
+
+        JSONObject batch = awaitBatch();
+        assertError(batch.getJSONArray(Params.ERRORS).getJSONObject(0), ErrorType.BAD_ASSET, "Bad asset", 5);
+        JSONObject suppressed = batch.getJSONArray(Params.SUPPRESSED).getJSONObject(0);
+        assertEquals(ErrorType.BAD_ASSET, suppressed.getString(Params.ERROR_TYPE));
+        assertEquals(3, suppressed.getInt(Params.COUNT));
+    }
+
+    @Test
+    public void sampledOutErrorsAreReportedAsCount() throws Exception {
+        mUploader.setSampleRate(0);
+        for (int i = 0; i < 3; i++) {
+            mUploader.add(ErrorType.SERVER, "Broken response", "key");
+        }
+
+        ShadowLooper.idleMainLooper(FLUSH_DELAY);
+
+        JSONObject batch = awaitBatch();
+        assertEquals(0, batch.getJSONArray(Params.ERRORS).length());
+        assertEquals(3, batch.getJSONArray(Params.SUPPRESSED).getJSONObject(0).getInt(Params.COUNT));
+    }
+
+    private JSONObject awaitBatch() throws InterruptedException, JSONException {
+        String batch = mBatches.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        return new JSONObject(batch);
+    }
+
+    private static void assertError(JSONObject error, String type, String message, int count) throws JSONException {
+        assertEquals(type, error.getString(Params.ERROR_TYPE));
+        assertEquals(message, error.getString(Params.ERROR_MSG));
+        assertEquals("key", error.getString(Params.APP_KEY));
+        assertEquals(count, error.getInt(Params.COUNT));
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,116 @@
+package com.loopme.debugging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverValuesWithoutGaps() {
+        for (long value = 1; value < 1 << 20; value++) {
+            int index = LatencyHistogram.getBucketIndex(value);
+            int previousIndex = LatencyHistogram.getBucketIndex(value - 1);
+
+            assertTrue(index == previousIndex || index == previousIndex + 1);
+            assertTrue(LatencyHistogram.getBucketUpperBound(index) >= value);
+            if (index > 0) {
+                assertTrue(LatencyHistogram.getBucketUpperBound(index - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void upperBoundIsWithinQuarterOfValue() {
+        for (long value = 4; value < 1L << 32; value = value * 3 / 2 + 1) {
+            long upperBound = LatencyHistogram.getBucketUpperBound(LatencyHistogram.getBucketIndex(value));
+
+            assertTrue(value + " -> " + upperBound, upperBound - value < value / 4.0);
+        }
+    }
+
+    @Test
+    public void smallValuesHaveExactBuckets() {
+        for (int value = 0; value < 4; value++) {
+            assertEquals(value, LatencyHistogram.getBucketIndex(value));
+            assertEquals(value, LatencyHistogram.getBucketUpperBound(value));
+        }
+    }
+
+    @Test
+    public void hugeValuesGoToLastBucket() {
+        int lastIndex = LatencyHistogram.getBucketIndex(Long.MAX_VALUE);
+
+        assertEquals(lastIndex, LatencyHistogram.getBucketIndex(1L << 32));
+        assertEquals(lastIndex, LatencyHistogram.getBucketIndex((1L << 32) - 1));
+        assertEquals(lastIndex - 1, LatencyHistogram.getBucketIndex(3L << 30));
+        assertEquals((1L << 32) - 1, LatencyHistogram.getBucketUpperBound(lastIndex));
+    }
+
+    @Test
+    public void percentilesAreUpperBoundsOfBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+
+        assertEquals(100, snapshot.getCount());
+        assertEquals(50, snapshot.getMean());
+        assertEquals(100, snapshot.getMax());
+        assertEquals(1, snapshot.getPercentile(0));
+        assertEquals(55, snapshot.getPercentile(50));
+        assertEquals(100, snapshot.getPercentile(99));
+        assertEquals(100, snapshot.getPercentile(100));
+    }
+
+    @Test
+    public void negativeValueIsRecordedAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getSnapshot().getCount());
+        assertEquals(0, histogram.getSnapshot().getPercentile(100));
+    }
+
+    @Test
+    public void resetClearsHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+
+        histogram.reset();
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getPercentile(50));
+    }
+
+    @Test
+    public void concurrentRecordsAreNotLost() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int value = 0; value < 10000; value++) {
+                        histogram.record(value + offset);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(40000, snapshot.getCount());
+        assertEquals(10002, snapshot.getMax());
+    }
+}
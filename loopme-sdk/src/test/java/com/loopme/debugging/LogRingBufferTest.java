@@ -0,0 +1,143 @@
+package com.loopme.debugging;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogRingBufferTest {
+
+    private static final int CAPACITY = 4;
+
+    private LogRingBuffer mBuffer;
+    private List<String> mLines;
+
+    @Before
+    public void setUp() {
+        mBuffer = new LogRingBuffer(CAPACITY);
+        mLines = new ArrayList<>();
+    }
+
+    @Test
+    public void linesAreReadInOrder() throws IOException {
+        mBuffer.add("Tag", "first", true);
+        mBuffer.add("Tag", "second", false);
+
+        long next = mBuffer.read(0, collect(Integer.MAX_VALUE));
+
+        assertEquals(Arrays.asList("ui: Tag: first", "bg: Tag: second"), mLines);
+        assertEquals(2, next);
+        assertEquals(2, mBuffer.getNextSequence());
+    }
+
+    @Test
+    public void oldestLinesAreOverwritten() throws IOException {
+        for (int i = 0; i < CAPACITY + 2; i++) {
+            mBuffer.add("Tag", String.valueOf(i), false);
+        }
+
+        long next = mBuffer.read(0, collect(Integer.MAX_VALUE));
+
+        assertEquals(Arrays.asList("bg: Tag: 2", "bg: Tag: 3", "bg: Tag: 4", "bg: Tag: 5"), mLines);
+        assertEquals(CAPACITY + 2, next);
+    }
+
+    @Test
+    public void readIsResumedWhereConsumerStopped() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            mBuffer.add("Tag", String.valueOf(i), false);
+        }
+
+        long next = mBuffer.read(0, collect(2));
+        assertEquals(Arrays.asList("bg: Tag: 0", "bg: Tag: 1"), mLines);
+        assertEquals(2, next);
+
+        mLines.clear();
+        next = mBuffer.read(next, collect(Integer.MAX_VALUE));
+        assertEquals(Collections.singletonList("bg: Tag: 2"), mLines);
+        assertEquals(3, next);
+    }
+
+    @Test
+    public void readFromEndReturnsNothing() throws IOException {
+        mBuffer.add("Tag", "line", false);
+
+        long next = mBuffer.read(mBuffer.getNextSequence(), collect(Integer.MAX_VALUE));
+
+        assertTrue(mLines.isEmpty());
+        assertEquals(1, next);
+    }
+
+    @Test
+    public void clearedLinesAreNotRead() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            mBuffer.add("Tag", String.valueOf(i), false);
+        }
+
+        mBuffer.clear(2);
+        // older sequence doesn't bring cleared lines back
+        mBuffer.clear(1);
+        mBuffer.read(0, collect(Integer.MAX_VALUE));
+
+        assertEquals(Collections.singletonList("bg: Tag: 2"), mLines);
+    }
+
+    @Test
+    public void concurrentWritersGetDistinctSequences() throws Exception {
+        final int threadsCount = 4;
+        final int linesPerThread = 1000;
+        final LogRingBuffer buffer = new LogRingBuffer(threadsCount * linesPerThread);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadsCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < linesPerThread; j++) {
+                        buffer.add("Tag", "line", false);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        buffer.read(0, collect(Integer.MAX_VALUE));
+
+        assertEquals(threadsCount * linesPerThread, buffer.getNextSequence());
+        assertEquals(threadsCount * linesPerThread, mLines.size());
+    }
+
+    /**
+     * Consumer which takes given number of lines and refuses the next one.
+     */
+    private LogRingBuffer.LineConsumer collect(final int limit) {
+        return new LogRingBuffer.LineConsumer() {
+            @Override
+            public boolean accept(String line) {
+                if (mLines.size() >= limit) {
+                    return false;
+                }
+                mLines.add(line);
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,130 @@
+package com.loopme.request;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.Intent;
+import android.os.BatteryManager;
+import android.telephony.TelephonyManager;
+
+import com.loopme.common.StaticParams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class BatteryInfoCacheTest {
+
+    private Application mApplication;
+    private BatteryInfoCache mCache;
+    private boolean mIsDebugMode;
+
+    @Before
+    public void setUp() {
+        mApplication = RuntimeEnvironment.application;
+        mCache = new BatteryInfoCache();
+        // log writes start threads of cpu lane, they are not threads of requests
+        mIsDebugMode = StaticParams.DEBUG_MODE;
+        StaticParams.DEBUG_MODE = false;
+    }
+
+    @After
+    public void tearDown() {
+        StaticParams.DEBUG_MODE = mIsDebugMode;
+    }
+
+    @Test
+    public void unknownStateBeforeFirstBroadcast() {
+        mCache.init(mApplication);
+
+        assertArrayEquals(new String[]{"-1.0", "UNKNOWN"}, mCache.getBatteryInfo());
+        assertFalse(mCache.isCharging());
+    }
+
+    @Test
+    public void initialStateIsTakenFromStickyBroadcast() {
+        mApplication.sendStickyBroadcast(createBatteryIntent(50, BatteryManager.BATTERY_PLUGGED_USB));
+
+        mCache.init(mApplication);
+
+        assertArrayEquals(new String[]{"0.5", "USB"}, mCache.getBatteryInfo());
+        assertTrue(mCache.isCharging());
+    }
+
+    @Test
+    public void stateIsUpdatedByBroadcast() {
+        mCache.init(mApplication);
+
+        mApplication.sendBroadcast(createBatteryIntent(25, 0));
+
+        assertArrayEquals(new String[]{"0.25", "NCHRG"}, mCache.getBatteryInfo());
+        assertFalse(mCache.isCharging());
+
+        mApplication.sendBroadcast(createBatteryIntent(30, BatteryManager.BATTERY_PLUGGED_AC));
+
+        assertArrayEquals(new String[]{"0.3", "AC"}, mCache.getBatteryInfo());
+        assertTrue(mCache.isCharging());
+    }
+
+    @Test
+    public void returnedInfoIsCopy() {
+        mCache.init(mApplication);
+
+        mCache.getBatteryInfo()[0] = "1.0";
+
+        assertArrayEquals(new String[]{"-1.0", "UNKNOWN"}, mCache.getBatteryInfo());
+    }
+
+    @Test
+    public void requestsDontStartThreads() {
+        TelephonyManager telephonyManager =
+                (TelephonyManager) mApplication.getSystemService(Context.TELEPHONY_SERVICE);
+        shadowOf(telephonyManager).setNetworkOperator("25501");
+        mApplication.sendStickyBroadcast(createBatteryIntent(50, BatteryManager.BATTERY_PLUGGED_USB));
+        AdRequestUrlBuilder builder = new AdRequestUrlBuilder(mApplication);
+        // the first request registers receivers and takes snapshot of device context
+        assertNotNull(builder.buildRequestUrl("appKey", null));
+        Set<Thread> threads = getLiveThreads();
+
+        for (int i = 0; i < 200; i++) {
+            AdRequestParametersProvider.getInstance().getBatteryInfo(mApplication);
+            assertNotNull(builder.buildRequestUrl("appKey", null));
+        }
+
+        Set<Thread> newThreads = getLiveThreads();
+        newThreads.removeAll(threads);
+        assertEquals(new HashSet<Thread>(), newThreads);
+    }
+
+    private static Set<Thread> getLiveThreads() {
+        Set<Thread> threads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive()) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    private static Intent createBatteryIntent(int level, int plugged) {
+        return new Intent(Intent.ACTION_BATTERY_CHANGED)
+                .putExtra(BatteryManager.EXTRA_LEVEL, level)
+                .putExtra(BatteryManager.EXTRA_SCALE, 100)
+                .putExtra(BatteryManager.EXTRA_PLUGGED, plugged);
+    }
+}
@@ -0,0 +1,76 @@
+package com.loopme.request;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Configuration;
+import android.net.ConnectivityManager;
+import android.telephony.TelephonyManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class DeviceContextProviderTest {
+
+    private Application mApplication;
+    private DeviceContextProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mApplication = RuntimeEnvironment.application;
+        TelephonyManager telephonyManager =
+                (TelephonyManager) mApplication.getSystemService(Context.TELEPHONY_SERVICE);
+        shadowOf(telephonyManager).setNetworkOperator("25501");
+        mProvider = new DeviceContextProvider();
+        mProvider.init(mApplication);
+    }
+
+    @Test
+    public void snapshotIsReusedWhileNothingChanged() {
+        DeviceContext first = mProvider.getSnapshot(mApplication);
+
+        DeviceContext second = mProvider.getSnapshot(mApplication);
+
+        assertSame(first, second);
+        assertSame(second, mProvider.getLastSnapshot());
+    }
+
+    @Test
+    public void connectivityChangeRebuildsSnapshot() {
+        DeviceContext first = mProvider.getSnapshot(mApplication);
+
+        mApplication.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        DeviceContext second = mProvider.getSnapshot(mApplication);
+
+        assertNotSame(first, second);
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(first.getAppVersion(), second.getAppVersion());
+        assertEquals(first.getLanguage(), second.getLanguage());
+        assertSame(second, mProvider.getSnapshot(mApplication));
+    }
+
+    @Test
+    public void configurationChangeRebuildsSnapshot() {
+        DeviceContext first = mProvider.getSnapshot(mApplication);
+
+        mApplication.onConfigurationChanged(new Configuration());
+        DeviceContext second = mProvider.getSnapshot(mApplication);
+
+        assertNotSame(first, second);
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(first.getConnectionType(), second.getConnectionType());
+        assertSame(second, mProvider.getSnapshot(mApplication));
+    }
+}
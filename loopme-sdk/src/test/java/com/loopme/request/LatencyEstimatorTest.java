@@ -0,0 +1,91 @@
+package com.loopme.request;
+
+import com.loopme.common.StaticParams;
+import com.loopme.constants.ConnectionType;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class LatencyEstimatorTest {
+
+    private static final int TYPE = ConnectionType.WIFI;
+    private static final int OTHER_TYPE = ConnectionType.MOBILE_4G;
+    private static final int MIN_TIMEOUT = 3000;
+
+    private LatencyEstimator mEstimator;
+
+    @Before
+    public void setUp() {
+        mEstimator = new LatencyEstimator();
+    }
+
+    @Test
+    public void defaultTimeoutIsUsedUntilThereAreEnoughSamples() {
+        addSamples(TYPE, 4, 100);
+
+        assertEquals(StaticParams.REQUEST_TIMEOUT, mEstimator.getTimeout(TYPE));
+        assertEquals(StaticParams.REQUEST_TIMEOUT * 2, mEstimator.getRequestTimeout(TYPE));
+        assertEquals(0, mEstimator.getHedgeDelay(TYPE));
+    }
+
+    @Test
+    public void timeoutIsClampedToMinimum() {
+        addSamples(TYPE, 5, 10);
+
+        assertEquals(MIN_TIMEOUT, mEstimator.getTimeout(TYPE));
+        assertEquals(MIN_TIMEOUT * 2, mEstimator.getRequestTimeout(TYPE));
+        assertEquals(10, mEstimator.getHedgeDelay(TYPE));
+    }
+
+    @Test
+    public void timeoutIsClampedToDefault() {
+        addSamples(TYPE, 5, StaticParams.REQUEST_TIMEOUT);
+
+        assertEquals(StaticParams.REQUEST_TIMEOUT, mEstimator.getTimeout(TYPE));
+        assertEquals(StaticParams.REQUEST_TIMEOUT, mEstimator.getHedgeDelay(TYPE));
+    }
+
+    @Test
+    public void timeoutFollows95thPercentile() {
+        addSamples(TYPE, 19, 1000);
+        addSamples(TYPE, 1, 5000);
+        assertEquals(MIN_TIMEOUT, mEstimator.getTimeout(TYPE));
+        assertEquals(1000, mEstimator.getHedgeDelay(TYPE));
+
+        addSamples(TYPE, 1, 5000);
+
+        assertEquals(15000, mEstimator.getTimeout(TYPE));
+        assertEquals(5000, mEstimator.getHedgeDelay(TYPE));
+    }
+
+    @Test
+    public void oldSamplesLeaveWindow() {
+        addSamples(TYPE, 32, 5000);
+
+        addSamples(TYPE, 32, 2000);
+
+        assertEquals(6000, mEstimator.getTimeout(TYPE));
+    }
+
+    @Test
+    public void connectionTypesHaveOwnSamples() {
+        addSamples(TYPE, 5, 2000);
+        addSamples(OTHER_TYPE, 4, 10);
+
+        assertEquals(6000, mEstimator.getTimeout(TYPE));
+        assertEquals(StaticParams.REQUEST_TIMEOUT, mEstimator.getTimeout(OTHER_TYPE));
+    }
+
+    private void addSamples(int connectionType, int count, long latency) {
+        for (int i = 0; i < count; i++) {
+            mEstimator.addSample(connectionType, latency);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.loopme.request;
+
+import android.content.Context;
+import android.webkit.WebSettings;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+/**
+ * WebView isn't available in unit tests, user agent of real device is returned instead.
+ * Registered in robolectric.properties, so all tests share one sandbox.
+ */
+@Implements(WebSettings.class)
+public class ShadowWebSettings {
+
+    @Implementation
+    public static String getDefaultUserAgent(Context context) {
+        return "Mozilla/5.0 (Linux; Android 7.1.1) Chrome/55.0.2883.91 Mobile Safari/537.36";
+    }
+}
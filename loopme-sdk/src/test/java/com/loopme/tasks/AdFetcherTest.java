@@ -0,0 +1,257 @@
+package com.loopme.tasks;
+
+import com.loopme.common.AdParams;
+import com.loopme.common.LoopMeError;
+import com.loopme.common.StaticParams;
+import com.loopme.request.LatencyEstimator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class AdFetcherTest {
+
+    private static final long HEDGE_DELAY = 100;
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final String PRIMARY = "primary";
+    private static final String HEDGED = "hedged";
+
+    private final CountDownLatch mReleaseLatch = new CountDownLatch(1);
+    private final CountDownLatch mPrimaryLatch = new CountDownLatch(1);
+    private final CountDownLatch mHedgedLatch = new CountDownLatch(1);
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final List<String> mResponses = Collections.synchronizedList(new ArrayList<String>());
+    private final List<LoopMeError> mErrors = Collections.synchronizedList(new ArrayList<LoopMeError>());
+    private final HttpHandler[] mResponders = new HttpHandler[2];
+
+    private boolean mUseHedgedRequests;
+    private ExecutorService mServerExecutor;
+    private HttpServer mServer;
+    private TestFetcher mFetcher;
+
+    @Before
+    public void setUp() throws IOException {
+        mUseHedgedRequests = StaticParams.USE_HEDGED_REQUESTS;
+        StaticParams.USE_HEDGED_REQUESTS = true;
+        // window is filled, so hedge delay doesn't depend on samples of other tests
+        int connectionType = LatencyEstimator.getCurrentConnectionType();
+        for (int i = 0; i < 32; i++) {
+            LatencyEstimator.getInstance().addSample(connectionType, HEDGE_DELAY);
+        }
+        mServerExecutor = Executors.newCachedThreadPool();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(mServerExecutor);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int request = mRequestCount.getAndIncrement();
+                (request == 0 ? mPrimaryLatch : mHedgedLatch).countDown();
+                mResponders[Math.min(request, mResponders.length - 1)].handle(exchange);
+            }
+        });
+        mServer.start();
+        String url = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/ads";
+        mFetcher = new TestFetcher(url);
+    }
+
+    @After
+    public void tearDown() {
+        StaticParams.USE_HEDGED_REQUESTS = mUseHedgedRequests;
+        mReleaseLatch.countDown();
+        mServer.stop(0);
+        mServerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void responseIsDeliveredWithoutHedgeWhenDisabled() throws Exception {
+        StaticParams.USE_HEDGED_REQUESTS = false;
+        mResponders[0] = respond(200, PRIMARY);
+
+        mFetcher.run();
+
+        assertEquals(Collections.singletonList(PRIMARY), mResponses);
+        assertEquals(1, mRequestCount.get());
+    }
+
+    @Test
+    public void hedgedRequestWinsOverSlowPrimary() throws Exception {
+        mResponders[0] = await(mReleaseLatch, respond(200, PRIMARY));
+        mResponders[1] = respond(200, HEDGED);
+        Thread fetcher = start(mFetcher);
+        assertTrue(mPrimaryLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        ShadowLooper.idleMainLooper(HEDGE_DELAY);
+
+        fetcher.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertFalse(fetcher.isAlive());
+        assertEquals(Collections.singletonList(HEDGED), mResponses);
+        assertTrue(mErrors.isEmpty());
+    }
+
+    @Test
+    public void primaryWinsOverSlowHedgedRequest() throws Exception {
+        mResponders[0] = await(mHedgedLatch, respond(200, PRIMARY));
+        mResponders[1] = await(mReleaseLatch, respond(200, HEDGED));
+        Thread fetcher = start(mFetcher);
+        assertTrue(mPrimaryLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        ShadowLooper.idleMainLooper(HEDGE_DELAY);
+
+        fetcher.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertFalse(fetcher.isAlive());
+        mReleaseLatch.countDown();
+        Thread.sleep(200);
+        assertEquals(Collections.singletonList(PRIMARY), mResponses);
+        assertEquals(2, mRequestCount.get());
+    }
+
+    @Test
+    public void hedgeIsNotSentForFastResponse() throws Exception {
+        mResponders[0] = respond(200, PRIMARY);
+
+        mFetcher.run();
+        ShadowLooper.idleMainLooper(HEDGE_DELAY);
+
+        assertEquals(Collections.singletonList(PRIMARY), mResponses);
+        assertEquals(1, mRequestCount.get());
+    }
+
+    @Test
+    public void errorOfPrimaryIsReportedWhenHedgeFailsLater() throws Exception {
+        mResponders[0] = await(mHedgedLatch, respond(503, ""));
+        mResponders[1] = delay(200, respond(404, ""));
+        Thread fetcher = start(mFetcher);
+        assertTrue(mPrimaryLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        ShadowLooper.idleMainLooper(HEDGE_DELAY);
+
+        fetcher.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertFalse(fetcher.isAlive());
+        assertTrue(mResponses.isEmpty());
+        assertEquals(1, mErrors.size());
+        assertEquals("Server code: 503", mErrors.get(0).getMessage());
+    }
+
+    @Test
+    public void cancelledRequestDeliversNothing() throws Exception {
+        StaticParams.USE_HEDGED_REQUESTS = false;
+        mResponders[0] = await(mReleaseLatch, respond(200, PRIMARY));
+        Thread fetcher = start(mFetcher);
+        assertTrue(mPrimaryLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        mFetcher.cancel();
+
+        fetcher.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertFalse(fetcher.isAlive());
+        mReleaseLatch.countDown();
+        assertTrue(mResponses.isEmpty());
+        assertTrue(mErrors.isEmpty());
+    }
+
+    private static Thread start(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+    private static HttpHandler respond(final int code, final String body) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] bytes = body.getBytes("UTF-8");
+                exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(bytes);
+                output.close();
+            }
+        };
+    }
+
+    private static HttpHandler await(final CountDownLatch latch, final HttpHandler handler) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                handler.handle(exchange);
+            }
+        };
+    }
+
+    private static HttpHandler delay(final long millis, final HttpHandler handler) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                handler.handle(exchange);
+            }
+        };
+    }
+
+    /**
+     * Records body of delivered response instead of parsing it.
+     */
+    private class TestFetcher extends AdFetcher {
+
+        private TestFetcher(String url) {
+            super(url, new Listener() {
+                @Override
+                public void onComplete(AdParams params, LoopMeError error) {
+                    if (error != null) {
+                        mErrors.add(error);
+                    }
+                }
+            }, 0, "appKey");
+        }
+
+        @Override
+        protected void onResponse(InputStream in) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            try {
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, count);
+                }
+                mResponses.add(body.toString("UTF-8"));
+            } catch (IOException e) {
+                mErrors.add(new LoopMeError(e.getMessage()));
+            }
+        }
+    }
+}